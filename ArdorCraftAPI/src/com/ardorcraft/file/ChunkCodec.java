@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.file;
+
+import java.io.IOException;
+
+/**
+ * Compression of chunk data in a {@link WorldFile}. The id of the codec is stored with every record, so a map can mix
+ * records of several codecs and the codec used for saving can be changed at any time.
+ * <p>
+ * Implementations must be thread safe and must be registered with {@link ChunkCodecs} to be readable.
+ */
+public interface ChunkCodec {
+    /**
+     * @return id stored with the records, 0-255 and unique among the registered codecs
+     */
+    int getId();
+
+    byte[] encode(byte[] data, int length);
+
+    /**
+     * @return the decoded data
+     * @throws IOException
+     *             if the data is damaged
+     */
+    byte[] decode(byte[] source, int offset, int length) throws IOException;
+
+    /**
+     * Decodes into the start of the target.
+     * 
+     * @return number of decoded bytes
+     * @throws IOException
+     *             if the data is damaged or does not fit in the target
+     */
+    int decode(byte[] source, int offset, int length, byte[] target) throws IOException;
+}
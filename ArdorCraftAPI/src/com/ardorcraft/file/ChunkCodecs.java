@@ -0,0 +1,56 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.file;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Registry of the chunk codecs a {@link WorldFile} can read, by id.
+ * <p>
+ * Built in are {@link DeflateCodec} (id 0, used by maps written before codecs were recorded), {@link ColumnRleCodec}
+ * (id 1), {@link FastLzCodec} (id 2) and {@link UniformCodec} (id 3).
+ */
+public final class ChunkCodecs {
+    public static final int DEFLATE = 0;
+    public static final int COLUMN_RLE = 1;
+    public static final int FAST_LZ = 2;
+    public static final int UNIFORM = 3;
+
+    private static final AtomicReferenceArray<ChunkCodec> codecs = new AtomicReferenceArray<ChunkCodec>(256);
+
+    static {
+        register(new DeflateCodec());
+        register(new ColumnRleCodec(0, 0, false));
+        register(new FastLzCodec());
+        register(new UniformCodec(0, 0));
+    }
+
+    private ChunkCodecs() {}
+
+    /**
+     * Makes records with the codec's id readable. Any instance can be registered, decoding must not depend on how
+     * the codec was configured for encoding.
+     */
+    public static void register(final ChunkCodec codec) {
+        final int id = codec.getId();
+        if (id < 0 || id > 255) {
+            throw new IllegalArgumentException("Codec id must be 0-255: " + id);
+        }
+        final ChunkCodec previous = codecs.get(id);
+        if (previous != null && previous.getClass() != codec.getClass()) {
+            throw new IllegalArgumentException("Codec id " + id + " is already used by " + previous.getClass());
+        }
+        codecs.set(id, codec);
+    }
+
+    /**
+     * @return the codec, or null if none is registered for the id
+     */
+    public static ChunkCodec get(final int id) {
+        return id >= 0 && id < codecs.length() ? codecs.get(id) : null;
+    }
+}
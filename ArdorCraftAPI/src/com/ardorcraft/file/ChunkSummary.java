@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.file;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Small summary of a stored chunk, kept by {@link WorldFile} next to each record so it can be looked up without
+ * loading the chunk: the top of each column and the block there, the number of non-air blocks per section of
+ * {@link #SECTION_HEIGHT} layers, and which block ids occur. Immutable.
+ */
+public final class ChunkSummary {
+    /** Layers per section. */
+    public static final int SECTION_HEIGHT = 16;
+
+    private final int width;
+    private final int height;
+    /** Top of each column, x + z * width. */
+    private final short[] heights;
+    /** Block at the top of each column, x + z * width. */
+    private final byte[] topBlocks;
+    private final int[] sectionCounts;
+    /** Bit per block id. */
+    private final long[] blockIds;
+    private final int maxHeight;
+
+    private ChunkSummary(final int width, final int height, final short[] heights, final byte[] topBlocks,
+            final int[] sectionCounts, final long[] blockIds) {
+        this.width = width;
+        this.height = height;
+        this.heights = heights;
+        this.topBlocks = topBlocks;
+        this.sectionCounts = sectionCounts;
+        this.blockIds = blockIds;
+        int max = 0;
+        for (final short top : heights) {
+            max = Math.max(max, top);
+        }
+        maxHeight = max;
+    }
+
+    /**
+     * Summarizes chunk data in the layout the world file stores.
+     */
+    public static ChunkSummary create(final byte[] blocks, final int width, final int height) {
+        final short[] heights = new short[width * width];
+        final byte[] topBlocks = new byte[width * width];
+        final int[] sectionCounts = new int[getSectionCount(height)];
+        final long[] blockIds = new long[4];
+        for (int z = 0; z < width; z++) {
+            for (int y = 0; y < height; y++) {
+                final int row = (y + z * height) * width;
+                for (int x = 0; x < width; x++) {
+                    final int block = blocks[row + x] & 0xff;
+                    blockIds[block >>> 6] |= 1L << block;
+                    if (block != 0) {
+                        heights[x + z * width] = (short) (y + 1);
+                        topBlocks[x + z * width] = (byte) block;
+                        sectionCounts[y / SECTION_HEIGHT]++;
+                    }
+                }
+            }
+        }
+        return new ChunkSummary(width, height, heights, topBlocks, sectionCounts, blockIds);
+    }
+
+    private static int getSectionCount(final int height) {
+        return (height + SECTION_HEIGHT - 1) / SECTION_HEIGHT;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return layer above the topmost non-air block of the column at chunk local x, z, 0 if the column is empty
+     */
+    public int getTopHeight(final int x, final int z) {
+        return heights[x + z * width];
+    }
+
+    /**
+     * @return id of the topmost non-air block of the column at chunk local x, z, 0 if the column is empty
+     */
+    public int getTopBlock(final int x, final int z) {
+        return topBlocks[x + z * width] & 0xff;
+    }
+
+    /**
+     * @return layer above the topmost non-air block in the chunk, 0 if it is empty
+     */
+    public int getMaxHeight() {
+        return maxHeight;
+    }
+
+    public int getSectionCount() {
+        return sectionCounts.length;
+    }
+
+    /**
+     * @return number of non-air blocks in layers section * {@link #SECTION_HEIGHT} and up
+     */
+    public int getNonAirCount(final int section) {
+        return sectionCounts[section];
+    }
+
+    /**
+     * @return true if the chunk has at least one block of the id, 0-255
+     */
+    public boolean contains(final int blockId) {
+        return (blockIds[blockId >>> 6] & 1L << blockId) != 0;
+    }
+
+    void write(final DataOutputStream out) throws IOException {
+        out.writeInt(width);
+        out.writeInt(height);
+        for (final short top : heights) {
+            out.writeShort(top);
+        }
+        out.write(topBlocks);
+        for (final int count : sectionCounts) {
+            out.writeInt(count);
+        }
+        for (final long bits : blockIds) {
+            out.writeLong(bits);
+        }
+    }
+
+    /**
+     * @return the summary, or null if the buffer does not hold a valid one
+     */
+    static ChunkSummary read(final ByteBuffer buffer) {
+        if (buffer.remaining() < 8) {
+            return null;
+        }
+        final int width = buffer.getInt();
+        final int height = buffer.getInt();
+        if (width <= 0 || height <= 0 || height > Short.MAX_VALUE
+                || buffer.remaining() < (long) width * width * 3 + getSectionCount(height) * 4L + 32) {
+            return null;
+        }
+        final short[] heights = new short[width * width];
+        for (int i = 0; i < heights.length; i++) {
+            heights[i] = buffer.getShort();
+            if (heights[i] < 0 || heights[i] > height) {
+                return null;
+            }
+        }
+        final byte[] topBlocks = new byte[width * width];
+        buffer.get(topBlocks);
+        final int[] sectionCounts = new int[getSectionCount(height)];
+        for (int i = 0; i < sectionCounts.length; i++) {
+            sectionCounts[i] = buffer.getInt();
+        }
+        final long[] blockIds = new long[4];
+        for (int i = 0; i < blockIds.length; i++) {
+            blockIds[i] = buffer.getLong();
+        }
+        return new ChunkSummary(width, height, heights, topBlocks, sectionCounts, blockIds);
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.file;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Run length encoding of chunk data column by column. Terrain is made of horizontal layers, so walking each column
+ * bottom to top gives a few long runs where the stored row order gives many short ones. Optionally the runs are
+ * compressed further with {@link FastLzCodec}, which picks up neighbouring columns that look alike.
+ * <p>
+ * Layout: decoded length (int), width (int), height (int), flags (byte), then pairs of block value (byte) and run
+ * length - 1 (varint). With the LZ flag the pairs are preceded by their length (int) and compressed. Data that is
+ * not width * height * width bytes is encoded as a single column.
+ */
+public class ColumnRleCodec implements ChunkCodec {
+    private static final int HEADER_SIZE = 13;
+    private static final int FLAG_LZ = 1;
+
+    private final int width;
+    private final int height;
+    private final boolean lz;
+
+    private final ThreadLocal<int[]> hashTables = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1 << 13];
+        }
+    };
+
+    /**
+     * @param width
+     *            chunk width in blocks
+     * @param height
+     *            chunk height in blocks
+     * @param lz
+     *            true to compress the runs with {@link FastLzCodec}
+     */
+    public ColumnRleCodec(final int width, final int height, final boolean lz) {
+        this.width = width;
+        this.height = height;
+        this.lz = lz;
+    }
+
+    @Override
+    public int getId() {
+        return ChunkCodecs.COLUMN_RLE;
+    }
+
+    @Override
+    public byte[] encode(final byte[] data, final int length) {
+        int columnWidth = width;
+        int columnHeight = height;
+        if (width <= 0 || height <= 0 || (long) width * width * height != length) {
+            columnWidth = 1;
+            columnHeight = length;
+        }
+
+        // worst case every block is a run of one
+        final byte[] runs = new byte[HEADER_SIZE + length * 2];
+        int out = lz ? 0 : HEADER_SIZE;
+        int value = Integer.MIN_VALUE;
+        int count = 0;
+        for (int z = 0; z < columnWidth; z++) {
+            for (int x = 0; x < columnWidth; x++) {
+                int index = x + z * columnHeight * columnWidth;
+                for (int y = 0; y < columnHeight; y++, index += columnWidth) {
+                    final int block = data[index];
+                    if (block == value) {
+                        count++;
+                        continue;
+                    }
+                    if (count > 0) {
+                        out = writeRun(runs, out, value, count);
+                    }
+                    value = block;
+                    count = 1;
+                }
+            }
+        }
+        if (count > 0) {
+            out = writeRun(runs, out, value, count);
+        }
+
+        final byte[] encoded;
+        final int encodedLength;
+        if (lz) {
+            encoded = new byte[HEADER_SIZE + 4 + FastLzCodec.getMaxCompressedLength(out)];
+            FastLzCodec.writeInt(encoded, HEADER_SIZE, out);
+            encodedLength = FastLzCodec.compress(runs, 0, out, encoded, HEADER_SIZE + 4, hashTables.get());
+        } else {
+            encoded = runs;
+            encodedLength = out;
+        }
+        FastLzCodec.writeInt(encoded, 0, length);
+        FastLzCodec.writeInt(encoded, 4, columnWidth);
+        FastLzCodec.writeInt(encoded, 8, columnHeight);
+        encoded[12] = (byte) (lz ? FLAG_LZ : 0);
+        return Arrays.copyOf(encoded, encodedLength);
+    }
+
+    private static int writeRun(final byte[] target, int out, final int value, final int count) {
+        target[out++] = (byte) value;
+        int remaining = count - 1;
+        while (remaining >= 0x80) {
+            target[out++] = (byte) (remaining | 0x80);
+            remaining >>>= 7;
+        }
+        target[out++] = (byte) remaining;
+        return out;
+    }
+
+    @Override
+    public byte[] decode(final byte[] source, final int offset, final int length) throws IOException {
+        final byte[] target = new byte[readLength(source, offset, length)];
+        decode(source, offset, length, target);
+        return target;
+    }
+
+    @Override
+    public int decode(final byte[] source, final int offset, final int length, final byte[] target)
+            throws IOException {
+        final int decodedLength = readLength(source, offset, length);
+        if (decodedLength > target.length) {
+            throw new IOException("Decoded data does not fit in " + target.length + " bytes: " + decodedLength);
+        }
+        if (decodedLength == 0) {
+            return 0;
+        }
+        final int columnWidth = FastLzCodec.readInt(source, offset + 4);
+        final int columnHeight = FastLzCodec.readInt(source, offset + 8);
+        final int flags = source[offset + 12];
+
+        byte[] runs = source;
+        int in = offset + HEADER_SIZE;
+        int end = offset + length;
+        if ((flags & FLAG_LZ) != 0) {
+            if (length < HEADER_SIZE + 4) {
+                throw new IOException("RLE data too short: " + length);
+            }
+            // a run takes at most 6 bytes and covers at least one block
+            final int runLength = FastLzCodec.readInt(source, in);
+            if (runLength < 0 || runLength > decodedLength * 6L) {
+                throw new IOException("Bad RLE run length: " + runLength);
+            }
+            runs = new byte[runLength];
+            FastLzCodec.decompress(source, in + 4, end, runs, 0, runLength);
+            in = 0;
+            end = runLength;
+        }
+
+        int z = 0;
+        int x = 0;
+        int y = 0;
+        int index = 0;
+        final int columnStride = columnHeight * columnWidth;
+        try {
+            while (in < end) {
+                final byte value = runs[in++];
+                int count = 0;
+                int shift = 0;
+                int b;
+                do {
+                    b = runs[in++];
+                    count |= (b & 0x7f) << shift;
+                    shift += 7;
+                } while ((b & 0x80) != 0 && shift < 32);
+                count++;
+
+                while (count > 0) {
+                    if (z == columnWidth) {
+                        throw new IOException("RLE runs exceed the decoded length");
+                    }
+                    final int step = Math.min(count, columnHeight - y);
+                    for (int i = 0; i < step; i++, index += columnWidth) {
+                        target[index] = value;
+                    }
+                    count -= step;
+                    y += step;
+                    if (y == columnHeight) {
+                        y = 0;
+                        if (++x == columnWidth) {
+                            x = 0;
+                            z++;
+                        }
+                        index = x + z * columnStride;
+                    }
+                }
+            }
+        } catch (final ArrayIndexOutOfBoundsException e) {
+            throw new IOException("RLE data truncated", e);
+        }
+        if (z != columnWidth) {
+            throw new IOException("RLE runs end before the decoded length");
+        }
+        return decodedLength;
+    }
+
+    /**
+     * @return decoded length from the header, after checking it against the layout
+     */
+    private static int readLength(final byte[] source, final int offset, final int length) throws IOException {
+        if (length < HEADER_SIZE) {
+            throw new IOException("RLE data too short: " + length);
+        }
+        final int decodedLength = FastLzCodec.readInt(source, offset);
+        final int columnWidth = FastLzCodec.readInt(source, offset + 4);
+        final int columnHeight = FastLzCodec.readInt(source, offset + 8);
+        final boolean validLayout = columnWidth > 0 && columnHeight > 0
+                && (long) columnWidth * columnWidth * columnHeight == decodedLength;
+        if (decodedLength < 0 || decodedLength > 0 && !validLayout) {
+            throw new IOException("Bad RLE layout: " + columnWidth + "x" + columnHeight + " for " + decodedLength);
+        }
+        return decodedLength;
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.file;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Zlib compression, the original map format. The level only matters when encoding.
+ */
+public class DeflateCodec implements ChunkCodec {
+    private final int level;
+    private final Queue<Deflater> deflaters = new ConcurrentLinkedQueue<Deflater>();
+    private final Queue<Inflater> inflaters = new ConcurrentLinkedQueue<Inflater>();
+
+    public DeflateCodec() {
+        this(Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * @param level
+     *            {@link Deflater} compression level, 1 (fastest) to 9 (smallest)
+     */
+    public DeflateCodec(final int level) {
+        this.level = level;
+    }
+
+    @Override
+    public int getId() {
+        return ChunkCodecs.DEFLATE;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    @Override
+    public byte[] encode(final byte[] data, final int length) {
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(level);
+        }
+        try {
+            deflater.reset();
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            byte[] out = new byte[length + (length >> 12) + (length >> 14) + 64];
+            int count = 0;
+            while (!deflater.finished()) {
+                if (count == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                count += deflater.deflate(out, count, out.length - count);
+            }
+            return Arrays.copyOf(out, count);
+        } finally {
+            deflaters.offer(deflater);
+        }
+    }
+
+    @Override
+    public byte[] decode(final byte[] source, final int offset, final int length) throws IOException {
+        final Inflater inflater = acquireInflater();
+        try {
+            inflater.setInput(source, offset, length);
+            byte[] out = new byte[Math.max(length * 8, 1024)];
+            int count = 0;
+            while (!inflater.finished()) {
+                if (count == out.length) {
+                    out = Arrays.copyOf(out, out.length * 2);
+                }
+                final int inflated = inflater.inflate(out, count, out.length - count);
+                // the encoding of empty data finishes without output, and then also needs input
+                if (inflated == 0 && !inflater.finished() && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new IOException("bad zip data, size:" + length);
+                }
+                count += inflated;
+            }
+            return count == out.length ? out : Arrays.copyOf(out, count);
+        } catch (final DataFormatException e) {
+            throw new IOException("bad zip data, size:" + length, e);
+        } finally {
+            inflaters.offer(inflater);
+        }
+    }
+
+    @Override
+    public int decode(final byte[] source, final int offset, final int length, final byte[] target)
+            throws IOException {
+        final Inflater inflater = acquireInflater();
+        try {
+            inflater.setInput(source, offset, length);
+            final int count = inflater.inflate(target);
+            if (!inflater.finished()) {
+                throw new IOException("Inflated data does not fit in " + target.length + " bytes");
+            }
+            return count;
+        } catch (final DataFormatException e) {
+            throw new IOException("bad zip data, size:" + length, e);
+        } finally {
+            inflaters.offer(inflater);
+        }
+    }
+
+    private Inflater acquireInflater() {
+        final Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            return new Inflater();
+        }
+        inflater.reset();
+        return inflater;
+    }
+}
@@ -0,0 +1,204 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of block edits next to a {@link WorldFile} (map name + ".journal").
+ * <p>
+ * Layout:
+ * <ul>
+ * <li>header: identifier (int), version (int), chunk width (int), chunk height (int), sequence of the first record
+ * (long)
+ * <li>records of 19 bytes: type (byte), x (int), y (int), z (int), block id (byte), orientation (byte), CRC32 of the
+ * first 15 bytes (int)
+ * </ul>
+ * An edit record holds world block coordinates. A snapshot record holds chunk coordinates in x and z, and in y the
+ * number of records, counted from the first one, that the chunk snapshot it marks already contains.
+ * <p>
+ * Not thread safe, the world file only touches it with its lock held.
+ */
+final class EditJournal {
+    private static final Logger logger = Logger.getLogger(EditJournal.class.getName());
+
+    private static final int IDENTIFIER = "ArdorCraft Map Journal".hashCode();
+    private static final int VERSION = 1;
+    static final int HEADER_SIZE = 24;
+    static final int RECORD_SIZE = 19;
+    static final byte EDIT = 1;
+    static final byte SNAPSHOT = 2;
+
+    /**
+     * Receives the records of a journal in order.
+     */
+    interface Replay {
+        void edit(long sequence, int x, int y, int z, int blockId, int orientation);
+
+        /**
+         * @param coveredSequence
+         *            edits to the chunk before this sequence are part of its snapshot
+         */
+        void snapshot(int chunkX, int chunkZ, long coveredSequence);
+    }
+
+    private final RandomAccessFile journalFile;
+    private final int width;
+    private final int height;
+    private long baseSequence;
+    private long nextSequence;
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+    private final CRC32 crc = new CRC32();
+
+    private EditJournal(final RandomAccessFile journalFile, final int width, final int height,
+            final long baseSequence) {
+        this.journalFile = journalFile;
+        this.width = width;
+        this.height = height;
+        this.baseSequence = baseSequence;
+        nextSequence = baseSequence;
+    }
+
+    static EditJournal create(final File file, final int width, final int height) throws IOException {
+        final RandomAccessFile journalFile = new RandomAccessFile(file, "rw");
+        final EditJournal journal = new EditJournal(journalFile, width, height, 0);
+        journal.reset();
+        return journal;
+    }
+
+    /**
+     * Opens an existing journal, call {@link #replay(Replay)} before appending to it.
+     *
+     * @return the journal, or null if the file is not a journal
+     */
+    static EditJournal open(final File file) throws IOException {
+        final RandomAccessFile journalFile = new RandomAccessFile(file, "rw");
+        if (journalFile.length() < HEADER_SIZE || journalFile.readInt() != IDENTIFIER
+                || journalFile.readInt() != VERSION) {
+            journalFile.close();
+            logger.warning("Ignoring unknown map journal: " + file);
+            return null;
+        }
+        final int width = journalFile.readInt();
+        final int height = journalFile.readInt();
+        final long baseSequence = journalFile.readLong();
+
+        return new EditJournal(journalFile, width, height, baseSequence);
+    }
+
+    /**
+     * Passes all valid records to the replay. A damaged or torn tail is cut off.
+     */
+    void replay(final Replay replay) throws IOException {
+        final long length = journalFile.length();
+        final byte[] data = new byte[(int) Math.min(length - HEADER_SIZE, Integer.MAX_VALUE)];
+        journalFile.seek(HEADER_SIZE);
+        journalFile.readFully(data);
+
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        int valid = 0;
+        while (buffer.remaining() >= RECORD_SIZE) {
+            crc.reset();
+            crc.update(data, valid, RECORD_SIZE - 4);
+            final byte type = buffer.get();
+            final int x = buffer.getInt();
+            final int y = buffer.getInt();
+            final int z = buffer.getInt();
+            final int blockId = buffer.get() & 0xff;
+            final int orientation = buffer.get();
+            if (buffer.getInt() != (int) crc.getValue()) {
+                break;
+            }
+
+            if (type == EDIT) {
+                replay.edit(nextSequence, x, y, z, blockId, orientation);
+            } else if (type == SNAPSHOT) {
+                replay.snapshot(x, z, baseSequence + y);
+            } else {
+                break;
+            }
+            nextSequence++;
+            valid += RECORD_SIZE;
+        }
+
+        if (valid < data.length) {
+            logger.warning("Map journal has " + (data.length - valid) + " damaged bytes at the end, cutting them off");
+            journalFile.setLength(HEADER_SIZE + valid);
+        }
+    }
+
+    /**
+     * @return sequence of the appended record
+     */
+    long appendEdit(final int x, final int y, final int z, final int blockId, final int orientation)
+            throws IOException {
+        return append(EDIT, x, y, z, blockId, orientation);
+    }
+
+    void appendSnapshot(final int chunkX, final int chunkZ, final long coveredSequence) throws IOException {
+        final long covered = Math.min(Math.max(coveredSequence - baseSequence, 0), nextSequence - baseSequence);
+        append(SNAPSHOT, chunkX, (int) covered, chunkZ, 0, 0);
+    }
+
+    private long append(final byte type, final int x, final int y, final int z, final int blockId,
+            final int orientation) throws IOException {
+        record.clear();
+        record.put(type).putInt(x).putInt(y).putInt(z).put((byte) blockId).put((byte) orientation);
+        crc.reset();
+        crc.update(record.array(), 0, RECORD_SIZE - 4);
+        record.putInt((int) crc.getValue());
+
+        journalFile.seek(HEADER_SIZE + (nextSequence - baseSequence) * RECORD_SIZE);
+        journalFile.write(record.array());
+        return nextSequence++;
+    }
+
+    /**
+     * Drops all records. Sequences keep counting from where they were.
+     */
+    void reset() throws IOException {
+        baseSequence = nextSequence;
+        // records go first, so a crash cannot leave them behind a header with the new base
+        journalFile.setLength(0);
+        journalFile.seek(0);
+        journalFile.writeInt(IDENTIFIER);
+        journalFile.writeInt(VERSION);
+        journalFile.writeInt(width);
+        journalFile.writeInt(height);
+        journalFile.writeLong(baseSequence);
+        force();
+    }
+
+    void force() throws IOException {
+        journalFile.getChannel().force(false);
+    }
+
+    long length() {
+        return HEADER_SIZE + (nextSequence - baseSequence) * RECORD_SIZE;
+    }
+
+    long getNextSequence() {
+        return nextSequence;
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    void close() throws IOException {
+        journalFile.close();
+    }
+}
@@ -0,0 +1,44 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.file;
+
+import java.io.IOException;
+
+/**
+ * Chunk data as compressed by a {@link ChunkCodec}, with the codec id needed to decode it through
+ * {@link ChunkCodecs#get(int)}. Lets chunks be sent on without decompressing and compressing them again.
+ */
+public final class EncodedChunk {
+    private final int codecId;
+    private final byte[] data;
+
+    public EncodedChunk(final int codecId, final byte[] data) {
+        this.codecId = codecId;
+        this.data = data;
+    }
+
+    public int getCodecId() {
+        return codecId;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * @return the decoded chunk
+     * @throws IOException
+     *             if the codec is unknown or the data is damaged
+     */
+    public byte[] decode() throws IOException {
+        final ChunkCodec codec = ChunkCodecs.get(codecId);
+        if (codec == null) {
+            throw new IOException("Unknown chunk codec id " + codecId);
+        }
+        return codec.decode(data, 0, data.length);
+    }
+}
@@ -0,0 +1,213 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.file;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Byte oriented LZ77 compression in the style of LZ4. Compresses worse than deflate but decodes several times faster,
+ * since there is no entropy coding.
+ * <p>
+ * Layout: decoded length (int), then sequences of a token (literal count in the high nibble, match length - 4 in the
+ * low nibble, 15 meaning more length bytes follow), the literals, and a two byte little endian match offset. The last
+ * sequence has literals only.
+ */
+public class FastLzCodec implements ChunkCodec {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MAX_OFFSET = 0xffff;
+    private static final int HASH_BITS = 13;
+
+    private final ThreadLocal<int[]> hashTables = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            return new int[1 << HASH_BITS];
+        }
+    };
+
+    @Override
+    public int getId() {
+        return ChunkCodecs.FAST_LZ;
+    }
+
+    @Override
+    public byte[] encode(final byte[] data, final int length) {
+        final byte[] out = new byte[4 + getMaxCompressedLength(length)];
+        writeInt(out, 0, length);
+        final int count = compress(data, 0, length, out, 4, hashTables.get());
+        return Arrays.copyOf(out, count);
+    }
+
+    @Override
+    public byte[] decode(final byte[] source, final int offset, final int length) throws IOException {
+        if (length < 4) {
+            throw new IOException("LZ data too short: " + length);
+        }
+        final int decodedLength = readInt(source, offset);
+        // every input byte expands to at most 255 output bytes
+        if (decodedLength < 0 || decodedLength > (long) length * 255) {
+            throw new IOException("Bad LZ length: " + decodedLength);
+        }
+        final byte[] target = new byte[decodedLength];
+        decompress(source, offset + 4, offset + length, target, 0, decodedLength);
+        return target;
+    }
+
+    @Override
+    public int decode(final byte[] source, final int offset, final int length, final byte[] target)
+            throws IOException {
+        if (length < 4) {
+            throw new IOException("LZ data too short: " + length);
+        }
+        final int decodedLength = readInt(source, offset);
+        if (decodedLength < 0 || decodedLength > target.length) {
+            throw new IOException("Decoded data does not fit in " + target.length + " bytes: " + decodedLength);
+        }
+        decompress(source, offset + 4, offset + length, target, 0, decodedLength);
+        return decodedLength;
+    }
+
+    static int getMaxCompressedLength(final int length) {
+        return length + length / 255 + 16;
+    }
+
+    /**
+     * @param table
+     *            scratch hash table, contents do not matter
+     * @return end position in the target
+     */
+    static int compress(final byte[] source, final int offset, final int length, final byte[] target,
+            final int targetOffset, final int[] table) {
+        Arrays.fill(table, -1);
+        final int end = offset + length;
+        final int matchLimit = end - LAST_LITERALS;
+        int out = targetOffset;
+        int anchor = offset;
+        int pos = offset;
+
+        while (pos + MIN_MATCH <= matchLimit) {
+            final int value = readInt(source, pos);
+            final int hash = value * -1640531535 >>> 32 - HASH_BITS;
+            final int ref = table[hash];
+            table[hash] = pos;
+            if (ref < 0 || pos - ref > MAX_OFFSET || readInt(source, ref) != value) {
+                pos++;
+                continue;
+            }
+
+            int matchLength = MIN_MATCH;
+            while (pos + matchLength < matchLimit && source[ref + matchLength] == source[pos + matchLength]) {
+                matchLength++;
+            }
+
+            out = writeSequence(source, anchor, pos - anchor, target, out, matchLength - MIN_MATCH);
+            target[out++] = (byte) (pos - ref);
+            target[out++] = (byte) (pos - ref >>> 8);
+            out = writeLength(target, out, matchLength - MIN_MATCH);
+            pos += matchLength;
+            anchor = pos;
+        }
+
+        return writeSequence(source, anchor, end - anchor, target, out, 0);
+    }
+
+    private static int writeSequence(final byte[] source, final int literalStart, final int literalCount,
+            final byte[] target, int out, final int matchCode) {
+        target[out++] = (byte) (Math.min(literalCount, 15) << 4 | Math.min(matchCode, 15));
+        out = writeLength(target, out, literalCount);
+        System.arraycopy(source, literalStart, target, out, literalCount);
+        return out + literalCount;
+    }
+
+    private static int writeLength(final byte[] target, int out, final int length) {
+        if (length >= 15) {
+            int remaining = length - 15;
+            while (remaining >= 255) {
+                target[out++] = (byte) 255;
+                remaining -= 255;
+            }
+            target[out++] = (byte) remaining;
+        }
+        return out;
+    }
+
+    /**
+     * @throws IOException
+     *             if the data is damaged or does not decode to exactly the length
+     */
+    static void decompress(final byte[] source, final int offset, final int end, final byte[] target,
+            final int targetOffset, final int length) throws IOException {
+        final int targetEnd = targetOffset + length;
+        int in = offset;
+        int out = targetOffset;
+        try {
+            while (true) {
+                final int token = source[in++] & 0xff;
+                int literalCount = token >>> 4;
+                if (literalCount == 15) {
+                    int b;
+                    do {
+                        b = source[in++] & 0xff;
+                        literalCount += b;
+                    } while (b == 255);
+                }
+                if (literalCount > end - in || literalCount > targetEnd - out) {
+                    throw new IOException("LZ literals out of bounds");
+                }
+                System.arraycopy(source, in, target, out, literalCount);
+                in += literalCount;
+                out += literalCount;
+                if (in == end) {
+                    break;
+                }
+
+                final int distance = source[in++] & 0xff | (source[in++] & 0xff) << 8;
+                int matchLength = token & 0xf;
+                if (matchLength == 15) {
+                    int b;
+                    do {
+                        b = source[in++] & 0xff;
+                        matchLength += b;
+                    } while (b == 255);
+                }
+                matchLength += MIN_MATCH;
+                int ref = out - distance;
+                if (distance == 0 || ref < targetOffset || matchLength > targetEnd - out) {
+                    throw new IOException("LZ match out of bounds");
+                }
+                if (distance >= matchLength) {
+                    System.arraycopy(target, ref, target, out, matchLength);
+                    out += matchLength;
+                } else {
+                    // overlapping match, repeats the last bytes
+                    final int matchEnd = out + matchLength;
+                    while (out < matchEnd) {
+                        target[out++] = target[ref++];
+                    }
+                }
+            }
+        } catch (final ArrayIndexOutOfBoundsException e) {
+            throw new IOException("LZ data truncated", e);
+        }
+        if (out != targetEnd) {
+            throw new IOException("LZ data decoded to " + (out - targetOffset) + " bytes, expected " + length);
+        }
+    }
+
+    static int readInt(final byte[] data, final int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16 | (data[offset + 2] & 0xff) << 8
+                | data[offset + 3] & 0xff;
+    }
+
+    static void writeInt(final byte[] data, final int offset, final int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.file;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Bookkeeping of free blocks in a {@link WorldFile}, by position and by power of two size class. Capacities are the
+ * number of data bytes a block can hold, not counting its record header.
+ * <p>
+ * Not thread safe, the world file only touches it with its lock held.
+ */
+final class FreeSpaceMap {
+    private final TreeMap<Long, Long> byPosition = new TreeMap<Long, Long>();
+    private final List<TreeSet<Long>> bySize = Lists.newArrayListWithCapacity(64);
+    private long freeBytes;
+
+    FreeSpaceMap() {
+        for (int i = 0; i < 64; i++) {
+            bySize.add(new TreeSet<Long>());
+        }
+    }
+
+    void put(final long position, final long capacity) {
+        byPosition.put(position, capacity);
+        bySize.get(getSizeClass(capacity)).add(position);
+        freeBytes += WorldFile.HEADER_SIZE + capacity;
+    }
+
+    void remove(final long position) {
+        final Long capacity = byPosition.remove(position);
+        if (capacity != null) {
+            bySize.get(getSizeClass(capacity)).remove(position);
+            freeBytes -= WorldFile.HEADER_SIZE + capacity;
+        }
+    }
+
+    /**
+     * @return capacity of the free block at the position, or -1 if there is none
+     */
+    long getCapacity(final long position) {
+        final Long capacity = byPosition.get(position);
+        return capacity != null ? capacity : -1;
+    }
+
+    /**
+     * @return the closest free block before the position, or null
+     */
+    Map.Entry<Long, Long> getLower(final long position) {
+        return byPosition.lowerEntry(position);
+    }
+
+    /**
+     * Finds the lowest free block in the smallest size class that can hold the length.
+     *
+     * @param limit
+     *            only blocks that start before this position are considered
+     * @return position of the block, or -1 if none fits
+     */
+    long find(final int length, final long limit) {
+        for (int sizeClass = getSizeClass(length); sizeClass < bySize.size(); sizeClass++) {
+            for (final Long position : bySize.get(sizeClass).headSet(limit)) {
+                if (byPosition.get(position) >= length) {
+                    return position;
+                }
+            }
+        }
+        return -1;
+    }
+
+    Map<Long, Long> getBlocks() {
+        return byPosition;
+    }
+
+    int getCount() {
+        return byPosition.size();
+    }
+
+    /**
+     * @return bytes held by free blocks, headers included
+     */
+    long getFreeBytes() {
+        return freeBytes;
+    }
+
+    void clear() {
+        byPosition.clear();
+        for (final TreeSet<Long> positions : bySize) {
+            positions.clear();
+        }
+        freeBytes = 0;
+    }
+
+    private static int getSizeClass(final long capacity) {
+        return capacity <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(capacity - 1);
+    }
+}
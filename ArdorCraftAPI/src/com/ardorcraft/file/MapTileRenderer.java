@@ -0,0 +1,502 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.file;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import javax.imageio.ImageIO;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Headless renderer of top-down map tiles of a {@link WorldFile}. Every tile is a png of {@link #TILE_CHUNKS} by
+ * {@link #TILE_CHUNKS} chunks at one pixel per column, once colored by the top block of each column and once by its
+ * height. Level 0 holds the full resolution tiles, every level above it is made by halving the level below, up to the
+ * level where the whole map fits in two by two tiles, one tile if it does not cross the 0 lines. Tiles are stored as
+ * level/tileX_tileZ.png in a directory per kind, see {@link #getTileFile(String, int, int, int)}.
+ * <p>
+ * Columns are read from the {@link ChunkSummary} of each chunk, so chunks are only loaded if their summary is not kept
+ * with the map. Tiles are rendered in parallel, level by level.
+ * <p>
+ * Tiles are cached in their directory together with the chunk versions they were made from, see
+ * {@link WorldFile#getVersion(int, int)}. Rendering again only renders the tiles with changed, added or removed chunks,
+ * and the tiles above them. A map that had to be scanned gets new versions for all chunks and is rendered in full.
+ * <p>
+ * Usage: MapTileRenderer mapFile tileDirectory [width] [height] [threads]
+ */
+public class MapTileRenderer {
+    private static final Logger logger = Logger.getLogger(MapTileRenderer.class.getName());
+
+    /** Chunks along each side of a tile. */
+    public static final int TILE_CHUNKS = 16;
+    private static final int TILE_SHIFT = 4;
+    /** Tiles colored by the top block of each column. */
+    public static final String COLOR = "color";
+    /** Tiles shaded by the top of each column, from black at the bottom of the map to white at its top. */
+    public static final String HEIGHT = "height";
+
+    private static final String CACHE_FILE = "tiles.idx";
+    private static final int CACHE_IDENTIFIER = "ArdorCraft Map Tiles".hashCode();
+    private static final int CACHE_VERSION = 1;
+
+    private final WorldFile worldFile;
+    private final int width;
+    private final int height;
+    private final File directory;
+    private final int threads;
+    private final int tileSize;
+    private final int[] palette = createDefaultPalette();
+    private int levelCount;
+
+    /**
+     * @param width
+     *            chunk width in blocks
+     * @param height
+     *            chunk height in blocks
+     * @param directory
+     *            directory for the tiles and their cache index, created if missing
+     * @param threads
+     *            number of threads to render with
+     */
+    public MapTileRenderer(final WorldFile worldFile, final int width, final int height, final File directory,
+            final int threads) {
+        this.worldFile = worldFile;
+        this.width = width;
+        this.height = height;
+        this.directory = directory;
+        this.threads = threads;
+        tileSize = TILE_CHUNKS * width;
+        worldFile.setChunkSize(width, height);
+    }
+
+    /**
+     * Sets the colors of the block ids for {@link #COLOR} tiles. Changing them renders all tiles again.
+     *
+     * @param argb
+     *            color per block id, 256 entries
+     */
+    public void setPalette(final int[] argb) {
+        if (argb.length != palette.length) {
+            throw new IllegalArgumentException("Palette needs " + palette.length + " colors: " + argb.length);
+        }
+        System.arraycopy(argb, 0, palette, 0, palette.length);
+    }
+
+    /**
+     * @return colors for the blocks of the bundled block settings, random colors for other ids
+     */
+    public static int[] createDefaultPalette() {
+        final int[] palette = new int[256];
+        final Random rand = new Random(1337);
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = 0xff000000 | rand.nextInt(0x1000000);
+        }
+        palette[1] = 0xff7f7f7f; // stone
+        palette[2] = 0xff5f9f35; // grass
+        palette[3] = 0xff866043; // dirt
+        palette[4] = 0xff6f6f6f; // cobblestone
+        palette[7] = 0xff333333; // bedrock
+        palette[8] = palette[9] = palette[223] = 0xff2f4fbf; // water
+        palette[10] = palette[11] = 0xffcf5a10; // lava
+        palette[12] = 0xffdbd3a0; // sand
+        palette[13] = 0xff857e7c; // gravel
+        palette[17] = 0xff665132; // wood
+        palette[18] = 0xff3a7a20; // leaves
+        palette[24] = 0xffd8ce9a; // sandstone
+        palette[78] = palette[80] = 0xfff0fafa; // snow
+        return palette;
+    }
+
+    /**
+     * Renders the tiles of chunks that changed since the last render, and the levels above them.
+     *
+     * @return number of tiles rendered
+     */
+    public int render() throws IOException {
+        final long start = System.nanoTime();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create tile directory: " + directory);
+        }
+        final List<Map<Long, Long>> cached = readCache();
+
+        // versions are read before the chunks, so a chunk changing while rendering is rendered again next time
+        Map<Long, Long> versions = Maps.newHashMap();
+        final Map<Long, List<Long>> chunksPerTile = Maps.newHashMap();
+        for (final Long key : worldFile.getKeys()) {
+            final int x = WorldFile.getCoordinateX(key);
+            final int z = WorldFile.getCoordinateZ(key);
+            final long version = worldFile.getVersion(x, z);
+            if (version == 0) {
+                continue;
+            }
+            final long tileKey = WorldFile.getKey(x >> TILE_SHIFT, z >> TILE_SHIFT);
+            final Long tileVersion = versions.get(tileKey);
+            versions.put(tileKey, (tileVersion != null ? tileVersion : 0) + mix(key, version));
+            List<Long> chunks = chunksPerTile.get(tileKey);
+            if (chunks == null) {
+                chunks = Lists.newArrayList();
+                chunksPerTile.put(tileKey, chunks);
+            }
+            chunks.add(key);
+        }
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "mapTileRenderer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        final List<Map<Long, Long>> rendered = Lists.newArrayList();
+        int renderCount = 0;
+        int tileCount = 0;
+        try {
+            for (int level = 0;; level++) {
+                final Map<Long, Long> previous = level < cached.size() ? cached.get(level) : null;
+                final List<Future<Void>> tasks = Lists.newArrayList();
+                for (final Entry<Long, Long> entry : versions.entrySet()) {
+                    final long tileKey = entry.getKey();
+                    if (previous != null && entry.getValue().equals(previous.get(tileKey))) {
+                        continue;
+                    }
+                    final int tileX = WorldFile.getCoordinateX(tileKey);
+                    final int tileZ = WorldFile.getCoordinateZ(tileKey);
+                    final int tileLevel = level;
+                    final List<Long> chunks = level == 0 ? chunksPerTile.get(tileKey) : null;
+                    tasks.add(executor.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            if (chunks != null) {
+                                renderTile(tileX, tileZ, chunks);
+                            } else {
+                                downsampleTile(tileLevel, tileX, tileZ);
+                            }
+                            return null;
+                        }
+                    }));
+                }
+                waitFor(tasks);
+                renderCount += tasks.size();
+                tileCount += versions.size();
+                rendered.add(versions);
+                if (previous != null) {
+                    deleteTiles(level, previous, versions);
+                }
+                if (fitsTwoByTwo(versions.keySet())) {
+                    break;
+                }
+
+                final Map<Long, Long> parents = Maps.newHashMap();
+                for (final Entry<Long, Long> entry : versions.entrySet()) {
+                    final int tileX = WorldFile.getCoordinateX(entry.getKey());
+                    final int tileZ = WorldFile.getCoordinateZ(entry.getKey());
+                    final long parentKey = WorldFile.getKey(tileX >> 1, tileZ >> 1);
+                    final Long parentVersion = parents.get(parentKey);
+                    parents.put(parentKey, (parentVersion != null ? parentVersion : 0)
+                            + mix(entry.getKey(), entry.getValue()));
+                }
+                versions = parents;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        for (int level = rendered.size(); level < cached.size(); level++) {
+            deleteTiles(level, cached.get(level), null);
+        }
+        levelCount = rendered.size();
+        writeCache(rendered);
+
+        logger.info(String.format("Rendered %d of %d map tiles in %d levels (%.0f ms)", renderCount, tileCount,
+                levelCount, (System.nanoTime() - start) / 1e6));
+        return renderCount;
+    }
+
+    /**
+     * @return number of levels of the last render, 0 before the first one
+     */
+    public int getLevelCount() {
+        return levelCount;
+    }
+
+    /**
+     * @param kind
+     *            {@link #COLOR} or {@link #HEIGHT}
+     * @return png of the tile, that covers chunks tileX * {@link #TILE_CHUNKS} << level and up along x, and the same
+     *         along z. The file does not exist if there are no chunks there
+     */
+    public File getTileFile(final String kind, final int level, final int tileX, final int tileZ) {
+        return new File(directory, kind + File.separator + level + File.separator + tileX + "_" + tileZ + ".png");
+    }
+
+    private void renderTile(final int tileX, final int tileZ, final List<Long> chunks) throws IOException {
+        final int[] color = new int[tileSize * tileSize];
+        final int[] shade = new int[tileSize * tileSize];
+        for (final Long key : chunks) {
+            final int x = WorldFile.getCoordinateX(key);
+            final int z = WorldFile.getCoordinateZ(key);
+            final ChunkSummary summary = worldFile.getSummary(x, z);
+            if (summary == null || summary.getWidth() != width) {
+                continue;
+            }
+            final int offset = (x - (tileX << TILE_SHIFT)) * width + (z - (tileZ << TILE_SHIFT)) * width * tileSize;
+            for (int zz = 0; zz < width; zz++) {
+                for (int xx = 0; xx < width; xx++) {
+                    final int top = summary.getTopHeight(xx, zz);
+                    final int gray = top * 255 / height;
+                    shade[offset + xx + zz * tileSize] = 0xff000000 | gray << 16 | gray << 8 | gray;
+                    color[offset + xx + zz * tileSize] = top > 0 ? scale(palette[summary.getTopBlock(xx, zz)],
+                            0.6f + 0.4f * top / height) : 0xff000000;
+                }
+            }
+        }
+        writeTile(COLOR, 0, tileX, tileZ, color);
+        writeTile(HEIGHT, 0, tileX, tileZ, shade);
+    }
+
+    private void downsampleTile(final int level, final int tileX, final int tileZ) throws IOException {
+        for (final String kind : new String[] { COLOR, HEIGHT }) {
+            final int[] pixels = new int[tileSize * tileSize];
+            final int[] child = new int[tileSize * tileSize];
+            for (int i = 0; i < 4; i++) {
+                final File file = getTileFile(kind, level - 1, tileX * 2 + (i & 1), tileZ * 2 + (i >> 1));
+                if (!file.exists()) {
+                    continue;
+                }
+                final BufferedImage image = ImageIO.read(file);
+                if (image == null || image.getWidth() != tileSize || image.getHeight() != tileSize) {
+                    throw new IOException("Bad map tile: " + file);
+                }
+                image.getRGB(0, 0, tileSize, tileSize, child, 0, tileSize);
+                final int offset = (i & 1) * tileSize / 2 + (i >> 1) * tileSize / 2 * tileSize;
+                for (int z = 0; z < tileSize / 2; z++) {
+                    for (int x = 0; x < tileSize / 2; x++) {
+                        final int source = x * 2 + z * 2 * tileSize;
+                        pixels[offset + x + z * tileSize] = average(child[source], child[source + 1],
+                                child[source + tileSize], child[source + tileSize + 1]);
+                    }
+                }
+            }
+            writeTile(kind, level, tileX, tileZ, pixels);
+        }
+    }
+
+    private void writeTile(final String kind, final int level, final int tileX, final int tileZ, final int[] pixels)
+            throws IOException {
+        final BufferedImage image = new BufferedImage(tileSize, tileSize, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, tileSize, tileSize, pixels, 0, tileSize);
+        final File file = getTileFile(kind, level, tileX, tileZ);
+        final File parent = file.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Could not create tile directory: " + parent);
+        }
+        if (!ImageIO.write(image, "png", file)) {
+            throw new IOException("No png writer for map tile: " + file);
+        }
+    }
+
+    /**
+     * Deletes the tiles of a level that are not in the current render.
+     */
+    private void deleteTiles(final int level, final Map<Long, Long> previous, final Map<Long, Long> current) {
+        for (final Long tileKey : previous.keySet()) {
+            if (current != null && current.containsKey(tileKey)) {
+                continue;
+            }
+            for (final String kind : new String[] { COLOR, HEIGHT }) {
+                final File file = getTileFile(kind, level, WorldFile.getCoordinateX(tileKey),
+                        WorldFile.getCoordinateZ(tileKey));
+                if (!file.delete() && file.exists()) {
+                    logger.warning("Could not delete map tile: " + file);
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads the tile versions of the last render. Tiles of a cache that cannot be read are rendered again.
+     */
+    private List<Map<Long, Long>> readCache() {
+        final List<Map<Long, Long>> levels = Lists.newArrayList();
+        final File file = new File(directory, CACHE_FILE);
+        if (!file.exists()) {
+            return levels;
+        }
+        try {
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != CACHE_IDENTIFIER || in.readInt() != CACHE_VERSION || in.readInt() != width
+                        || in.readInt() != height || in.readInt() != Arrays.hashCode(palette)) {
+                    logger.info("Map tiles were rendered with other settings, rendering all");
+                    return levels;
+                }
+                final int count = in.readInt();
+                for (int level = 0; level < count; level++) {
+                    final int tiles = in.readInt();
+                    final Map<Long, Long> versions = Maps.newHashMap();
+                    for (int i = 0; i < tiles; i++) {
+                        versions.put(in.readLong(), in.readLong());
+                    }
+                    levels.add(versions);
+                }
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            logger.warning("Could not read map tile cache, rendering all: " + e.getMessage());
+            levels.clear();
+        }
+        return levels;
+    }
+
+    private void writeCache(final List<Map<Long, Long>> levels) throws IOException {
+        final File file = new File(directory, CACHE_FILE);
+        final File tmpFile = new File(directory, CACHE_FILE + ".tmp");
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+        try {
+            out.writeInt(CACHE_IDENTIFIER);
+            out.writeInt(CACHE_VERSION);
+            out.writeInt(width);
+            out.writeInt(height);
+            out.writeInt(Arrays.hashCode(palette));
+            out.writeInt(levels.size());
+            for (final Map<Long, Long> versions : levels) {
+                out.writeInt(versions.size());
+                for (final Entry<Long, Long> entry : versions.entrySet()) {
+                    out.writeLong(entry.getKey());
+                    out.writeLong(entry.getValue());
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmpFile.renameTo(file)) {
+            // renameTo does not replace existing files on all platforms
+            file.delete();
+            if (!tmpFile.renameTo(file)) {
+                tmpFile.delete();
+                throw new IOException("Could not move " + tmpFile + " to " + file);
+            }
+        }
+    }
+
+    /**
+     * @return true if the tiles are within two by two tiles. Halving further does not join tiles on both sides of 0
+     */
+    private static boolean fitsTwoByTwo(final Set<Long> tileKeys) {
+        int minX = Integer.MAX_VALUE;
+        int maxX = Integer.MIN_VALUE;
+        int minZ = Integer.MAX_VALUE;
+        int maxZ = Integer.MIN_VALUE;
+        for (final Long tileKey : tileKeys) {
+            minX = Math.min(minX, WorldFile.getCoordinateX(tileKey));
+            maxX = Math.max(maxX, WorldFile.getCoordinateX(tileKey));
+            minZ = Math.min(minZ, WorldFile.getCoordinateZ(tileKey));
+            maxZ = Math.max(maxZ, WorldFile.getCoordinateZ(tileKey));
+        }
+        return (long) maxX - minX <= 1 && (long) maxZ - minZ <= 1;
+    }
+
+    private static void waitFor(final List<Future<Void>> tasks) throws IOException {
+        try {
+            for (final Future<Void> task : tasks) {
+                task.get();
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while rendering map tiles");
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Could not render map tile: " + cause);
+        }
+    }
+
+    /**
+     * Version of a tile is the sum of this over its chunks or child tiles, so it does not depend on their order.
+     */
+    private static long mix(final long key, final long version) {
+        long h = key * 0x9e3779b97f4a7c15L ^ version;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static int scale(final int argb, final float factor) {
+        final int red = (int) ((argb >> 16 & 0xff) * factor);
+        final int green = (int) ((argb >> 8 & 0xff) * factor);
+        final int blue = (int) ((argb & 0xff) * factor);
+        return argb & 0xff000000 | red << 16 | green << 8 | blue;
+    }
+
+    /**
+     * @return average of the pixels that are not transparent, transparent if all are
+     */
+    private static int average(final int... pixels) {
+        int count = 0;
+        int red = 0;
+        int green = 0;
+        int blue = 0;
+        for (final int pixel : pixels) {
+            if (pixel >>> 24 != 0) {
+                count++;
+                red += pixel >> 16 & 0xff;
+                green += pixel >> 8 & 0xff;
+                blue += pixel & 0xff;
+            }
+        }
+        return count == 0 ? 0 : 0xff000000 | red / count << 16 | green / count << 8 | blue / count;
+    }
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: MapTileRenderer mapFile tileDirectory [width] [height] [threads]");
+            return;
+        }
+        final int width = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+        final int height = args.length > 3 ? Integer.parseInt(args[3]) : 128;
+        final int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+
+        final WorldFile worldFile = new WorldFile(new File(args[0]));
+        try {
+            final MapTileRenderer renderer = new MapTileRenderer(worldFile, width, height, new File(args[1]), threads);
+            final long start = System.nanoTime();
+            final int rendered = renderer.render();
+            System.out.println(String.format("%d tiles rendered in %d levels (%.0f ms)", rendered, renderer
+                    .getLevelCount(), (System.nanoTime() - start) / 1e6));
+        } finally {
+            worldFile.close();
+        }
+    }
+}
@@ -0,0 +1,550 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Logger;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Map storage sharded into region files of 32x32 chunks, for maps too big for a single {@link WorldFile}. Each region
+ * is a world file of its own (r.x.z.acr in the map directory, with its own index sidecar, journal and lock), so opening
+ * a region, its index in memory and a {@link #compact(int)} or remap of it only cost as much as the region.
+ * <p>
+ * Regions are opened on first use and kept in a bounded LRU. The least recently used region that no thread is using is
+ * closed when the limit is passed, so memory and open files follow the area being played rather than the size of the
+ * world. Region files are only created by saves, lookups of chunks in missing regions do not touch the disk beyond
+ * checking that the file is not there.
+ * <p>
+ * Regions are opened and closed outside the lock of the LRU, so opening a region, which can mean scanning it and
+ * replaying its journal, only holds up the threads that use that region.
+ */
+public final class RegionWorldFile implements WorldStorage {
+    private static final Logger logger = Logger.getLogger(RegionWorldFile.class.getName());
+
+    private static final int REGION_SHIFT = 5;
+    private static final int DEFAULT_MAX_OPEN_REGIONS = 64;
+
+    private final File directory;
+    private final int maxOpenRegions;
+    private final boolean memoryMapped;
+    /** Open regions and regions being opened, in access order. Guarded by itself. */
+    private final LinkedHashMap<Long, Region> regions = new LinkedHashMap<Long, Region>(16, 0.75f, true);
+    /** Regions evicted and still being closed. Guarded by regions. */
+    private final Map<Long, Region> closing = Maps.newHashMap();
+    private volatile ChunkCodec codec = new DeflateCodec();
+    private volatile int journalWidth;
+    private volatile int journalHeight;
+    private volatile boolean closed;
+
+    public RegionWorldFile(final File directory) throws IOException {
+        this(directory, DEFAULT_MAX_OPEN_REGIONS, false);
+    }
+
+    /**
+     * @param maxOpenRegions
+     *            regions kept open, more are only open while threads use them
+     * @param memoryMapped
+     *            true to open the region files memory mapped, see {@link WorldFile#WorldFile(File, boolean)}
+     */
+    public RegionWorldFile(final File directory, final int maxOpenRegions, final boolean memoryMapped)
+            throws IOException {
+        if (maxOpenRegions < 1) {
+            throw new IllegalArgumentException("maxOpenRegions must be at least 1: " + maxOpenRegions);
+        }
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create map directory: " + directory);
+        }
+        this.directory = directory;
+        this.maxOpenRegions = maxOpenRegions;
+        this.memoryMapped = memoryMapped;
+    }
+
+    public static int getRegionCoordinate(final int chunkCoordinate) {
+        return chunkCoordinate >> REGION_SHIFT;
+    }
+
+    public File getRegionFile(final int regionX, final int regionZ) {
+        return new File(directory, "r." + regionX + "." + regionZ + ".acr");
+    }
+
+    /**
+     * @return number of regions open at the moment
+     */
+    public int getOpenRegionCount() {
+        synchronized (regions) {
+            return regions.size();
+        }
+    }
+
+    @Override
+    public boolean contains(final int x, final int z) {
+        try {
+            final Region region = acquire(x, z, false);
+            if (region == null) {
+                return false;
+            }
+            try {
+                return region.worldFile.contains(x, z);
+            } finally {
+                release(region);
+            }
+        } catch (final IOException e) {
+            logger.warning("Could not open region for chunk " + x + "," + z + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public long getVersion(final int x, final int z) {
+        try {
+            final Region region = acquire(x, z, false);
+            if (region == null) {
+                return 0;
+            }
+            try {
+                return region.worldFile.getVersion(x, z);
+            } finally {
+                release(region);
+            }
+        } catch (final IOException e) {
+            logger.warning("Could not open region for chunk " + x + "," + z + ": " + e.getMessage());
+            return 0;
+        }
+    }
+
+    @Override
+    public ChunkSummary getSummary(final int x, final int z) throws IOException {
+        final Region region = acquire(x, z, false);
+        if (region == null) {
+            return null;
+        }
+        try {
+            return region.worldFile.getSummary(x, z);
+        } finally {
+            release(region);
+        }
+    }
+
+    @Override
+    public byte[] load(final int x, final int z) throws IOException {
+        final Region region = acquire(x, z, false);
+        if (region == null) {
+            return null;
+        }
+        try {
+            return region.worldFile.contains(x, z) ? region.worldFile.load(x, z) : null;
+        } finally {
+            release(region);
+        }
+    }
+
+    @Override
+    public int load(final int x, final int z, final byte[] target) throws IOException {
+        final Region region = acquire(x, z, false);
+        if (region == null) {
+            return -1;
+        }
+        try {
+            return region.worldFile.load(x, z, target);
+        } finally {
+            release(region);
+        }
+    }
+
+    @Override
+    public EncodedChunk loadEncoded(final int x, final int z) throws IOException {
+        final Region region = acquire(x, z, false);
+        if (region == null) {
+            return null;
+        }
+        try {
+            return region.worldFile.loadEncoded(x, z);
+        } finally {
+            release(region);
+        }
+    }
+
+    @Override
+    public void save(final int x, final int z, final byte[] data) throws IOException {
+        save(x, z, data, Long.MAX_VALUE);
+    }
+
+    @Override
+    public void save(final int x, final int z, final byte[] data, final long coveredSequence) throws IOException {
+        final Region region = acquire(x, z, true);
+        try {
+            region.worldFile.save(x, z, data, coveredSequence);
+        } finally {
+            release(region);
+        }
+    }
+
+    @Override
+    public void setCodec(final ChunkCodec codec) {
+        this.codec = codec;
+        final List<Region> open = acquireOpenRegions();
+        try {
+            for (final Region region : open) {
+                region.worldFile.setCodec(codec);
+            }
+        } finally {
+            release(open);
+        }
+    }
+
+    @Override
+    public ChunkCodec getCodec() {
+        return codec;
+    }
+
+    @Override
+    public void enableJournal(final int width, final int height) throws IOException {
+        journalWidth = width;
+        journalHeight = height;
+        final List<Region> open = acquireOpenRegions();
+        try {
+            for (final Region region : open) {
+                region.worldFile.enableJournal(width, height);
+            }
+        } finally {
+            release(open);
+        }
+    }
+
+    @Override
+    public void appendEdit(final int x, final int y, final int z, final int blockId, final int orientation)
+            throws IOException {
+        if (journalWidth == 0) {
+            throw new IllegalStateException("The map journal is not enabled");
+        }
+        final Region region = acquire(floorDiv(x, journalWidth), floorDiv(z, journalWidth), true);
+        try {
+            region.worldFile.appendEdit(x, y, z, blockId, orientation);
+        } finally {
+            release(region);
+        }
+    }
+
+    @Override
+    public void flushJournal() throws IOException {
+        final List<Region> open = acquireOpenRegions();
+        try {
+            for (final Region region : open) {
+                region.worldFile.flushJournal();
+            }
+        } finally {
+            release(open);
+        }
+    }
+
+    /**
+     * Every region has its own journal, so sequences are only comparable within a region.
+     */
+    @Override
+    public long getJournalSequence(final int x, final int z) throws IOException {
+        final Region region = acquire(x, z, true);
+        try {
+            return region.worldFile.getJournalSequence();
+        } finally {
+            release(region);
+        }
+    }
+
+    /**
+     * Compacts the open region with the most free space.
+     */
+    @Override
+    public int compact(final int maxRecords) throws IOException {
+        final List<Region> open = acquireOpenRegions();
+        try {
+            WorldFile best = null;
+            long bestFree = 0;
+            for (final Region region : open) {
+                final long free = region.worldFile.getFreeBytes();
+                if (free > bestFree) {
+                    best = region.worldFile;
+                    bestFree = free;
+                }
+            }
+            return best != null ? best.compact(maxRecords) : 0;
+        } finally {
+            release(open);
+        }
+    }
+
+    @Override
+    public long getFreeBytes() {
+        final List<Region> open = acquireOpenRegions();
+        try {
+            long free = 0;
+            for (final Region region : open) {
+                free += region.worldFile.getFreeBytes();
+            }
+            return free;
+        } finally {
+            release(open);
+        }
+    }
+
+    @Override
+    public long size() throws IOException {
+        final List<Region> open = acquireOpenRegions();
+        try {
+            long size = 0;
+            for (final Region region : open) {
+                size += region.worldFile.size();
+            }
+            return size;
+        } finally {
+            release(open);
+        }
+    }
+
+    @Override
+    public void checkpoint() throws IOException {
+        final List<Region> open = acquireOpenRegions();
+        try {
+            for (final Region region : open) {
+                region.worldFile.checkpoint();
+            }
+        } finally {
+            release(open);
+        }
+    }
+
+    /**
+     * Closes all regions, call it once no other thread uses the map any more.
+     */
+    @Override
+    public void close() throws IOException {
+        final List<Region> open;
+        final List<Region> evicted;
+        synchronized (regions) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            open = Lists.newArrayList(regions.values());
+            evicted = Lists.newArrayList(closing.values());
+            regions.clear();
+        }
+        IOException failure = null;
+        for (final Region region : open) {
+            Uninterruptibles.awaitUninterruptibly(region.opened);
+            if (region.worldFile != null) {
+                try {
+                    region.worldFile.close();
+                } catch (final IOException e) {
+                    failure = e;
+                }
+            }
+        }
+        for (final Region region : evicted) {
+            Uninterruptibles.awaitUninterruptibly(region.closed);
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Opens the region of a chunk, or finds it open, and marks it used until {@link #release(Region)}.
+     *
+     * @param create
+     *            false to return null instead of creating a missing region file
+     */
+    private Region acquire(final int chunkX, final int chunkZ, final boolean create) throws IOException {
+        final int regionX = getRegionCoordinate(chunkX);
+        final int regionZ = getRegionCoordinate(chunkZ);
+        final long key = WorldFile.getKey(regionX, regionZ);
+        final File file = getRegionFile(regionX, regionZ);
+
+        Region region;
+        final List<Region> evicted;
+        synchronized (regions) {
+            if (closed) {
+                throw new IOException("Map is closed");
+            }
+            region = regions.get(key);
+            if (region == null) {
+                if (!create && !file.isFile()) {
+                    return null;
+                }
+                evicted = evict(maxOpenRegions - 1);
+                region = new Region(key, file, closing.get(key));
+                regions.put(key, region);
+            } else {
+                evicted = null;
+            }
+            region.users++;
+        }
+
+        if (evicted == null) {
+            Uninterruptibles.awaitUninterruptibly(region.opened);
+            if (region.worldFile == null) {
+                release(region);
+                throw new IOException("Could not open region file " + file, region.failure);
+            }
+            return region;
+        }
+
+        for (final Region old : evicted) {
+            closeRegion(old);
+        }
+        try {
+            // a region evicted a moment ago is never open twice
+            if (region.previous != null) {
+                Uninterruptibles.awaitUninterruptibly(region.previous.closed);
+                region.previous = null;
+            }
+            region.worldFile = open(file);
+        } catch (final IOException e) {
+            region.failure = e;
+            throw e;
+        } finally {
+            if (region.worldFile == null) {
+                synchronized (regions) {
+                    if (regions.get(key) == region) {
+                        regions.remove(key);
+                    }
+                    region.users--;
+                }
+            }
+            region.opened.countDown();
+        }
+        return region;
+    }
+
+    private void release(final Region region) {
+        synchronized (regions) {
+            region.users--;
+        }
+    }
+
+    /**
+     * Takes least recently used regions nobody is using out of the LRU until at most the given number are left. Must
+     * be called with the regions lock held.
+     *
+     * @return the regions taken out, to close with {@link #closeRegion(Region)} once the lock is released
+     */
+    private List<Region> evict(final int limit) {
+        final List<Region> evicted = Lists.newArrayList();
+        final Iterator<Region> iterator = regions.values().iterator();
+        while (regions.size() > limit && iterator.hasNext()) {
+            final Region region = iterator.next();
+            if (region.users == 0) {
+                iterator.remove();
+                closing.put(region.key, region);
+                evicted.add(region);
+            }
+        }
+        return evicted;
+    }
+
+    private void closeRegion(final Region region) {
+        try {
+            region.worldFile.close();
+        } catch (final IOException e) {
+            logger.warning("Could not close region file " + region.file + ": " + e.getMessage());
+        } finally {
+            region.closed.countDown();
+            synchronized (regions) {
+                if (closing.get(region.key) == region) {
+                    closing.remove(region.key);
+                }
+            }
+        }
+    }
+
+    private WorldFile open(final File file) throws IOException {
+        final WorldFile worldFile;
+        try {
+            worldFile = new WorldFile(file, memoryMapped);
+        } catch (final IOException e) {
+            throw e;
+        } catch (final Exception e) {
+            throw new IOException("Could not open region file " + file, e);
+        }
+        worldFile.setCodec(codec);
+        if (journalWidth != 0) {
+            worldFile.enableJournal(journalWidth, journalHeight);
+        }
+        return worldFile;
+    }
+
+    /**
+     * Waits for regions being opened.
+     *
+     * @return the open regions, marked used until {@link #release(List)}
+     */
+    private List<Region> acquireOpenRegions() {
+        final List<Region> open;
+        synchronized (regions) {
+            open = Lists.newArrayList(regions.values());
+            for (final Region region : open) {
+                region.users++;
+            }
+        }
+        final Iterator<Region> iterator = open.iterator();
+        while (iterator.hasNext()) {
+            final Region region = iterator.next();
+            Uninterruptibles.awaitUninterruptibly(region.opened);
+            if (region.worldFile == null) {
+                iterator.remove();
+                release(region);
+            }
+        }
+        return open;
+    }
+
+    private void release(final List<Region> open) {
+        synchronized (regions) {
+            for (final Region region : open) {
+                region.users--;
+            }
+        }
+    }
+
+    private static int floorDiv(final int value, final int divisor) {
+        return value >= 0 ? value / divisor : -((-value - 1) / divisor) - 1;
+    }
+
+    private static final class Region {
+        private final long key;
+        private final File file;
+        /**
+         * The region's previous instance, evicted and possibly still being closed, or null. Cleared once closed so
+         * instances do not chain up.
+         */
+        private Region previous;
+        /** Counted down once the region is open, or failed to open. */
+        private final CountDownLatch opened = new CountDownLatch(1);
+        /** Counted down once the region is closed after it was evicted. */
+        private final CountDownLatch closed = new CountDownLatch(1);
+        /** Set before opened is counted down, null if opening failed. */
+        private volatile WorldFile worldFile;
+        private volatile IOException failure;
+        /** Threads using the region, it is only evicted when there are none. Guarded by regions. */
+        private int users;
+
+        private Region(final long key, final File file, final Region previous) {
+            this.key = key;
+            this.file = file;
+            this.previous = previous;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.file;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Record type for chunks where every horizontal layer is a single block, like chunks of only sky or only stone, or
+ * the layers of a flat world. Stores one block value per layer, or a single value if the whole chunk is one block, and
+ * decodes by filling rows, without inflating anything. {@link WorldFile} stores such chunks with this codec whatever
+ * codec is set for saving, see {@link #isUniform(byte[], int)}.
+ * <p>
+ * With a section codec set, chunks that are only uniform in some vertical sections of
+ * {@link ChunkSummary#SECTION_HEIGHT} layers, like terrain under open sky, are stored per section: uniform sections
+ * as above, the other sections compressed with the section codec. Only those sections are inflated when loading, see
+ * {@link #hasUniformSections(byte[], int)}.
+ * <p>
+ * Layout: decoded length (int), width (int), height (int), then the block value of the whole chunk (byte) or of each
+ * layer bottom to top (height bytes). Other data is stored with a layout of one block per layer, as a plain copy.
+ * Chunks stored per section have the width negated, and then per section bottom to top a kind (byte) followed by the
+ * block value of the section (byte), of each of its layers (bytes), or the codec id (byte), length (int) and data of
+ * the section compressed in the chunk layout.
+ */
+public class UniformCodec implements ChunkCodec {
+    private static final int HEADER_SIZE = 12;
+    private static final byte SECTION_SINGLE = 0;
+    private static final byte SECTION_LAYERED = 1;
+    private static final byte SECTION_CODED = 2;
+
+    private final int width;
+    private final int height;
+    private final ChunkCodec sectionCodec;
+
+    /**
+     * @param width
+     *            chunk width in blocks, or 0 to only find chunks of a single block
+     * @param height
+     *            chunk height in blocks, or 0 to only find chunks of a single block
+     */
+    public UniformCodec(final int width, final int height) {
+        this(width, height, null);
+    }
+
+    /**
+     * @param sectionCodec
+     *            codec for the sections that are not uniform, or null to only store whole chunks
+     */
+    public UniformCodec(final int width, final int height, final ChunkCodec sectionCodec) {
+        this.width = width;
+        this.height = height;
+        this.sectionCodec = sectionCodec != null && sectionCodec.getId() != ChunkCodecs.UNIFORM ? sectionCodec
+                : null;
+    }
+
+    @Override
+    public int getId() {
+        return ChunkCodecs.UNIFORM;
+    }
+
+    /**
+     * @return true if the data is a single block, or with the chunk size set a chunk of single block layers, so it
+     *         encodes to a few bytes
+     */
+    public boolean isUniform(final byte[] data, final int length) {
+        return isSingleBlock(data, length) || hasChunkLayout(length) && isLayered(data, 0, height);
+    }
+
+    /**
+     * @return true if a section codec is set and at least half of the sections of the chunk are uniform, so storing
+     *         it per section saves inflating them
+     */
+    public boolean hasUniformSections(final byte[] data, final int length) {
+        if (sectionCodec == null || !hasChunkLayout(length)) {
+            return false;
+        }
+        final int sections = getSectionCount();
+        int uniform = 0;
+        for (int section = 0; section < sections; section++) {
+            final int start = section * ChunkSummary.SECTION_HEIGHT;
+            if (isLayered(data, start, getSectionEnd(start))) {
+                uniform++;
+            } else if ((section - uniform + 1) * 2 > sections) {
+                return false;
+            }
+        }
+        return uniform * 2 >= sections;
+    }
+
+    private int getSectionCount() {
+        return (height + ChunkSummary.SECTION_HEIGHT - 1) / ChunkSummary.SECTION_HEIGHT;
+    }
+
+    private int getSectionEnd(final int start) {
+        return Math.min(start + ChunkSummary.SECTION_HEIGHT, height);
+    }
+
+    private static boolean isSingleBlock(final byte[] data, final int length) {
+        for (int i = 1; i < length; i++) {
+            if (data[i] != data[0]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasChunkLayout(final int length) {
+        return width > 0 && height > 0 && (long) width * width * height == length;
+    }
+
+    /**
+     * @return true if every layer from start to end is a single block
+     */
+    private boolean isLayered(final byte[] data, final int start, final int end) {
+        // layer by layer, so a chunk that is not returns at the first mixed layer
+        for (int y = start; y < end; y++) {
+            final byte value = data[y * width];
+            for (int z = 0; z < width; z++) {
+                final int row = (y + z * height) * width;
+                for (int x = 0; x < width; x++) {
+                    if (data[row + x] != value) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the layers from start to end are all the same block
+     */
+    private boolean isSameBlock(final byte[] data, final int start, final int end) {
+        for (int y = start + 1; y < end; y++) {
+            if (data[y * width] != data[start * width]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public byte[] encode(final byte[] data, final int length) {
+        final byte[] encoded;
+        if (isSingleBlock(data, length)) {
+            encoded = new byte[HEADER_SIZE + (length > 0 ? 1 : 0)];
+            FastLzCodec.writeInt(encoded, 4, 1);
+            FastLzCodec.writeInt(encoded, 8, length);
+            if (length > 0) {
+                encoded[HEADER_SIZE] = data[0];
+            }
+        } else if (hasChunkLayout(length) && isLayered(data, 0, height)) {
+            encoded = new byte[HEADER_SIZE + height];
+            FastLzCodec.writeInt(encoded, 4, width);
+            FastLzCodec.writeInt(encoded, 8, height);
+            for (int y = 0; y < height; y++) {
+                encoded[HEADER_SIZE + y] = data[y * width];
+            }
+        } else if (sectionCodec != null && hasChunkLayout(length)) {
+            encoded = encodeSections(data);
+        } else {
+            encoded = new byte[HEADER_SIZE + length];
+            FastLzCodec.writeInt(encoded, 4, 1);
+            FastLzCodec.writeInt(encoded, 8, length);
+            System.arraycopy(data, 0, encoded, HEADER_SIZE, length);
+        }
+        FastLzCodec.writeInt(encoded, 0, length);
+        return encoded;
+    }
+
+    private byte[] encodeSections(final byte[] data) {
+        final int sections = getSectionCount();
+        final byte[][] coded = new byte[sections][];
+        int size = HEADER_SIZE;
+        for (int section = 0; section < sections; section++) {
+            final int start = section * ChunkSummary.SECTION_HEIGHT;
+            final int end = getSectionEnd(start);
+            if (!isLayered(data, start, end)) {
+                final byte[] sectionData = new byte[width * width * (end - start)];
+                for (int z = 0; z < width; z++) {
+                    System.arraycopy(data, (start + z * height) * width, sectionData, z * (end - start) * width,
+                            (end - start) * width);
+                }
+                coded[section] = sectionCodec.encode(sectionData, sectionData.length);
+                size += 6 + coded[section].length;
+            } else {
+                size += isSameBlock(data, start, end) ? 2 : 1 + end - start;
+            }
+        }
+
+        final byte[] encoded = new byte[size];
+        FastLzCodec.writeInt(encoded, 4, -width);
+        FastLzCodec.writeInt(encoded, 8, height);
+        int position = HEADER_SIZE;
+        for (int section = 0; section < sections; section++) {
+            final int start = section * ChunkSummary.SECTION_HEIGHT;
+            final int end = getSectionEnd(start);
+            if (coded[section] != null) {
+                encoded[position++] = SECTION_CODED;
+                encoded[position++] = (byte) sectionCodec.getId();
+                FastLzCodec.writeInt(encoded, position, coded[section].length);
+                System.arraycopy(coded[section], 0, encoded, position + 4, coded[section].length);
+                position += 4 + coded[section].length;
+            } else if (isSameBlock(data, start, end)) {
+                encoded[position++] = SECTION_SINGLE;
+                encoded[position++] = data[start * width];
+            } else {
+                encoded[position++] = SECTION_LAYERED;
+                for (int y = start; y < end; y++) {
+                    encoded[position++] = data[y * width];
+                }
+            }
+        }
+        return encoded;
+    }
+
+    @Override
+    public byte[] decode(final byte[] source, final int offset, final int length) throws IOException {
+        final byte[] target = new byte[readLength(source, offset, length)];
+        decode(source, offset, length, target);
+        return target;
+    }
+
+    @Override
+    public int decode(final byte[] source, final int offset, final int length, final byte[] target)
+            throws IOException {
+        final int decodedLength = readLength(source, offset, length);
+        if (decodedLength > target.length) {
+            throw new IOException("Decoded data does not fit in " + target.length + " bytes: " + decodedLength);
+        }
+        final int layerWidth = FastLzCodec.readInt(source, offset + 4);
+        final int layerCount = FastLzCodec.readInt(source, offset + 8);
+        final int values = length - HEADER_SIZE;
+        if (layerWidth < 0) {
+            decodeSections(source, offset + HEADER_SIZE, offset + length, -layerWidth, layerCount, target);
+        } else if (values == 1) {
+            Arrays.fill(target, 0, decodedLength, source[offset + HEADER_SIZE]);
+        } else if (values == layerCount) {
+            fillLayers(source, offset + HEADER_SIZE, target, layerWidth, layerCount, 0, layerCount);
+        } else if (values != 0 || decodedLength != 0) {
+            throw new IOException("Bad uniform data: " + values + " values for " + layerCount + " layers");
+        }
+        return decodedLength;
+    }
+
+    private static void decodeSections(final byte[] source, final int start, final int end, final int layerWidth,
+            final int layerCount, final byte[] target) throws IOException {
+        int position = start;
+        for (int y = 0; y < layerCount; y += ChunkSummary.SECTION_HEIGHT) {
+            final int layers = Math.min(ChunkSummary.SECTION_HEIGHT, layerCount - y);
+            if (position >= end) {
+                throw new IOException("Uniform sections end at layer " + y + " of " + layerCount);
+            }
+            final byte kind = source[position++];
+            if (kind == SECTION_SINGLE && position < end) {
+                final byte value = source[position++];
+                for (int z = 0; z < layerWidth; z++) {
+                    final int row = (y + z * layerCount) * layerWidth;
+                    Arrays.fill(target, row, row + layers * layerWidth, value);
+                }
+            } else if (kind == SECTION_LAYERED && position + layers <= end) {
+                fillLayers(source, position - y, target, layerWidth, layerCount, y, y + layers);
+                position += layers;
+            } else if (kind == SECTION_CODED && position + 5 <= end) {
+                final ChunkCodec codec = ChunkCodecs.get(source[position] & 0xff);
+                final int codedLength = FastLzCodec.readInt(source, position + 1);
+                position += 5;
+                if (codec == null || codec.getId() == ChunkCodecs.UNIFORM || codedLength < 0
+                        || codedLength > end - position) {
+                    throw new IOException("Bad uniform section at layer " + y);
+                }
+                final byte[] section = new byte[layerWidth * layerWidth * layers];
+                if (codec.decode(source, position, codedLength, section) != section.length) {
+                    throw new IOException("Uniform section at layer " + y + " has the wrong size");
+                }
+                for (int z = 0; z < layerWidth; z++) {
+                    System.arraycopy(section, z * layers * layerWidth, target, (y + z * layerCount) * layerWidth,
+                            layers * layerWidth);
+                }
+                position += codedLength;
+            } else {
+                throw new IOException("Bad uniform section at layer " + y + ": " + kind);
+            }
+        }
+        if (position != end) {
+            throw new IOException("Uniform sections have " + (end - position) + " bytes left over");
+        }
+    }
+
+    /**
+     * Fills the layers from start to end of the target, the value of layer y is at values + y.
+     */
+    private static void fillLayers(final byte[] values, final int valuesOffset, final byte[] target,
+            final int layerWidth, final int layerCount, final int start, final int end) {
+        for (int z = 0; z < layerWidth; z++) {
+            for (int y = start; y < end; y++) {
+                final int row = (y + z * layerCount) * layerWidth;
+                Arrays.fill(target, row, row + layerWidth, values[valuesOffset + y]);
+            }
+        }
+    }
+
+    /**
+     * @return decoded length from the header, after checking it against the layout
+     */
+    private static int readLength(final byte[] source, final int offset, final int length) throws IOException {
+        if (length < HEADER_SIZE) {
+            throw new IOException("Uniform data too short: " + length);
+        }
+        final int decodedLength = FastLzCodec.readInt(source, offset);
+        // negative for chunks stored per section
+        final long layerWidth = Math.abs((long) FastLzCodec.readInt(source, offset + 4));
+        final int layerCount = FastLzCodec.readInt(source, offset + 8);
+        if (decodedLength < 0 || layerWidth == 0 || layerCount < 0
+                || layerWidth * layerWidth * layerCount != decodedLength) {
+            throw new IOException("Bad uniform layout: " + layerWidth + "x" + layerCount + " for " + decodedLength);
+        }
+        return decodedLength;
+    }
+}
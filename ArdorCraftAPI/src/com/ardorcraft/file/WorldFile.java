@@ -6,20 +6,36 @@
 
 package com.ardorcraft.file;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map.Entry;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
-import java.util.zip.DataFormatException;
-import java.util.zip.Deflater;
-import java.util.zip.Inflater;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
-import com.google.common.collect.Maps;
+import com.google.common.collect.Lists;
 
 /**
  * ArdorCraft map file format
@@ -29,47 +45,271 @@ import com.google.common.collect.Maps;
  * <ul>
  * <li>byte 0 = this key (long, 8)
  * <li>byte 8 = next key pos (long, 8)
- * <li>byte 16 = this pos (long, 8 (0 = +4, >0 = to start of next "this pos"))
- * <li>byte 24 = data size (int, 4)
+ * <li>byte 16 = this pos (long, 8 (0 = +4, >0 = to start of next "this pos", -1 = free block))
+ * <li>byte 24 = data size (int, 4 (low 24 bits = size, high 8 bits = codec id))
  * <li>byte 28 = compressed data (byte[])
- * 
+ * </ul>
+ * <p>
+ * Loads are safe to call from any number of threads. They look up an immutable record in a concurrent index and read
+ * it with positional channel reads and decompress outside of any lock, so they never wait for each other. Saves are
+ * serialized, and only rewrites of an existing record in place block the loads that run at the same time.
+ * <p>
+ * The index is kept in a sidecar file next to the map (map name + ".idx") so opening a map does not need to walk all
+ * records. It is written on {@link #checkpoint()} and {@link #close()}, and deleted before the first change after
+ * that, so a sidecar on disk always matches the map. If it is missing, damaged or was written for a map of another
+ * length, the map is scanned as before.
+ * <p>
+ * Space left behind by chunks that grew is marked free and reused for later saves, smallest fitting size class
+ * first. Free space at the end of the file is truncated, and {@link #compact(int)} moves records from the end of the
+ * file into free blocks a few at a time so the file shrinks while it is in use. Version 1 files, which chained moved
+ * records instead, are upgraded when opened.
+ * <p>
+ * For read-mostly maps the file can be opened memory mapped. Loads then copy record data straight out of the mapping,
+ * in windows of 64MB, instead of going through a channel read. In this mode free space at the end is kept rather than
+ * truncated, since some platforms cannot shrink a mapped file, and {@link #remap()} is not available.
+ * <p>
+ * With {@link #enableJournal(int, int)} single block edits can be stored with {@link #appendEdit(int, int, int, int,
+ * int)} as small appends to an edit journal (map name + ".journal") instead of rewriting the chunk. Loads apply the
+ * pending edits to the stored chunk. Once a chunk has many pending edits, or the journal grows too big, the edits are
+ * folded into a new chunk snapshot. A journal found when opening a map is replayed, up to the first damaged record.
+ * <p>
+ * Every record carries the id of the {@link ChunkCodec} it was compressed with, so the codec for saves can be changed
+ * with {@link #setCodec(ChunkCodec)} at any time and old records stay readable. Records of version 2 and older files
+ * have id 0, deflate. Chunks of a single block, and once the chunk size is known from {@link #setChunkSize(int, int)}
+ * or {@link #enableJournal(int, int)} chunks where every layer is a single block, are stored with {@link UniformCodec}
+ * instead, in a few bytes that load without decompressing. Chunks where at least half of the vertical sections are
+ * uniform are stored per section, only their other sections are compressed with the codec for saves.
+ * <p>
+ * With the chunk size known, every save also keeps a {@link ChunkSummary} of the chunk with its index entry, in memory
+ * and in the index sidecar, so column heights and the blocks a chunk has are known without loading it, see
+ * {@link #getSummary(int, int)}. Appended edits drop the summary of their chunk, as do scans of the map, and it is
+ * made again from the chunk the next time it is asked for, and written with the index on the next close or checkpoint.
+ * <p>
+ * Every chunk has a version, see {@link #getVersion(int, int)}, that changes whenever the chunk gets new contents, so
+ * a copy of a chunk can be checked against the map without comparing the data. Versions are kept in the index
+ * sidecar. New versions count up from a random start, picked on every open, so a version handed out before cannot
+ * come back for other contents even when the map had to be scanned or edits were lost in a crash.
  */
-public final class WorldFile {
+public final class WorldFile implements WorldStorage {
     private static final Logger logger = Logger.getLogger(WorldFile.class.getName());
 
+    private final File file;
     private final RandomAccessFile worldFile;
-    private final Map<Long, Long> mapping = Maps.newHashMap();
+    private final File indexFile;
+    private boolean indexOnDisk;
+    /** True if summaries were made since the index was written, so it is written again even if still valid. */
+    private boolean summariesAdded;
+    private final File journalFile;
+    private EditJournal journal;
+    /** Journaled edits per chunk key that are not part of the stored chunk yet. */
+    private final ConcurrentHashMap<Long, EditList> pendingEdits = new ConcurrentHashMap<Long, EditList>();
+    private final FileChannel channel;
+    private final ConcurrentHashMap<Long, Record> mapping = new ConcurrentHashMap<Long, Record>();
+    /** Summaries of the chunks as stored with their pending edits, changed with the lock held. */
+    private final ConcurrentHashMap<Long, ChunkSummary> summaries = new ConcurrentHashMap<Long, ChunkSummary>();
+    /** Live record positions to keys, used to find the last record when compacting. */
+    private final TreeMap<Long, Long> liveByPosition = new TreeMap<Long, Long>();
+    private final FreeSpaceMap freeSpace = new FreeSpaceMap();
+    /** Serializes saves, appends and index changes. */
     private final Lock lock = new ReentrantLock();
-    private final Deflater deflator = new Deflater();
-    private final Inflater inflator = new Inflater();
-    private final byte[] buf = new byte[1024 * 1024];
+    /** Held for writing only while loads could see record bytes change or a record being freed. */
+    private final ReadWriteLock recordLock = new ReentrantReadWriteLock();
+    private volatile ChunkCodec chunkCodec = new DeflateCodec();
+    private volatile UniformCodec uniformCodec = new UniformCodec(0, 0);
+    /** Chunk size in blocks, 0 until known. */
+    private volatile int chunkWidth;
+    private volatile int chunkHeight;
+    /** Version the next change gets. Guarded by the lock. */
+    private long nextVersion = ((new Random().nextInt() & 0x7fffffffL) + 1) << 32;
+    /** Scratch arrays for compressed data in {@link #load(int, int, byte[])}. */
+    private final Queue<byte[]> readBuffers = new ConcurrentLinkedQueue<byte[]>();
+    private volatile boolean closed;
+    private final boolean memoryMapped;
+    private volatile MappedByteBuffer[] windows = new MappedByteBuffer[0];
+    private static final int WINDOW_SHIFT = 26;
+    private static final long WINDOW_SIZE = 1L << WINDOW_SHIFT;
     private static final int IDENTIFIER = "ArdorCraft Map".hashCode();
-    private static final int VERSION = 1;
+    private static final int VERSION = 3;
+    private static final int INDEX_IDENTIFIER = "ArdorCraft Map Index".hashCode();
+    private static final int INDEX_VERSION = 6;
+    private static final long NO_CHECKSUM = -1;
+    private static final long FREE = -1;
+    static final int HEADER_SIZE = 28;
+    private static final int SIZE_MASK = 0xffffff;
+    private static final int CODEC_SHIFT = 24;
+    /** Smallest leftover worth splitting off as a free block of its own. */
+    private static final int MIN_SPLIT = HEADER_SIZE + 64;
+    /** Number of records from the end of the file that compaction considers moving. */
+    private static final int COMPACTION_WINDOW = 64;
+    /** Pending edits on one chunk that make it fold into a new snapshot. */
+    private static final int FOLD_THRESHOLD = 512;
+    /** Journal size that makes all chunks fold, so replay at open stays short. */
+    private static final long MAX_JOURNAL_SIZE = 4 * 1024 * 1024;
+    /** Covered sequence for saves that do not change chunk contents. */
+    private static final long NO_SEQUENCE = -1;
 
     public WorldFile(final File file) throws Exception {
+        this(file, false);
+    }
+
+    /**
+     * @param memoryMapped
+     *            true to serve loads from a memory mapping of the file, for maps that are mostly read
+     */
+    public WorldFile(final File file, final boolean memoryMapped) throws Exception {
+        this.file = file;
+        this.memoryMapped = memoryMapped;
         worldFile = new RandomAccessFile(file, "rw");
+        channel = worldFile.getChannel();
+        indexFile = new File(file.getPath() + ".idx");
+        journalFile = new File(file.getPath() + ".journal");
         parse();
+        openJournal();
     }
 
+    @Override
     public void close() throws IOException {
         lock.lock();
+        recordLock.writeLock().lock();
         try {
-            deflator.end();
-            inflator.end();
+            if (closed) {
+                return;
+            }
+            try {
+                writeIndex();
+            } catch (final IOException e) {
+                logger.warning("Could not write map index: " + e.getMessage());
+            }
+            if (journal != null) {
+                channel.force(false);
+                journal.force();
+                journal.close();
+            }
+            closed = true;
+            windows = new MappedByteBuffer[0];
+            readBuffers.clear();
             worldFile.close();
         } finally {
+            recordLock.writeLock().unlock();
             lock.unlock();
         }
     }
 
+    @Override
     public long size() throws IOException {
         return worldFile.length();
     }
 
+    /**
+     * @return bytes in free blocks, which saves and {@link #compact(int)} can reuse
+     */
+    @Override
+    public long getFreeBytes() {
+        lock.lock();
+        try {
+            return freeSpace.getFreeBytes();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sets the codec for chunks saved from now on. Records written with other codecs stay as they are until saved
+     * again, the codec of every record must be registered with {@link ChunkCodecs} to load it.
+     */
+    @Override
+    public void setCodec(final ChunkCodec codec) {
+        if (ChunkCodecs.get(codec.getId()) == null) {
+            throw new IllegalArgumentException("Codec id " + codec.getId() + " is not registered");
+        }
+        chunkCodec = codec;
+        if (chunkWidth != 0) {
+            uniformCodec = new UniformCodec(chunkWidth, chunkHeight, codec);
+        }
+    }
+
+    @Override
+    public ChunkCodec getCodec() {
+        return chunkCodec;
+    }
+
+    /**
+     * Sets the size of the chunks in the map, which lets saves find chunks and sections of single block layers and
+     * keep chunk summaries. Set by {@link #enableJournal(int, int)} as well.
+     */
+    public void setChunkSize(final int width, final int height) {
+        uniformCodec = new UniformCodec(width, height, chunkCodec);
+        chunkHeight = height;
+        chunkWidth = width;
+    }
+
+    @Override
     public boolean contains(final int x, final int z) {
+        return mapping.containsKey(getKey(x, z));
+    }
+
+    /**
+     * @return version of the chunk, changed by every save with new contents and every appended edit, or 0 if there is
+     *         no data for the coordinates
+     */
+    @Override
+    public long getVersion(final int x, final int z) {
+        final Record record = mapping.get(getKey(x, z));
+        return record != null ? record.version : 0;
+    }
+
+    /**
+     * Gets the summary of a chunk without loading it, unless it was edited or the map was scanned since it was saved.
+     *
+     * @return the summary, or null if there is no data for the coordinates or the chunk size is not set
+     */
+    @Override
+    public ChunkSummary getSummary(final int x, final int z) throws IOException {
+        final long key = getKey(x, z);
+        final ChunkSummary summary = summaries.get(key);
+        if (summary != null || chunkWidth == 0) {
+            return summary;
+        }
+        final long version = getVersion(x, z);
+        final byte[] blocks = version != 0 ? load(x, z) : null;
+        final ChunkSummary created = blocks != null ? createSummary(blocks) : null;
+        if (created == null) {
+            return null;
+        }
+        lock.lock();
+        try {
+            // not kept if the chunk changed since it was loaded
+            if (getVersion(x, z) == version) {
+                summaries.put(key, created);
+                summariesAdded = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+        return created;
+    }
+
+    /**
+     * @return summary of the chunk data, or null if the chunk size is not set or does not match
+     */
+    private ChunkSummary createSummary(final byte[] blocks) {
+        final int width = chunkWidth;
+        final int height = chunkHeight;
+        if (width == 0 || (long) width * width * height != blocks.length) {
+            return null;
+        }
+        return ChunkSummary.create(blocks, width, height);
+    }
+
+    /**
+     * Writes the index sidecar so the next open does not have to scan the map. Called on close, but a server can call
+     * it periodically to keep open times low after a crash.
+     */
+    @Override
+    public void checkpoint() throws IOException {
         lock.lock();
         try {
-            return mapping.containsKey(getKey(x, z));
+            writeIndex();
         } finally {
             lock.unlock();
         }
@@ -82,10 +322,14 @@ public final class WorldFile {
 
             worldFile.seek(0);
             if (endPos == 0) {
+                // sidecars left over from an earlier map with the same name
+                indexFile.delete();
+                journalFile.delete();
                 worldFile.writeInt(IDENTIFIER);
                 worldFile.writeInt(VERSION);
                 return;
             }
+            int version = VERSION;
             if (endPos >= 4) {
                 final boolean isMapFile = worldFile.readInt() == IDENTIFIER;
                 if (!isMapFile) {
@@ -93,170 +337,964 @@ public final class WorldFile {
                 }
             }
             if (endPos >= 8) {
-                final int version = worldFile.readInt();
-                if (version < VERSION) {
-                    throw new RuntimeException("Map file was created with an older version of the ArdorCraft API ("
-                            + version + " < " + VERSION + ")");
+                version = worldFile.readInt();
+                if (version < 1 || version > VERSION) {
+                    throw new RuntimeException("Map file was created with an unsupported version of the ArdorCraft API ("
+                            + version + " != " + VERSION + ")");
                 }
                 logger.info("Map file version: " + version);
             }
 
-            long pos = 8;
-            while (true) {
-                if (pos >= endPos) {
-                    logger.info("Map file contains " + mapping.keySet().size() + " chunks");
-                    return;
-                }
-                worldFile.seek(pos);
-                final long key = worldFile.readLong();
-                final long nextKeyPos = worldFile.readLong();
+            if (version == VERSION && readIndex(endPos)) {
+                logger.info("Map file contains " + mapping.size() + " chunks (from index)");
+                return;
+            }
+            mapping.clear();
+            summaries.clear();
+            liveByPosition.clear();
+            freeSpace.clear();
 
-                if (nextKeyPos < 0 || nextKeyPos > endPos) {
-                    logger.warning("Corrupt mapping, nextKeyPos: " + nextKeyPos);
-                    return;
-                }
+            scan(endPos);
 
-                if (mapping.containsKey(key)) {
-                    pos = nextKeyPos;
-                    continue;
-                }
+            if (version < VERSION) {
+                worldFile.seek(4);
+                worldFile.writeInt(VERSION);
+                logger.info("Map file upgraded to version " + VERSION);
+            }
+            logger.info("Map file contains " + mapping.size() + " chunks, " + freeSpace.getFreeBytes()
+                    + " bytes free");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Walks all records to rebuild the mapping and the free space. Records that were replaced through a version 1
+     * chain are marked free.
+     */
+    private void scan(final long endPos) throws IOException {
+        final List<long[]> unused = Lists.newArrayList();
 
-                long thisPos = worldFile.readLong();
-                while (thisPos > 0) {
-                    worldFile.seek(thisPos);
-                    thisPos = worldFile.readLong();
+        long pos = 8;
+        while (pos < endPos) {
+            worldFile.seek(pos);
+            final long key = worldFile.readLong();
+            final long nextKeyPos = worldFile.readLong();
+
+            if (nextKeyPos < pos + HEADER_SIZE || nextKeyPos > endPos) {
+                logger.warning("Corrupt mapping, nextKeyPos: " + nextKeyPos);
+                break;
+            }
+            final long capacity = nextKeyPos - pos - HEADER_SIZE;
+            final long thisPos = worldFile.readLong();
+
+            if (thisPos == FREE) {
+                unused.add(new long[] { pos, capacity, 0 });
+                pos = nextKeyPos;
+                continue;
+            }
+
+            final Record live = mapping.get(key);
+            if (live != null) {
+                if (live.position != pos) {
+                    unused.add(new long[] { pos, capacity, 1 });
                 }
+                pos = nextKeyPos;
+                continue;
+            }
 
-                mapping.put(key, worldFile.getFilePointer() - 24);
+            long recordPos = pos;
+            long link = thisPos;
+            while (link > 0) {
+                recordPos = link - 16;
+                worldFile.seek(link);
+                link = worldFile.readLong();
+            }
+            if (link == FREE) {
+                unused.add(new long[] { pos, capacity, 1 });
                 pos = nextKeyPos;
+                continue;
+            }
 
-                // final int x = WorldFile.getCoordinateX(key);
-                // final int z = WorldFile.getCoordinateZ(key);
-                // System.out.println("parsed: " + x + "," + z + " = " + (worldFile.getFilePointer() - 24));
+            worldFile.seek(recordPos + 8);
+            final long recordEnd = worldFile.readLong();
+            worldFile.seek(recordPos + 24);
+            final int packedSize = worldFile.readInt();
+            final Record record = new Record(recordPos, packedSize & SIZE_MASK,
+                    (int) (recordEnd - recordPos - HEADER_SIZE), NO_CHECKSUM, packedSize >>> CODEC_SHIFT,
+                    nextVersion++);
+            mapping.put(key, record);
+            liveByPosition.put(recordPos, key);
+            if (recordPos != pos) {
+                unused.add(new long[] { pos, capacity, 1 });
             }
-        } finally {
-            lock.unlock();
+            pos = nextKeyPos;
+
+            // final int x = WorldFile.getCoordinateX(key);
+            // final int z = WorldFile.getCoordinateZ(key);
+            // System.out.println("parsed: " + x + "," + z + " = " + recordPos);
+        }
+
+        for (final long[] block : unused) {
+            if (block[2] != 0) {
+                worldFile.seek(block[0] + 16);
+                worldFile.writeLong(FREE);
+            }
+        }
+        for (final long[] block : unused) {
+            addFree(block[0], block[1]);
         }
     }
 
+    /**
+     * Rewrites the whole map without free space. Blocks all saves and loads while running, {@link #compact(int)} is
+     * the incremental alternative.
+     */
     public void remap() throws IOException {
+        if (memoryMapped) {
+            throw new IllegalStateException("remap is not available for memory mapped map files");
+        }
         lock.lock();
+        recordLock.writeLock().lock();
         try {
-            // File file = File.createTempFile("foo", null);
-            final File file = new File("tmpFile.tmp");
-            if (file.exists()) {
-                file.delete();
+            invalidateIndex();
+
+            final File tmp = new File(file.getPath() + ".remap");
+            if (tmp.exists()) {
+                tmp.delete();
             }
-            final RandomAccessFile tmpFile = new RandomAccessFile(file, "rw");
+            final RandomAccessFile tmpFile = new RandomAccessFile(tmp, "rw");
 
             tmpFile.writeInt(IDENTIFIER);
             tmpFile.writeInt(VERSION);
-            for (final Entry<Long, Long> entry : mapping.entrySet()) {
+            liveByPosition.clear();
+            for (final Entry<Long, Record> entry : mapping.entrySet()) {
                 final long key = entry.getKey();
-                final long pos = entry.getValue();
-
-                worldFile.seek(pos + 24);
-                final int size = worldFile.readInt();
+                final Record record = entry.getValue();
+                final long pos = record.position;
+                final int size = record.size;
 
                 final long endPos = tmpFile.getFilePointer();
 
                 tmpFile.writeLong(key);
-                tmpFile.writeLong(endPos + 28 + size);
+                tmpFile.writeLong(endPos + HEADER_SIZE + size);
                 tmpFile.writeLong(0);
-                tmpFile.writeInt(size);
+                tmpFile.writeInt(record.getPackedSize());
 
                 long transfered = 0;
                 while (transfered < size) {
-                    transfered += worldFile.getChannel().transferTo(pos + 28 + transfered, size - transfered,
+                    transfered += channel.transferTo(pos + HEADER_SIZE + transfered, size - transfered,
                             tmpFile.getChannel());
                 }
-                tmpFile.seek(endPos + 28 + size);
+                tmpFile.seek(endPos + HEADER_SIZE + size);
+
+                entry.setValue(new Record(endPos, size, size, record.checksum, record.codec, record.version));
+                liveByPosition.put(endPos, key);
             }
 
             worldFile.seek(0);
             final long size = tmpFile.length();
             long transfered = 0;
             while (transfered < size) {
-                transfered += tmpFile.getChannel().transferTo(transfered, size - transfered, worldFile.getChannel());
+                transfered += tmpFile.getChannel().transferTo(transfered, size - transfered, channel);
             }
             worldFile.setLength(size);
+            freeSpace.clear();
 
             tmpFile.close();
-            file.delete();
+            tmp.delete();
         } finally {
+            recordLock.writeLock().unlock();
             lock.unlock();
         }
     }
 
-    public void save(final int x, final int z, final byte[] dataSource) throws IOException {
+    /**
+     * Moves up to the given number of records near the end of the file into free blocks before them, and truncates
+     * the space they leave. Loads are only held up while a moved record is switched over in the index.
+     * 
+     * @return number of records moved, 0 when nothing more can be gained
+     */
+    @Override
+    public int compact(final int maxRecords) throws IOException {
         lock.lock();
         try {
-            final long newKey = getKey(x, z);
-            final long endPosition = worldFile.length();
+            int moved = 0;
+            while (moved < maxRecords && freeSpace.getCount() > 0) {
+                // the last record may be too big for any hole, so look a little further back
+                long key = 0;
+                Record record = null;
+                int tried = 0;
+                for (final Long candidate : liveByPosition.descendingMap().values()) {
+                    final Record candidateRecord = mapping.get(candidate);
+                    if (freeSpace.find(candidateRecord.size, candidateRecord.position) >= 0) {
+                        key = candidate;
+                        record = candidateRecord;
+                        break;
+                    }
+                    if (++tried == COMPACTION_WINDOW) {
+                        break;
+                    }
+                }
+                if (record == null) {
+                    break;
+                }
+                invalidateIndex();
 
-            final byte[] data = compress(dataSource);
-            final int length = data.length;
+                final byte[] data = read(record);
+                final Record target = allocate(record.size, record.checksum, record.codec, record.version,
+                        record.position);
+                writeRecord(key, target, data);
+                replaceRecord(key, record, target, NO_SEQUENCE);
+                moved++;
+            }
+            return moved;
+        } finally {
+            lock.unlock();
+        }
+    }
 
-            if (!mapping.containsKey(newKey)) {
-                worldFile.seek(endPosition);
-                worldFile.writeLong(newKey);
-                worldFile.writeLong(endPosition + 28 + length);
-                worldFile.writeLong(0);
-                worldFile.writeInt(length);
-                worldFile.write(data);
+    @Override
+    public void save(final int x, final int z, final byte[] dataSource) throws IOException {
+        save(x, z, dataSource, Long.MAX_VALUE);
+    }
 
-                mapping.put(newKey, endPosition);
-            } else {
-                final long pos = mapping.get(newKey);
-
-                // read size
-                worldFile.seek(pos + 24);
-                final int size = worldFile.readInt();
-                if (size < length) {
-                    worldFile.seek(pos + 16);
-                    worldFile.writeLong(endPosition + 16);
-
-                    worldFile.seek(endPosition);
-                    worldFile.writeLong(newKey);
-                    worldFile.writeLong(endPosition + 28 + length);
-                    worldFile.writeLong(0);
-                    worldFile.writeInt(length);
-                    worldFile.write(data);
+    /**
+     * Saves a chunk snapshot that contains the journaled edits before the given sequence. Edits appended after it
+     * stay pending, so a snapshot taken while edits keep coming in does not lose them. The chunk keeps its version,
+     * since its contents stay the same, unless the sequence is Long.MAX_VALUE as for {@link #save(int, int, byte[])}.
+     * 
+     * @see #getJournalSequence()
+     */
+    @Override
+    public void save(final int x, final int z, final byte[] dataSource, final long coveredSequence)
+            throws IOException {
+        final long newKey = getKey(x, z);
+        final ChunkCodec codec = getCodec(dataSource);
+        final byte[] data = codec.encode(dataSource, dataSource.length);
+        final int length = data.length;
+        if (length > SIZE_MASK) {
+            throw new IOException("Chunk at coords " + x + "," + z + " is too big to save: " + length + " bytes");
+        }
+        final long checksum = checksum(data, 0, length);
+        final int codecId = codec.getId();
+        final ChunkSummary summary = createSummary(dataSource);
 
-                    mapping.put(newKey, endPosition);
-                } else {
-                    worldFile.seek(pos + 24);
-                    worldFile.writeInt(length);
+        lock.lock();
+        try {
+            invalidateIndex();
+
+            final boolean journaled = pendingEdits.containsKey(newKey);
+            final Record record = mapping.get(newKey);
+            final long version = record != null && coveredSequence != Long.MAX_VALUE ? record.version
+                    : nextVersion++;
+            if (record != null && length <= record.capacity) {
+                final int capacity = record.capacity - length >= MIN_SPLIT ? length : record.capacity;
+                recordLock.writeLock().lock();
+                try {
+                    if (capacity < record.capacity) {
+                        // free header first, it is not reachable until the record is shortened
+                        writeFreeHeader(record.position + HEADER_SIZE + capacity, record.capacity - capacity
+                                - HEADER_SIZE);
+                        worldFile.seek(record.position + 8);
+                        worldFile.writeLong(record.position + HEADER_SIZE + capacity);
+                    }
+                    final Record newRecord = new Record(record.position, length, capacity, checksum, codecId, version);
+                    worldFile.seek(record.position + 24);
+                    worldFile.writeInt(newRecord.getPackedSize());
                     worldFile.write(data);
+                    mapping.put(newKey, newRecord);
+                    trimPendingEdits(newKey, coveredSequence);
+                } finally {
+                    recordLock.writeLock().unlock();
+                }
+                if (capacity < record.capacity) {
+                    addFree(record.position + HEADER_SIZE + capacity, record.capacity - capacity - HEADER_SIZE);
                 }
+            } else {
+                Record newRecord = allocate(length, checksum, codecId, version, Long.MAX_VALUE);
+                if (newRecord == null) {
+                    newRecord = new Record(worldFile.length(), length, length, checksum, codecId, version);
+                }
+                writeRecord(newKey, newRecord, data);
+                replaceRecord(newKey, record, newRecord, coveredSequence);
+            }
+            // edits after the snapshot are not part of it
+            if (summary != null && !pendingEdits.containsKey(newKey)) {
+                summaries.put(newKey, summary);
+            } else {
+                summaries.remove(newKey);
+            }
+
+            // only chunks with edits in the journal need a record that the snapshot covers them
+            if (journal != null && journaled) {
+                journal.appendSnapshot(x, z, coveredSequence);
             }
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Writes a record into a free block or at the end of the file. The record only becomes live when its "this pos"
+     * is cleared as the last step.
+     */
+    private void writeRecord(final long key, final Record record, final byte[] data) throws IOException {
+        worldFile.seek(record.position);
+        worldFile.writeLong(key);
+        worldFile.writeLong(record.position + HEADER_SIZE + record.capacity);
+        worldFile.writeLong(FREE);
+        worldFile.writeInt(record.getPackedSize());
+        worldFile.write(data);
+        worldFile.seek(record.position + 16);
+        worldFile.writeLong(0);
+    }
+
+    /**
+     * Points the index at the new record, drops the pending edits it covers and frees the old record, if any.
+     */
+    private void replaceRecord(final long key, final Record oldRecord, final Record newRecord,
+            final long coveredSequence) throws IOException {
+        // no load can be reading the old record, or pairing it with the wrong edits, once the write lock is held
+        recordLock.writeLock().lock();
+        try {
+            mapping.put(key, newRecord);
+            trimPendingEdits(key, coveredSequence);
+            if (oldRecord != null) {
+                worldFile.seek(oldRecord.position + 16);
+                worldFile.writeLong(FREE);
+            }
+        } finally {
+            recordLock.writeLock().unlock();
+        }
+        liveByPosition.put(newRecord.position, key);
+        if (oldRecord != null) {
+            liveByPosition.remove(oldRecord.position);
+            addFree(oldRecord.position, oldRecord.capacity);
+        }
+    }
+
+    /**
+     * Takes a free block that can hold the length, splitting off what is left when it is worth keeping.
+     * 
+     * @return the record to write, or null if no free block before the limit fits
+     */
+    private Record allocate(final int length, final long checksum, final int codecId, final long version,
+            final long limit) throws IOException {
+        final long position = freeSpace.find(length, limit);
+        if (position < 0) {
+            return null;
+        }
+        final long capacity = freeSpace.getCapacity(position);
+        freeSpace.remove(position);
+
+        if (capacity - length >= MIN_SPLIT) {
+            final long rest = position + HEADER_SIZE + length;
+            final long restCapacity = capacity - length - HEADER_SIZE;
+            writeFreeHeader(rest, restCapacity);
+            freeSpace.put(rest, restCapacity);
+            return new Record(position, length, length, checksum, codecId, version);
+        }
+        return new Record(position, length, (int) capacity, checksum, codecId, version);
+    }
+
+    /**
+     * Adds a block to the free space, merged with free neighbours. A block that ends the file is truncated instead.
+     */
+    private void addFree(final long position, final long capacity) throws IOException {
+        long start = position;
+        long blockCapacity = capacity;
+
+        final long nextCapacity = freeSpace.getCapacity(start + HEADER_SIZE + blockCapacity);
+        if (nextCapacity >= 0) {
+            freeSpace.remove(start + HEADER_SIZE + blockCapacity);
+            blockCapacity += HEADER_SIZE + nextCapacity;
+        }
+        final Entry<Long, Long> lower = freeSpace.getLower(start);
+        if (lower != null && lower.getKey() + HEADER_SIZE + lower.getValue() == start) {
+            final long lowerPosition = lower.getKey();
+            final long lowerCapacity = lower.getValue();
+            freeSpace.remove(lowerPosition);
+            start = lowerPosition;
+            blockCapacity += HEADER_SIZE + lowerCapacity;
+        }
+
+        if (!memoryMapped && start + HEADER_SIZE + blockCapacity >= worldFile.length()) {
+            worldFile.setLength(start);
+            return;
+        }
+        writeFreeHeader(start, blockCapacity);
+        freeSpace.put(start, blockCapacity);
+    }
+
+    private void writeFreeHeader(final long position, final long capacity) throws IOException {
+        worldFile.seek(position);
+        worldFile.writeLong(0);
+        worldFile.writeLong(position + HEADER_SIZE + capacity);
+        worldFile.writeLong(FREE);
+        worldFile.writeInt(0);
+    }
+
+    @Override
     public byte[] load(final int x, final int z) throws IOException {
         final long newKey = getKey(x, z);
-        lock.lock();
+        final byte[] data;
+        final Record record;
+        final int[] edits;
+
+        recordLock.readLock().lock();
         try {
-            if (!mapping.containsKey(newKey)) {
+            record = mapping.get(newKey);
+            if (record == null) {
                 logger.severe("No data found for coords: " + x + "," + z);
                 return null;
             }
-            long pos = mapping.get(newKey);
+            data = new byte[record.size];
+            read(record, data);
+            edits = getPendingEdits(newKey);
+        } finally {
+            recordLock.readLock().unlock();
+        }
 
-            pos += 24; // go to size
-            worldFile.seek(pos);
-            final int size = worldFile.readInt();
-            final byte[] data = new byte[size];
-            worldFile.read(data);
+        if (record.checksum != NO_CHECKSUM && checksum(data, 0, record.size) != record.checksum) {
+            throw new IOException("Checksum mismatch for chunk at coords: " + x + "," + z);
+        }
+        final byte[] blocks = getCodec(record).decode(data, 0, record.size);
+        applyEdits(blocks, blocks.length, edits);
+        return blocks;
+    }
 
-            return decompress(data);
+    /**
+     * Loads a chunk straight into the given array, without allocating for the compressed or the decoded data.
+     * 
+     * @return number of bytes decoded into the target, or -1 if there is no data for the coordinates
+     * @throws IOException
+     *             if the data is damaged or does not fit in the target
+     */
+    @Override
+    public int load(final int x, final int z, final byte[] target) throws IOException {
+        final long newKey = getKey(x, z);
+        byte[] input = readBuffers.poll();
+        if (input == null) {
+            input = new byte[64 * 1024];
+        }
+        try {
+            final Record record;
+            final int[] edits;
+            recordLock.readLock().lock();
+            try {
+                record = mapping.get(newKey);
+                if (record == null) {
+                    return -1;
+                }
+                if (input.length < record.size) {
+                    input = new byte[Math.max(record.size, input.length * 2)];
+                }
+                read(record, input);
+                edits = getPendingEdits(newKey);
+            } finally {
+                recordLock.readLock().unlock();
+            }
+
+            if (record.checksum != NO_CHECKSUM && checksum(input, 0, record.size) != record.checksum) {
+                throw new IOException("Checksum mismatch for chunk at coords: " + x + "," + z);
+            }
+
+            final int count = getCodec(record).decode(input, 0, record.size, target);
+            applyEdits(target, count, edits);
+            return count;
+        } finally {
+            if (!closed) {
+                readBuffers.offer(input);
+            }
+        }
+    }
+
+    @Override
+    public EncodedChunk loadEncoded(final int x, final int z) throws IOException {
+        final long newKey = getKey(x, z);
+        final Record record;
+        final byte[] data;
+        final int[] edits;
+        recordLock.readLock().lock();
+        try {
+            record = mapping.get(newKey);
+            if (record == null) {
+                return null;
+            }
+            data = read(record);
+            edits = getPendingEdits(newKey);
+        } finally {
+            recordLock.readLock().unlock();
+        }
+
+        if (record.checksum != NO_CHECKSUM && checksum(data, 0, record.size) != record.checksum) {
+            throw new IOException("Checksum mismatch for chunk at coords: " + x + "," + z);
+        }
+        if (edits == null) {
+            return new EncodedChunk(record.codec, data);
+        }
+        final byte[] blocks = getCodec(record).decode(data, 0, record.size);
+        applyEdits(blocks, blocks.length, edits);
+        final ChunkCodec codec = getCodec(blocks);
+        return new EncodedChunk(codec.getId(), codec.encode(blocks, blocks.length));
+    }
+
+    private byte[] read(final Record record) throws IOException {
+        final byte[] data = new byte[record.size];
+        read(record, data);
+        return data;
+    }
+
+    /**
+     * Reads the record data into the start of the array, from the mapping or with positional reads.
+     */
+    private void read(final Record record, final byte[] data) throws IOException {
+        long pos = record.position + HEADER_SIZE;
+        if (memoryMapped) {
+            int offset = 0;
+            while (offset < record.size) {
+                final ByteBuffer window = getWindow(pos, record.position + HEADER_SIZE + record.size);
+                final int windowOffset = (int) (pos & WINDOW_SIZE - 1);
+                final int count = Math.min(record.size - offset, window.capacity() - windowOffset);
+                window.position(windowOffset);
+                window.get(data, offset, count);
+                offset += count;
+                pos += count;
+            }
+            return;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.wrap(data, 0, record.size);
+        while (buffer.hasRemaining()) {
+            final int count = channel.read(buffer, pos);
+            if (count < 0) {
+                throw new EOFException("Chunk data truncated at: " + record.position);
+            }
+            pos += count;
+        }
+    }
+
+    /**
+     * @return a private view of the window holding the position, mapped at least up to the end position or the end
+     *         of the window
+     */
+    private ByteBuffer getWindow(final long position, final long end) throws IOException {
+        final int index = (int) (position >>> WINDOW_SHIFT);
+        final long windowStart = (long) index << WINDOW_SHIFT;
+        final long needed = Math.min(end - windowStart, WINDOW_SIZE);
+
+        MappedByteBuffer[] current = windows;
+        if (index >= current.length || current[index] == null || current[index].capacity() < needed) {
+            synchronized (this) {
+                current = windows;
+                if (index >= current.length || current[index] == null || current[index].capacity() < needed) {
+                    if (closed) {
+                        throw new IOException("Map file is closed");
+                    }
+                    final MappedByteBuffer[] grown = new MappedByteBuffer[Math.max(current.length, index + 1)];
+                    System.arraycopy(current, 0, grown, 0, current.length);
+                    // map the whole window if the file is long enough, so appends rarely need a new mapping
+                    final long size = Math.max(needed, Math.min(WINDOW_SIZE, channel.size() - windowStart));
+                    grown[index] = channel.map(MapMode.READ_ONLY, windowStart, size);
+                    windows = grown;
+                    current = grown;
+                }
+            }
+        }
+        // positions are per buffer, so every reader gets its own view
+        return current[index].duplicate();
+    }
+
+    /**
+     * Starts journaling edits for chunks of the given size, or checks the size against the journal found at open.
+     */
+    @Override
+    public void enableJournal(final int width, final int height) throws IOException {
+        lock.lock();
+        try {
+            if (journal == null) {
+                journal = EditJournal.create(journalFile, width, height);
+            } else if (journal.getWidth() != width || journal.getHeight() != height) {
+                throw new IllegalArgumentException("Map journal is for chunks of " + journal.getWidth() + "x"
+                        + journal.getHeight() + ", not " + width + "x" + height);
+            }
+            setChunkSize(width, height);
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * Journals a single block edit, in world block coordinates. It is visible to loads right away and on disk once
+     * {@link #flushJournal()} has run.
+     * 
+     * @param orientation
+     *            kept in the journal for replication, the chunk data has no room for it
+     */
+    @Override
+    public void appendEdit(final int x, final int y, final int z, final int blockId, final int orientation)
+            throws IOException {
+        lock.lock();
+        try {
+            if (journal == null) {
+                throw new IllegalStateException("The map journal is not enabled");
+            }
+            if (y < 0 || y >= journal.getHeight()) {
+                return;
+            }
+            final long sequence = journal.appendEdit(x, y, z, blockId, orientation);
+            final long key = addPendingEdit(sequence, x, y, z, blockId);
+            // after the edit is visible to loads, so a load that sees the new version also sees the edit
+            newVersion(key);
+
+            if (pendingEdits.get(key).size() >= FOLD_THRESHOLD) {
+                fold(key);
+            }
+            if (journal.length() > MAX_JOURNAL_SIZE) {
+                for (final Long pendingKey : Lists.newArrayList(pendingEdits.keySet())) {
+                    fold(pendingKey);
+                }
+                resetJournal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the map and then the journal to disk, after this a crash loses no appended edits. Empties the journal if
+     * all its edits are in saved snapshots by now.
+     */
+    @Override
+    public void flushJournal() throws IOException {
+        lock.lock();
+        try {
+            if (journal != null && !resetJournal()) {
+                channel.force(false);
+                journal.force();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forces the map and drops the journal records, if it has records and all edits are in saved snapshots. Done per
+     * flush rather than per save, it costs two forces and a truncate. Must be called with the lock held.
+     *
+     * @return true if the journal was reset
+     */
+    private boolean resetJournal() throws IOException {
+        if (journal.length() <= EditJournal.HEADER_SIZE || !pendingEdits.isEmpty()) {
+            return false;
+        }
+        channel.force(false);
+        journal.reset();
+        return true;
+    }
+
+    /**
+     * @return sequence the next journaled edit will get, for {@link #save(int, int, byte[], long)}
+     */
+    public long getJournalSequence() {
+        lock.lock();
+        try {
+            return journal != null ? journal.getNextSequence() : 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * A world file has one journal for all chunks, this is the same as {@link #getJournalSequence()}.
+     */
+    @Override
+    public long getJournalSequence(final int x, final int z) {
+        return getJournalSequence();
+    }
+
+    private void openJournal() throws IOException {
+        if (!journalFile.isFile()) {
+            return;
+        }
+        journal = EditJournal.open(journalFile);
+        if (journal == null) {
+            return;
+        }
+        setChunkSize(journal.getWidth(), journal.getHeight());
+        journal.replay(new EditJournal.Replay() {
+            @Override
+            public void edit(final long sequence, final int x, final int y, final int z, final int blockId,
+                    final int orientation) {
+                addPendingEdit(sequence, x, y, z, blockId);
+            }
+
+            @Override
+            public void snapshot(final int chunkX, final int chunkZ, final long coveredSequence) {
+                trimPendingEdits(getKey(chunkX, chunkZ), coveredSequence);
+            }
+        });
+        // the versions in the index are from before the replayed edits
+        for (final Long key : pendingEdits.keySet()) {
+            newVersion(key);
+        }
+        logger.info("Map journal replayed, " + pendingEdits.size() + " chunks with pending edits");
+    }
+
+    /**
+     * Writes a chunk with its pending edits applied as a new snapshot. Must be called with the lock held.
+     */
+    private void fold(final long key) throws IOException {
+        final EditList edits = pendingEdits.get(key);
+        if (edits == null) {
+            return;
+        }
+        final Record record = mapping.get(key);
+        final int width = journal.getWidth();
+        final byte[] blocks = record != null ? getCodec(record).decode(read(record), 0, record.size)
+                : new byte[width * width * journal.getHeight()];
+        applyEdits(blocks, blocks.length, edits.snapshot());
+        save(getCoordinateX(key), getCoordinateZ(key), blocks, journal.getNextSequence());
+    }
+
+    /**
+     * Gives the chunk a new version, if it is stored. Must be called with the lock held.
+     */
+    private void newVersion(final long key) {
+        summaries.remove(key);
+        final Record record = mapping.get(key);
+        if (record != null) {
+            // same position and size, loads reading the old entry are not affected
+            mapping.put(key, new Record(record.position, record.size, record.capacity, record.checksum,
+                    record.codec, nextVersion++));
+        }
+    }
+
+    /**
+     * @return key of the chunk the edit belongs to
+     */
+    private long addPendingEdit(final long sequence, final int x, final int y, final int z, final int blockId) {
+        final int width = journal.getWidth();
+        final int chunkX = floorDiv(x, width);
+        final int chunkZ = floorDiv(z, width);
+        final int index = x - chunkX * width + (y + (z - chunkZ * width) * journal.getHeight()) * width;
+
+        final long key = getKey(chunkX, chunkZ);
+        EditList edits = pendingEdits.get(key);
+        if (edits == null) {
+            edits = new EditList();
+            pendingEdits.put(key, edits);
+        }
+        edits.add(sequence, index << 8 | blockId & 0xff);
+        return key;
+    }
+
+    private void trimPendingEdits(final long key, final long coveredSequence) {
+        final EditList edits = pendingEdits.get(key);
+        if (edits != null && coveredSequence != NO_SEQUENCE && edits.trim(coveredSequence) == 0) {
+            pendingEdits.remove(key);
+        }
+    }
+
+    private int[] getPendingEdits(final long key) {
+        final EditList edits = pendingEdits.get(key);
+        return edits != null ? edits.snapshot() : null;
+    }
+
+    private static void applyEdits(final byte[] blocks, final int length, final int[] edits) {
+        if (edits == null) {
+            return;
+        }
+        for (final int edit : edits) {
+            final int index = edit >>> 8;
+            if (index < length) {
+                blocks[index] = (byte) edit;
+            }
+        }
+    }
+
+    private static int floorDiv(final int value, final int divisor) {
+        return value >= 0 ? value / divisor : -((-value - 1) / divisor) - 1;
+    }
+
+    private static long checksum(final byte[] data, final int offset, final int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+
+    /**
+     * Must be called with the lock held, before the map is changed.
+     */
+    private void invalidateIndex() {
+        if (indexOnDisk) {
+            if (!indexFile.delete() && indexFile.exists()) {
+                logger.warning("Could not delete stale map index: " + indexFile);
+            }
+            indexOnDisk = false;
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file and renames it over the sidecar. Must be called with the lock held.
+     */
+    private void writeIndex() throws IOException {
+        if (indexOnDisk && !summariesAdded || closed) {
+            return;
+        }
+
+        final File tmpFile = new File(indexFile.getPath() + ".tmp");
+        final FileOutputStream fos = new FileOutputStream(tmpFile);
+        try {
+            final CheckedOutputStream cos = new CheckedOutputStream(new BufferedOutputStream(fos), new CRC32());
+            final DataOutputStream out = new DataOutputStream(cos);
+            out.writeInt(INDEX_IDENTIFIER);
+            out.writeInt(INDEX_VERSION);
+            out.writeLong(worldFile.length());
+            out.writeInt(mapping.size());
+            for (final Entry<Long, Record> entry : mapping.entrySet()) {
+                final Record record = entry.getValue();
+                out.writeLong(entry.getKey());
+                out.writeLong(record.position);
+                out.writeInt(record.getPackedSize());
+                out.writeInt(record.capacity);
+                out.writeLong(record.checksum);
+                out.writeLong(record.version);
+            }
+            out.writeInt(freeSpace.getCount());
+            for (final Entry<Long, Long> block : freeSpace.getBlocks().entrySet()) {
+                out.writeLong(block.getKey());
+                out.writeLong(block.getValue());
+            }
+            out.writeInt(summaries.size());
+            for (final Entry<Long, ChunkSummary> entry : summaries.entrySet()) {
+                out.writeLong(entry.getKey());
+                entry.getValue().write(out);
+            }
+            out.flush();
+            final long crc = cos.getChecksum().getValue();
+            out.writeLong(crc);
+            out.flush();
+            fos.getChannel().force(true);
+        } finally {
+            fos.close();
+        }
+
+        if (!tmpFile.renameTo(indexFile)) {
+            // renameTo does not replace existing files on all platforms
+            indexFile.delete();
+            if (!tmpFile.renameTo(indexFile)) {
+                tmpFile.delete();
+                throw new IOException("Could not move " + tmpFile + " to " + indexFile);
+            }
+        }
+        indexOnDisk = true;
+        summariesAdded = false;
+    }
+
+    /**
+     * @return true if the sidecar index was valid for a map of the given length and has been loaded into the mapping
+     */
+    private boolean readIndex(final long mapLength) {
+        if (!indexFile.isFile()) {
+            return false;
+        }
+
+        final ByteBuffer buffer;
+        try {
+            final FileInputStream fis = new FileInputStream(indexFile);
+            try {
+                final long length = fis.getChannel().size();
+                if (length < 32 || length > Integer.MAX_VALUE) {
+                    logger.warning("Map index has a bad length, scanning map");
+                    return false;
+                }
+                buffer = ByteBuffer.allocate((int) length);
+                while (buffer.hasRemaining()) {
+                    if (fis.getChannel().read(buffer) < 0) {
+                        throw new EOFException();
+                    }
+                }
+            } finally {
+                fis.close();
+            }
+        } catch (final IOException e) {
+            logger.warning("Could not read map index, scanning map: " + e.getMessage());
+            return false;
+        }
+
+        final int bodyLength = buffer.capacity() - 8;
+        buffer.flip();
+        if (buffer.getLong(bodyLength) != checksum(buffer.array(), 0, bodyLength)) {
+            logger.warning("Map index checksum mismatch, scanning map");
+            return false;
+        }
+        if (buffer.getInt() != INDEX_IDENTIFIER || buffer.getInt() != INDEX_VERSION) {
+            logger.info("Map index has an unknown format, scanning map");
+            return false;
+        }
+        if (buffer.getLong() != mapLength) {
+            logger.info("Map index is stale, scanning map");
+            return false;
+        }
+        final int count = buffer.getInt();
+        if (count < 0 || 24 + count * 40L > bodyLength) {
+            logger.warning("Map index has a bad record count, scanning map");
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            final long key = buffer.getLong();
+            final long position = buffer.getLong();
+            final int packedSize = buffer.getInt();
+            final int size = packedSize & SIZE_MASK;
+            final int capacity = buffer.getInt();
+            final long checksum = buffer.getLong();
+            final long version = buffer.getLong();
+            if (position < 8 || size < 0 || capacity < size || position + HEADER_SIZE + capacity > mapLength) {
+                logger.warning("Map index has a bad record, scanning map");
+                return false;
+            }
+            mapping.put(key, new Record(position, size, capacity, checksum, packedSize >>> CODEC_SHIFT, version));
+            liveByPosition.put(position, key);
+        }
+        final int freeCount = buffer.getInt();
+        if (freeCount < 0 || 28 + count * 40L + freeCount * 16L > bodyLength) {
+            logger.warning("Map index has a bad free block count, scanning map");
+            return false;
+        }
+        for (int i = 0; i < freeCount; i++) {
+            final long position = buffer.getLong();
+            final long capacity = buffer.getLong();
+            if (position < 8 || capacity < 0 || position + HEADER_SIZE + capacity > mapLength) {
+                logger.warning("Map index has a bad free block, scanning map");
+                return false;
+            }
+            freeSpace.put(position, capacity);
+        }
+        final int summaryCount = buffer.getInt();
+        if (summaryCount < 0 || summaryCount > count) {
+            logger.warning("Map index has a bad summary count, scanning map");
+            return false;
+        }
+        for (int i = 0; i < summaryCount; i++) {
+            final long key = buffer.remaining() >= 8 ? buffer.getLong() : 0;
+            final ChunkSummary summary = ChunkSummary.read(buffer);
+            if (summary == null || !mapping.containsKey(key)) {
+                logger.warning("Map index has a bad chunk summary, scanning map");
+                return false;
+            }
+            summaries.put(key, summary);
+        }
+        if (buffer.position() != bodyLength) {
+            logger.warning("Map index has a bad length, scanning map");
+            return false;
+        }
+
+        indexOnDisk = true;
+        return true;
+    }
+
     public static long getKey(final int x, final int z) {
         long r = x;
         r <<= 32;
@@ -272,42 +1310,100 @@ public final class WorldFile {
         return (int) (key & 0XFFFFFFFF);
     }
 
-    private byte[] compress(final byte[] data) {
-        deflator.reset();
-        deflator.setInput(data);
-        deflator.finish();
-        final ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length);
-        while (!deflator.finished()) {
-            final int count = deflator.deflate(buf);
-            if (count > 0) {
-                bos.write(buf, 0, count);
-            }
+    /**
+     * @return codec to save the chunk data with
+     */
+    private ChunkCodec getCodec(final byte[] data) {
+        final UniformCodec uniform = uniformCodec;
+        return uniform.isUniform(data, data.length) || uniform.hasUniformSections(data, data.length) ? uniform
+                : chunkCodec;
+    }
+
+    private static ChunkCodec getCodec(final Record record) throws IOException {
+        final ChunkCodec codec = ChunkCodecs.get(record.codec);
+        if (codec == null) {
+            throw new IOException("Unknown chunk codec id " + record.codec + " for record at: " + record.position);
         }
-        return bos.toByteArray();
+        return codec;
     }
 
-    private byte[] decompress(final byte[] input) {
-        inflator.reset();
-        inflator.setInput(input);
-        final ByteArrayOutputStream bos = new ByteArrayOutputStream(input.length);
-        try {
-            while (true) {
-                final int count = inflator.inflate(buf);
-                if (count > 0) {
-                    bos.write(buf, 0, count);
-                } else if (count == 0 && inflator.finished()) {
-                    break;
-                } else {
-                    throw new RuntimeException("bad zip data, size:" + input.length);
-                }
-            }
-        } catch (final DataFormatException t) {
-            throw new RuntimeException(t);
+    Set<Long> getKeys() {
+        return mapping.keySet();
+    }
+
+    /**
+     * Index entry, replaced rather than changed so loads always see a consistent position and size.
+     */
+    private static final class Record {
+        private final long position;
+        private final int size;
+        /** Data bytes the record has room for, size or more. */
+        private final int capacity;
+        /** CRC32 of the compressed data, or NO_CHECKSUM for records found by scanning. */
+        private final long checksum;
+        private final int codec;
+        private final long version;
+
+        private Record(final long position, final int size, final int capacity, final long checksum,
+                final int codec, final long version) {
+            this.position = position;
+            this.size = size;
+            this.capacity = capacity;
+            this.checksum = checksum;
+            this.codec = codec;
+            this.version = version;
+        }
+
+        /**
+         * @return size and codec id as stored in the record header
+         */
+        private int getPackedSize() {
+            return codec << CODEC_SHIFT | size;
         }
-        return bos.toByteArray();
     }
 
-    Map<Long, Long> getMapping() {
-        return mapping;
+    /**
+     * Journaled edits of one chunk in sequence order, packed as block index << 8 | block id.
+     */
+    private static final class EditList {
+        private long[] sequences = new long[16];
+        private int[] edits = new int[16];
+        private int count;
+
+        synchronized void add(final long sequence, final int edit) {
+            if (count == edits.length) {
+                sequences = Arrays.copyOf(sequences, count * 2);
+                edits = Arrays.copyOf(edits, count * 2);
+            }
+            sequences[count] = sequence;
+            edits[count] = edit;
+            count++;
+        }
+
+        /**
+         * Drops the edits before the sequence.
+         * 
+         * @return number of edits left
+         */
+        synchronized int trim(final long coveredSequence) {
+            int dropped = 0;
+            while (dropped < count && sequences[dropped] < coveredSequence) {
+                dropped++;
+            }
+            if (dropped > 0) {
+                System.arraycopy(sequences, dropped, sequences, 0, count - dropped);
+                System.arraycopy(edits, dropped, edits, 0, count - dropped);
+                count -= dropped;
+            }
+            return count;
+        }
+
+        synchronized int size() {
+            return count;
+        }
+
+        synchronized int[] snapshot() {
+            return Arrays.copyOf(edits, count);
+        }
     }
 }
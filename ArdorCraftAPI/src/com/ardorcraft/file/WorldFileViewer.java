@@ -9,7 +9,6 @@ package com.ardorcraft.file;
 import java.awt.Color;
 import java.awt.Graphics2D;
 import java.io.File;
-import java.util.Map;
 import java.util.Random;
 
 import javax.swing.JFrame;
@@ -32,6 +31,7 @@ public class WorldFileViewer {
 
     public WorldFileViewer(final File file, final int subMeshSize, final int height) throws Exception {
         worldFile = new WorldFile(file);
+        worldFile.setChunkSize(subMeshSize, height);
         this.subMeshSize = subMeshSize;
         this.height = height;
 
@@ -59,36 +59,27 @@ public class WorldFileViewer {
     }
 
     public void view() throws Exception {
-        final Map<Long, Long> mapping = worldFile.getMapping();
-        for (final Long key : mapping.keySet()) {
+        for (final Long key : worldFile.getKeys()) {
             final int x = WorldFile.getCoordinateX(key);
             final int z = WorldFile.getCoordinateZ(key);
-            final byte[] dataSource = worldFile.load(x, z);
-            paintChunk(x, z, dataSource);
+            // the column heights are kept with the map, the chunk is only loaded if they are not
+            final ChunkSummary summary = worldFile.getSummary(x, z);
+            if (summary != null) {
+                paintChunk(x, z, summary);
+            }
         }
     }
 
-    private void paintChunk(final int x, final int z, final byte[] dataSource) {
+    private void paintChunk(final int x, final int z, final ChunkSummary summary) {
         final int xPos = x * size + 400;
         final int yPos = z * size + 400;
 
         for (int xx = 0; xx < subMeshSize; xx++) {
             for (int zz = 0; zz < subMeshSize; zz++) {
-                for (int yy = height - 1; yy >= 0; yy--) {
-                    final int b = dataSource[xx + (yy + zz * height) * subMeshSize] & 0xff;
-
-                    if (b != 0) {
-                        // g2.setColor(colors[b]);
-                        g2.setColor(heightCol2[yy]);
-
-                        // final ColorRGBA c1 = colors[b];
-                        // final ColorRGBA c2 = heightCol[yy];
-                        // g2.setColor(new Color(c1.getRed() * c2.getRed(), c1.getGreen() * c2.getGreen(), c1.getBlue()
-                        // * c2.getBlue()));
-
-                        g2.fillRect(xPos + xx * subsize, yPos + zz * subsize, subsize, subsize);
-                        break;
-                    }
+                final int yy = summary.getTopHeight(xx, zz) - 1;
+                if (yy >= 0) {
+                    g2.setColor(heightCol2[Math.min(yy, heightCol2.length - 1)]);
+                    g2.fillRect(xPos + xx * subsize, yPos + zz * subsize, subsize, subsize);
                 }
             }
         }
@@ -0,0 +1,109 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.file;
+
+import java.io.IOException;
+
+/**
+ * Persistent chunk storage, either a single {@link WorldFile} or a directory of region files ({@link RegionWorldFile}
+ * ) for very large maps.
+ * <p>
+ * Chunks are addressed by chunk coordinates, journaled edits by world block coordinates.
+ */
+public interface WorldStorage {
+    boolean contains(int x, int z);
+
+    /**
+     * @return version of the chunk, which changes whenever its contents change, or 0 if there is no data for the
+     *         coordinates
+     */
+    long getVersion(int x, int z);
+
+    /**
+     * @return summary of the chunk, made from the chunk only if it is not kept, or null if there is no data for the
+     *         coordinates or the chunk size is not known
+     * @see WorldFile#getSummary(int, int)
+     */
+    ChunkSummary getSummary(int x, int z) throws IOException;
+
+    /**
+     * @return the chunk data, or null if there is none for the coordinates
+     */
+    byte[] load(int x, int z) throws IOException;
+
+    /**
+     * Loads a chunk into the start of the given array.
+     *
+     * @return number of bytes loaded, or -1 if there is no data for the coordinates
+     */
+    int load(int x, int z, byte[] target) throws IOException;
+
+    /**
+     * Loads a chunk as stored, without decompressing it. A chunk with journaled edits not yet part of the stored data
+     * is decoded, edited and encoded again with the current codec.
+     * 
+     * @return the compressed chunk, or null if there is no data for the coordinates
+     */
+    EncodedChunk loadEncoded(int x, int z) throws IOException;
+
+    void save(int x, int z, byte[] data) throws IOException;
+
+    /**
+     * Saves a chunk snapshot that contains the journaled edits before the given sequence.
+     *
+     * @see #getJournalSequence(int, int)
+     */
+    void save(int x, int z, byte[] data, long coveredSequence) throws IOException;
+
+    void setCodec(ChunkCodec codec);
+
+    /**
+     * @return the codec used for saves
+     */
+    ChunkCodec getCodec();
+
+    /**
+     * Starts journaling edits for chunks of the given size.
+     */
+    void enableJournal(int width, int height) throws IOException;
+
+    void appendEdit(int x, int y, int z, int blockId, int orientation) throws IOException;
+
+    /**
+     * Forces stored chunks and journaled edits to disk.
+     */
+    void flushJournal() throws IOException;
+
+    /**
+     * @return sequence the next journaled edit to the chunk will get
+     */
+    long getJournalSequence(int x, int z) throws IOException;
+
+    /**
+     * Moves up to the given number of records into free space so files shrink.
+     *
+     * @return number of records moved
+     */
+    int compact(int maxRecords) throws IOException;
+
+    /**
+     * @return bytes in free blocks, of the files that are open
+     */
+    long getFreeBytes();
+
+    /**
+     * @return length of the files that are open
+     */
+    long size() throws IOException;
+
+    /**
+     * Writes index sidecars so the next open does not have to scan.
+     */
+    void checkpoint() throws IOException;
+
+    void close() throws IOException;
+}
@@ -6,6 +6,7 @@
 
 package com.ardorcraft.util;
 
+import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 
@@ -33,6 +34,21 @@ public final class DoubleBufferedList<T> {
         }
     }
 
+    /**
+     * Adds a number of elements under one lock, null elements are skipped.
+     * 
+     * @param elements
+     */
+    public void addAll(final Collection<? extends T> elements) {
+        synchronized (backList) {
+            for (final T t : elements) {
+                if (t != null) {
+                    backList.add(t);
+                }
+            }
+        }
+    }
+
     /**
      * The switchAndGet call and it's returned list has to be accessed sequencially.
      * 
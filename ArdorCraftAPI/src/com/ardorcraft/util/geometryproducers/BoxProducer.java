@@ -66,7 +66,7 @@ public final class BoxProducer implements GeometryProducer {
         int startIndex = 0;
 
         final boolean isTransparent = blockUtil.getIsSemiTransparent(blockId);
-        final BlockSide orientation = BlockSide.values()[provider.getBlockExtra(x, y, z)];
+        final BlockSide orientation = BlockSide.fromOrdinal(provider.getBlockExtra(x, y, z));
 
         for (int face = 0; face < 6; face++) {
             final int xChange = checkDirs[face * 3 + 0];
@@ -75,7 +75,7 @@ public final class MeshProducer implements GeometryProducer {
     public void generateBlock(final int blockId, final GeometryHandler geometryHandler,
             final BlockProvider blockProvider, final BlockUtil blockUtil, final int x, final int y, final int z) {
 
-        final BlockSide orientation = BlockSide.values()[blockProvider.getBlockExtra(x, y, z)];
+        final BlockSide orientation = BlockSide.fromOrdinal(blockProvider.getBlockExtra(x, y, z));
         final MeshData data = meshDatas.get(orientation);
 
         if (geometryHandler.hasVertices()) {
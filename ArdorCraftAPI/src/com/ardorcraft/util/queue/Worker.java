@@ -42,6 +42,18 @@ public class Worker {
     private final Set<Task> taskCleaner = Sets.newHashSet();
 
     public void execute(final Renderer renderer) {
+        execute(renderer, executionTime);
+    }
+
+    /**
+     * Execute queued tasks until the given time budget is used up.
+     * 
+     * @param renderer
+     * @param budget
+     *            Time budget in milliseconds
+     * @return Time spent in milliseconds
+     */
+    public long execute(final Renderer renderer, final long budget) {
         final long beginTime = System.currentTimeMillis();
         long elapsedTime = 0;
 
@@ -73,7 +85,7 @@ public class Worker {
 
         if (size > 0) {
             int tasksFinished = 0;
-            for (int i = 0; i < size && elapsedTime < executionTime; i++) {
+            for (int i = 0; i < size && elapsedTime < budget; i++) {
                 taskList.get(i).execute(renderer);
                 // System.out.println(taskList.get(i));
                 tasksFinished++;
@@ -89,6 +101,22 @@ public class Worker {
                 lock.unlock();
             }
         }
+
+        return elapsedTime;
+    }
+
+    /**
+     * Get number of tasks currently waiting in the queue.
+     * 
+     * @return int
+     */
+    public int getTaskCount() {
+        lock.lock();
+        try {
+            return taskList.size();
+        } finally {
+            lock.unlock();
+        }
     }
 
     public long getExecutionTime() {
@@ -6,8 +6,31 @@
 
 package com.ardorcraft.util.queue;
 
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import com.ardor3d.renderer.Renderer;
+import com.google.common.collect.Maps;
+
+/**
+ * Keeps track of the Workers that should be executed each frame. The default Worker is shared by all block worlds that
+ * does not get their own Worker through the WorldSettings.
+ * <p>
+ * When running several block worlds in one application, use {@link #executeAll(Renderer)} from the render thread to
+ * split the frame time fairly between all registered Workers. Registrations are counted, a Worker shared by several
+ * block worlds stays registered until the last of them unregisters it.
+ */
 public final class WorkerManager {
     private static final Worker worker = new Worker();
+    private static final CopyOnWriteArrayList<Worker> workers = new CopyOnWriteArrayList<Worker>();
+    /** Registration count per Worker, guarded by the class. */
+    private static final Map<Worker, Integer> registrations = Maps.newIdentityHashMap();
+    private static long frameBudget = 8;
+    private static int startIndex = 0;
+
+    static {
+        workers.add(worker);
+    }
 
     private WorkerManager() {
 
@@ -16,4 +39,109 @@ public final class WorkerManager {
     public static Worker getWorker() {
         return worker;
     }
+
+    /**
+     * Create a new Worker. A block world registers the Worker it uses while its threads run.
+     * 
+     * @return Worker
+     */
+    public static Worker createWorker() {
+        return new Worker();
+    }
+
+    /**
+     * Register a Worker to be executed by {@link #executeAll(Renderer)}. Every call needs a matching
+     * {@link #unregister(Worker)}.
+     * 
+     * @param worker
+     */
+    public static synchronized void register(final Worker worker) {
+        final Integer count = registrations.get(worker);
+        registrations.put(worker, count != null ? count + 1 : 1);
+        workers.addIfAbsent(worker);
+    }
+
+    /**
+     * Unregister a Worker. It is no longer executed once every registration of it is undone. The default Worker is
+     * always kept.
+     * 
+     * @param worker
+     */
+    public static synchronized void unregister(final Worker worker) {
+        final Integer count = registrations.get(worker);
+        if (count == null) {
+            return;
+        }
+        if (count > 1) {
+            registrations.put(worker, count - 1);
+            return;
+        }
+        registrations.remove(worker);
+        if (worker != WorkerManager.worker) {
+            workers.remove(worker);
+        }
+    }
+
+    /**
+     * Execute all registered Workers within the frame budget.
+     * 
+     * @param renderer
+     */
+    public static void executeAll(final Renderer renderer) {
+        executeAll(renderer, frameBudget);
+    }
+
+    /**
+     * Execute all registered Workers within the given time budget. The budget is split evenly between the Workers
+     * that have tasks queued, capped by each Worker's own execution time, and time left over by one Worker is handed to
+     * the next. The Worker that goes first is
+     * rotated every call so no world is starved.
+     * 
+     * @param renderer
+     * @param budget
+     *            Time budget in milliseconds
+     */
+    public static void executeAll(final Renderer renderer, final long budget) {
+        final Worker[] currentWorkers = workers.toArray(new Worker[0]);
+        final int size = currentWorkers.length;
+        if (size == 0) {
+            return;
+        }
+
+        int activeWorkers = 0;
+        for (final Worker currentWorker : currentWorkers) {
+            if (currentWorker.getTaskCount() > 0) {
+                activeWorkers++;
+            }
+        }
+        if (activeWorkers == 0) {
+            return;
+        }
+
+        startIndex = (startIndex + 1) % size;
+        long remaining = budget;
+        for (int i = 0; i < size && activeWorkers > 0; i++) {
+            final Worker currentWorker = currentWorkers[(startIndex + i) % size];
+            if (currentWorker.getTaskCount() == 0) {
+                continue;
+            }
+            final long share = Math.min(currentWorker.getExecutionTime(), Math.max(1, remaining / activeWorkers));
+            remaining -= currentWorker.execute(renderer, share);
+            activeWorkers--;
+        }
+    }
+
+    public static long getFrameBudget() {
+        return frameBudget;
+    }
+
+    /**
+     * Set the total time in milliseconds all Workers are allowed to spend per frame in
+     * {@link #executeAll(Renderer)}.
+     * 
+     * @param frameBudget
+     */
+    public static void setFrameBudget(final long frameBudget) {
+        WorkerManager.frameBudget = frameBudget;
+    }
 }
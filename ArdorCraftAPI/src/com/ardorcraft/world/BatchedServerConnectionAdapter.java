@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.world;
+
+import java.util.List;
+
+import com.ardor3d.math.type.ReadOnlyVector3;
+import com.ardorcraft.data.Pos;
+
+/**
+ * Adapts a connection without batch support, batches are sent as single requests in priority order.
+ */
+public class BatchedServerConnectionAdapter implements IBatchedServerConnection {
+    private final IServerConnection connection;
+
+    public BatchedServerConnectionAdapter(final IServerConnection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * @return the connection itself if it takes batches, otherwise an adapter for it
+     */
+    public static IBatchedServerConnection adapt(final IServerConnection connection) {
+        if (connection instanceof IBatchedServerConnection) {
+            return (IBatchedServerConnection) connection;
+        }
+        return new BatchedServerConnectionAdapter(connection);
+    }
+
+    @Override
+    public void requestChunks(final List<Pos> positions) {
+        for (final Pos pos : positions) {
+            connection.requestChunk(pos.x, pos.z);
+        }
+    }
+
+    @Override
+    public void getModifier(final ChunkModifier chunkModifier) {
+        connection.getModifier(chunkModifier);
+    }
+
+    @Override
+    public void update(final int x, final int z) {
+        connection.update(x, z);
+    }
+
+    @Override
+    public void requestChunk(final int x, final int z) {
+        connection.requestChunk(x, z);
+    }
+
+    @Override
+    public void setBlock(final int x, final int y, final int z, final int blockId, final BlockSide orientation) {
+        connection.setBlock(x, y, z, blockId, orientation);
+    }
+
+    @Override
+    public void updatePlayerPosition(final ReadOnlyVector3 location, final ReadOnlyVector3 direction) {
+        connection.updatePlayerPosition(location, direction);
+    }
+
+    @Override
+    public void connect(final String address) {
+        connection.connect(address);
+    }
+
+    @Override
+    public void close() {
+        connection.close();
+    }
+}
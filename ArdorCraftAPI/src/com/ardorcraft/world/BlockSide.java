@@ -15,5 +15,14 @@ public enum BlockSide {
     Left,
     Right,
     Top,
-    Bottom
+    Bottom;
+
+    private static final BlockSide[] VALUES = values();
+
+    /**
+     * Same as values()[ordinal], without copying the values array on each call.
+     */
+    public static BlockSide fromOrdinal(final int ordinal) {
+        return VALUES[ordinal];
+    }
 }
@@ -14,7 +14,6 @@ import java.nio.IntBuffer;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
@@ -67,8 +66,9 @@ import com.ardorcraft.util.ColorUtil;
 import com.ardorcraft.util.DoubleBufferedList;
 import com.ardorcraft.util.queue.Coords;
 import com.ardorcraft.util.queue.Task;
+import com.ardorcraft.util.queue.Worker;
 import com.ardorcraft.util.queue.WorkerManager;
-import com.ardorcraft.world.utils.ChunkDistanceComparator;
+import com.ardorcraft.world.utils.DirectionalPrefetchPolicy;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
@@ -88,6 +88,10 @@ import com.google.common.collect.Sets;
  * ...<br>
  * blockWorld.startThreads();
  * </code>
+ * <p>
+ * Chunks leaving the world are kept compressed in memory up to {@link WorldSettings#getColdCacheBytes()}, and restored
+ * from there when they come back instead of being requested from the server again, unless the connection is an
+ * {@link ICachingServerConnection}.
  */
 public final class BlockWorld implements BlockProvider, LightProvider, ChunkModifier {
     private static final Logger logger = Logger.getLogger(BlockWorld.class.getName());
@@ -133,6 +137,9 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
     private final BitSet isLightSolid;
 
     private final Set<Pos> currentPos = new LinkedHashSet<Pos>();
+    private final Set<Pos> keptPos = new LinkedHashSet<Pos>();
+    private final List<Pos> lookAheadPos = Lists.newArrayList();
+    private final Pos priorityCenter = new Pos();
     private int oldX = Integer.MAX_VALUE;
     private int oldZ = Integer.MAX_VALUE;
     private int playerPositionX = Integer.MIN_VALUE;
@@ -152,11 +159,15 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
     private Node solidNode;
     private Node transparentNode;
 
-    private final IServerConnection serverConnection;
+    private final IBatchedServerConnection serverConnection;
+    private final Worker worker;
+    private final ChunkPrefetchPolicy prefetchPolicy;
 
     private final Map<Pos, Mesh> meshCache = Maps.newHashMap();
     private final Map<Pos, Mesh> meshCacheTransparent = Maps.newHashMap();
-    private final Set<Pos> isLoaded = Collections.synchronizedSet(new HashSet<Pos>());
+    private final ChunkStateTable chunkStates;
+    /** Chunks that left the ring buffer, null if turned off. */
+    private final ColdChunkStore coldStore;
 
     private final DoubleBufferedList<Pos> lightUpdateBox = new DoubleBufferedList<Pos>();
     private final DoubleBufferedList<UpdateMessage> chunkMailBox = new DoubleBufferedList<UpdateMessage>();
@@ -165,6 +176,10 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
     private int currentTileX;
     private int currentTileZ;
     private final int gridUnitSize;
+    private final int unloadMargin;
+    private final int ringUnitSize;
+    private final boolean[] hiddenSolid;
+    private final boolean[] hiddenTransparent;
 
     private final CountDownLatch exitLatch = new CountDownLatch(2);
     private boolean threadsStarted = false;
@@ -196,7 +211,10 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
         Preconditions.checkNotNull(settings.getServerConnection());
 
         this.settings = new WorldSettings(settings);
-        width = settings.getGridSize() * settings.getTileSize();
+        gridUnitSize = settings.getGridSize();
+        unloadMargin = settings.getUnloadMargin();
+        ringUnitSize = gridUnitSize + 2 * unloadMargin;
+        width = ringUnitSize * settings.getTileSize();
         height = settings.getTileHeight();
         subMeshSize = settings.getTileSize();
 
@@ -207,10 +225,19 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
             logger.info("Using VBO");
         }
 
-        WorkerManager.getWorker().setExecutionTime(8);
+        if (settings.getWorker() != null) {
+            worker = settings.getWorker();
+        } else {
+            worker = WorkerManager.getWorker();
+            worker.setExecutionTime(8);
+        }
 
-        gridUnitSize = settings.getGridSize();
         gridSize = width / 2;
+        prefetchPolicy = settings.getPrefetchPolicy() != null ? settings.getPrefetchPolicy()
+                : new DirectionalPrefetchPolicy();
+        chunkStates = new ChunkStateTable(ringUnitSize);
+        hiddenSolid = new boolean[ringUnitSize * ringUnitSize];
+        hiddenTransparent = new boolean[ringUnitSize * ringUnitSize];
 
         geometryHandler = new GeometryHandler(BlockWorld.this);
         tmpVertices = new float[subMeshSize * height * subMeshSize * 24 * 3 / 2];
@@ -235,8 +262,12 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
 
         isLightSolid = new BitSet();
 
-        serverConnection = settings.getServerConnection();
+        serverConnection = BatchedServerConnectionAdapter.adapt(settings.getServerConnection());
         serverConnection.getModifier(this);
+        // a caching connection revalidates its chunks with the server, a restore would bypass it
+        final boolean keepCold = settings.getColdCacheBytes() > 0
+                && !(settings.getServerConnection() instanceof ICachingServerConnection);
+        coldStore = keepCold ? new ColdChunkStore(this, serverConnection, settings.getColdCacheBytes()) : null;
 
         createWorld(settings);
     }
@@ -399,6 +430,8 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
             lightUpdater.setDaemon(true);
             lightUpdater.start();
 
+            WorkerManager.register(worker);
+
             threadsStarted = true;
         }
     }
@@ -425,9 +458,7 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
 
         if (playerPositionX == oldX && playerPositionZ == oldZ) {
             if (lightingChanged) {
-                for (final Pos pos : currentPos) {
-                    chunkMailBox.add(new LightMessage(pos.x, pos.z));
-                }
+                relightAll();
                 lightingChanged = false;
             }
             return;
@@ -449,42 +480,137 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
             }
         }
 
+        // Kept chunks are dropped once they are further out than the unload margin
+        final Iterator<Pos> keptIterator = keptPos.iterator();
+        while (keptIterator.hasNext()) {
+            final Pos pos = keptIterator.next();
+
+            if (isChunkOutside(pos.x, pos.z)) {
+                evictChunk(pos.x, pos.z);
+                keptIterator.remove();
+            } else if (newPos.contains(pos)) {
+                keptIterator.remove();
+            }
+        }
+
         final Iterator<Pos> tileIterator = currentPos.iterator();
         while (tileIterator.hasNext()) {
             final Pos pos = tileIterator.next();
 
             if (!newPos.contains(pos)) {
-                isLoaded.remove(pos);
+                if (isChunkOutside(pos.x, pos.z)) {
+                    evictChunk(pos.x, pos.z);
+                } else {
+                    keptPos.add(pos);
+                }
+                hideChunk(pos.x, pos.z);
                 tileIterator.remove();
             } else {
                 newPos.remove(pos);
             }
         }
 
+        // all requests of a move go out as one batch, in view chunks first
+        final List<Pos> requests = Lists.newArrayList();
         if (!newPos.isEmpty()) {
             final List<Pos> sortedPos = Lists.newArrayList();
             sortedPos.addAll(newPos);
-            Collections.sort(sortedPos, new ChunkDistanceComparator(playerPositionX, playerPositionZ));
+            Collections.sort(sortedPos, prefetchPolicy.getRequestOrder(playerPositionX, playerPositionZ));
 
-            // TODO
             for (final Pos coll : sortedPos) {
-                serverConnection.requestChunk(coll.x, coll.z);
+                if (chunkStates.request(coll.x, coll.z)) {
+                    if (!restoreChunk(coll.x, coll.z)) {
+                        requests.add(coll);
+                    }
+                } else {
+                    showChunk(coll.x, coll.z);
+                }
             }
         }
 
-        if (lightingChanged) {
-            for (final Pos pos : currentPos) {
-                chunkMailBox.add(new LightMessage(pos.x, pos.z));
+        if (unloadMargin > 0) {
+            lookAheadPos.clear();
+            prefetchPolicy.getLookAhead(playerPositionX, playerPositionZ, gridUnitSize, unloadMargin, lookAheadPos);
+            Collections.sort(lookAheadPos, prefetchPolicy.getRequestOrder(playerPositionX, playerPositionZ));
+            for (final Pos pos : lookAheadPos) {
+                if (isChunkOutside(pos.x, pos.z) || isChunkInView(pos.x, pos.z)) {
+                    continue;
+                }
+                if (chunkStates.request(pos.x, pos.z) && !restoreChunk(pos.x, pos.z)) {
+                    requests.add(pos);
+                }
+                keptPos.add(pos);
             }
+        }
+        if (!requests.isEmpty()) {
+            serverConnection.requestChunks(requests);
+        }
+
+        if (lightingChanged) {
+            relightAll();
             lightingChanged = false;
         }
 
         currentPos.addAll(newPos);
     }
 
+    /**
+     * Relights the chunks in view and the ones kept in the unload margin, so a kept chunk does not come back into view
+     * with stale light. Hidden chunks stay hidden, their meshes are only updated.
+     */
+    private void relightAll() {
+        for (final Pos pos : currentPos) {
+            chunkMailBox.add(new LightMessage(pos.x, pos.z));
+        }
+        for (final Pos pos : keptPos) {
+            chunkMailBox.add(new LightMessage(pos.x, pos.z));
+        }
+    }
+
+    /**
+     * Drops a chunk that left the ring buffer, keeping a copy in the cold store if it was loaded.
+     */
+    private void evictChunk(final int x, final int z) {
+        if (coldStore != null) {
+            if (chunkStates.isLoaded(x, z)) {
+                final byte[] data = new byte[subMeshSize * height * subMeshSize];
+                final byte[] extra = new byte[data.length];
+                copyChunkOut(data, extra, x * subMeshSize, z * subMeshSize);
+                coldStore.store(x, z, data, extra);
+            } else {
+                coldStore.discard(x, z);
+            }
+        }
+        chunkStates.evict(x, z);
+    }
+
+    /**
+     * @return true if the chunk is restored from the cold store, false if it has to be requested
+     */
+    private boolean restoreChunk(final int x, final int z) {
+        return coldStore != null && coldStore.restore(x, z);
+    }
+
     @Override
     public void postChunk(final int x, final int z, final Chunk chunk) {
-        chunkMailBox.add(new ChunkMessage(x, z, chunk.getBlocks(), chunk.getExtra()));
+        final int generation = chunkStates.accept(x, z);
+        if (generation < 0) {
+            return;
+        }
+        chunkMailBox.add(new ChunkMessage(x, z, generation, chunk.getBlocks(), chunk.getExtra()));
+    }
+
+    @Override
+    public void postChunks(final List<ChunkData> chunks) {
+        final List<UpdateMessage> messages = Lists.newArrayListWithCapacity(chunks.size());
+        for (final ChunkData data : chunks) {
+            final int generation = chunkStates.accept(data.x, data.z);
+            if (generation >= 0) {
+                messages.add(new ChunkMessage(data.x, data.z, generation, data.chunk.getBlocks(), data.chunk
+                        .getExtra()));
+            }
+        }
+        chunkMailBox.addAll(messages);
     }
 
     /**
@@ -499,7 +625,9 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
         playerPositionX = MathUtils.floor(location.getXf() / subMeshSize);
         playerPositionZ = MathUtils.floor(location.getZf() / subMeshSize);
 
-        WorkerManager.getWorker().setPlayerCoords(playerPositionX, playerPositionZ);
+        prefetchPolicy.updatePlayer(location, direction, subMeshSize);
+        prefetchPolicy.getPriorityCenter(playerPositionX, playerPositionZ, priorityCenter);
+        worker.setPlayerCoords(priorityCenter.x, priorityCenter.z);
 
         currentTileX = playerPositionX * subMeshSize;
         currentTileZ = playerPositionZ * subMeshSize;
@@ -509,11 +637,73 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
      * Reload all chunks.
      */
     public void reloadAll() {
+        chunkStates.evictAll();
+        if (coldStore != null) {
+            coldStore.clear();
+        }
         currentPos.clear();
+        keptPos.clear();
         oldX = Integer.MAX_VALUE;
         oldZ = Integer.MAX_VALUE;
     }
 
+    /**
+     * Detach the meshes of a chunk that has left the view. The mesh data is kept so the chunk can be shown again
+     * without a rebuild if it comes back while still inside the unload margin.
+     */
+    private void hideChunk(final int x, final int z) {
+        worker.enqueue(new Task(CHUNK, x, z) {
+            @Override
+            public void execute(final Renderer renderer) {
+                if (isChunkInView(x, z)) {
+                    return;
+                }
+
+                final int slot = getRingSlot(x, z);
+                final Pos pos = new Pos(MathUtils.moduloPositive(x, ringUnitSize), 0, MathUtils.moduloPositive(z,
+                        ringUnitSize));
+                final Mesh mesh = meshCache.get(pos);
+                if (mesh != null && solidNode.hasChild(mesh)) {
+                    solidNode.detachChild(mesh);
+                    hiddenSolid[slot] = true;
+                }
+                final Mesh meshTransparent = meshCacheTransparent.get(pos);
+                if (meshTransparent != null && transparentNode.hasChild(meshTransparent)) {
+                    transparentNode.detachChild(meshTransparent);
+                    hiddenTransparent[slot] = true;
+                }
+            }
+        });
+    }
+
+    /**
+     * Reattach the meshes of a kept chunk that has come back into view.
+     */
+    private void showChunk(final int x, final int z) {
+        worker.enqueue(new Task(CHUNK, x, z) {
+            @Override
+            public void execute(final Renderer renderer) {
+                if (!isChunkInView(x, z) || chunkStates.getState(x, z) != ChunkState.MESHED) {
+                    return;
+                }
+
+                final int slot = getRingSlot(x, z);
+                final Pos pos = new Pos(MathUtils.moduloPositive(x, ringUnitSize), 0, MathUtils.moduloPositive(z,
+                        ringUnitSize));
+                final Mesh mesh = meshCache.get(pos);
+                if (hiddenSolid[slot] && mesh != null && !solidNode.hasChild(mesh)) {
+                    solidNode.attachChild(mesh);
+                }
+                hiddenSolid[slot] = false;
+                final Mesh meshTransparent = meshCacheTransparent.get(pos);
+                if (hiddenTransparent[slot] && meshTransparent != null && !transparentNode.hasChild(meshTransparent)) {
+                    transparentNode.attachChild(meshTransparent);
+                }
+                hiddenTransparent[slot] = false;
+            }
+        });
+    }
+
     private final class LightUpdater implements Runnable {
         private final Set<Pos> updates = new LinkedHashSet<Pos>();
 
@@ -609,6 +799,7 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
                     }
 
                     for (final Pos pos : updates) {
+                        chunkStates.advance(pos.x, pos.z, ChunkState.LIT);
                         chunkMailBox.add(new LightMessage(pos.x, pos.z));
                     }
 
@@ -630,22 +821,26 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
     }
 
     private final class ChunkUpdater implements Runnable {
+        private static final int NEEDS_DATA = 1 << 0;
+        private static final int NEEDS_BLOCKS = 1 << 1;
+        private static final int NEEDS_REBUILD = 1 << 2;
+        private static final int NEEDS_LIGHT = 1 << 3;
+
+        // Per ring slot dirty state, collected from the mailbox and drained into tasks once per batch
+        private final byte[] dirtyFlags = new byte[ringUnitSize * ringUnitSize];
+        private final int[] dirtyChunkX = new int[ringUnitSize * ringUnitSize];
+        private final int[] dirtyChunkZ = new int[ringUnitSize * ringUnitSize];
+        private final ChunkMessage[] pendingData = new ChunkMessage[ringUnitSize * ringUnitSize];
+        private final BlocksMessage[] pendingBlocks = new BlocksMessage[ringUnitSize * ringUnitSize];
+        private final int[] dirtySlots = new int[ringUnitSize * ringUnitSize];
+        private int dirtyCount = 0;
+
         @Override
         public void run() {
-            final List<UpdateMessage> dataUpdates = Lists.newArrayList();
-            final List<BlocksMessage> blockDataUpdates = Lists.newArrayList();
-            final List<UpdateMessage> rebuildUpdates = Lists.newArrayList();
-            final List<UpdateMessage> lightUpdates = Lists.newArrayList();
-
             while (!exit) {
                 final List<UpdateMessage> list = chunkMailBox.switchAndGet();
 
                 if (!list.isEmpty()) {
-                    dataUpdates.clear();
-                    blockDataUpdates.clear();
-                    rebuildUpdates.clear();
-                    lightUpdates.clear();
-
                     for (final UpdateMessage updateMessage : list) {
                         if (updateMessage == null) {
                             continue;
@@ -655,209 +850,50 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
                             continue;
                         }
 
-                        if (updateMessage instanceof ChunkMessage) {
-                            dataUpdates.add(updateMessage);
+                        final int chunkX = updateMessage.chunkX;
+                        final int chunkZ = updateMessage.chunkZ;
 
-                            final RebuildMessage rebuildMessageX = new RebuildMessage(updateMessage.chunkX,
-                                    updateMessage.chunkZ);
-                            if (!rebuildUpdates.contains(rebuildMessageX)) {
-                                rebuildUpdates.add(rebuildMessageX);
-                            }
+                        if (updateMessage instanceof ChunkMessage) {
+                            final int slot = markDirty(chunkX, chunkZ, NEEDS_DATA | NEEDS_REBUILD);
+                            pendingData[slot] = (ChunkMessage) updateMessage;
 
-                            if (!isChunkOutside(updateMessage.chunkX - 1, updateMessage.chunkZ)) {
-                                final RebuildMessage rebuildMessage = new RebuildMessage(updateMessage.chunkX - 1,
-                                        updateMessage.chunkZ);
-                                if (!rebuildUpdates.contains(rebuildMessage)) {
-                                    rebuildUpdates.add(rebuildMessage);
-                                }
+                            if (!isChunkOutside(chunkX - 1, chunkZ)) {
+                                markDirty(chunkX - 1, chunkZ, NEEDS_REBUILD);
                             }
-                            if (!isChunkOutside(updateMessage.chunkX + 1, updateMessage.chunkZ)) {
-                                final RebuildMessage rebuildMessage = new RebuildMessage(updateMessage.chunkX + 1,
-                                        updateMessage.chunkZ);
-                                if (!rebuildUpdates.contains(rebuildMessage)) {
-                                    rebuildUpdates.add(rebuildMessage);
-                                }
+                            if (!isChunkOutside(chunkX + 1, chunkZ)) {
+                                markDirty(chunkX + 1, chunkZ, NEEDS_REBUILD);
                             }
-                            if (!isChunkOutside(updateMessage.chunkX, updateMessage.chunkZ - 1)) {
-                                final RebuildMessage rebuildMessage = new RebuildMessage(updateMessage.chunkX,
-                                        updateMessage.chunkZ - 1);
-                                if (!rebuildUpdates.contains(rebuildMessage)) {
-                                    rebuildUpdates.add(rebuildMessage);
-                                }
+                            if (!isChunkOutside(chunkX, chunkZ - 1)) {
+                                markDirty(chunkX, chunkZ - 1, NEEDS_REBUILD);
                             }
-                            if (!isChunkOutside(updateMessage.chunkX, updateMessage.chunkZ + 1)) {
-                                final RebuildMessage rebuildMessage = new RebuildMessage(updateMessage.chunkX,
-                                        updateMessage.chunkZ + 1);
-                                if (!rebuildUpdates.contains(rebuildMessage)) {
-                                    rebuildUpdates.add(rebuildMessage);
-                                }
+                            if (!isChunkOutside(chunkX, chunkZ + 1)) {
+                                markDirty(chunkX, chunkZ + 1, NEEDS_REBUILD);
                             }
-
                         } else if (updateMessage instanceof BlocksMessage) {
                             final BlocksMessage message = (BlocksMessage) updateMessage;
 
-                            if (blockDataUpdates.contains(message)) {
-                                final BlocksMessage messageOld = blockDataUpdates
-                                        .get(blockDataUpdates.indexOf(message));
-                                messageOld.blockUpdates.addAll(message.blockUpdates);
+                            final int slot = markDirty(chunkX, chunkZ, NEEDS_BLOCKS | NEEDS_REBUILD);
+                            if (pendingBlocks[slot] != null) {
+                                pendingBlocks[slot].blockUpdates.addAll(message.blockUpdates);
+                                pendingBlocks[slot].serverUpdates.addAll(message.serverUpdates);
                             } else {
-                                blockDataUpdates.add((BlocksMessage) updateMessage);
-
-                                final RebuildMessage rebuildMessageX = new RebuildMessage(updateMessage.chunkX,
-                                        updateMessage.chunkZ);
-                                if (!rebuildUpdates.contains(rebuildMessageX)) {
-                                    rebuildUpdates.add(rebuildMessageX);
-                                }
+                                pendingBlocks[slot] = message;
                             }
 
                             for (final BlockEditData data : message.blockUpdates) {
-                                addBlockEditDatas(rebuildUpdates, updateMessage, data.pos);
-                            }
-                        } else if (updateMessage instanceof RebuildMessage) {
-                            if (!rebuildUpdates.contains(updateMessage)) {
-                                rebuildUpdates.add(updateMessage);
+                                addBlockEditDatas(chunkX, chunkZ, data.pos);
                             }
-                        }
-                    }
-
-                    for (final UpdateMessage updateMessage : list) {
-                        if (updateMessage instanceof LightMessage) {
-                            if (!rebuildUpdates.contains(updateMessage) && !lightUpdates.contains(updateMessage)) {
-                                lightUpdates.add(updateMessage);
+                            for (final BlockEditData data : message.serverUpdates) {
+                                addBlockEditDatas(chunkX, chunkZ, data.pos);
                             }
+                        } else if (updateMessage instanceof RebuildMessage) {
+                            markDirty(chunkX, chunkZ, NEEDS_REBUILD);
+                        } else if (updateMessage instanceof LightMessage) {
+                            markDirty(chunkX, chunkZ, NEEDS_LIGHT);
                         }
                     }
 
-                    for (final UpdateMessage updateMessage : dataUpdates) {
-                        if (updateMessage instanceof ChunkMessage) {
-                            final ChunkMessage message = (ChunkMessage) updateMessage;
-
-                            WorkerManager.getWorker().enqueue(
-                                    new Task(CHUNK, updateMessage.chunkX, updateMessage.chunkZ) {
-                                        @Override
-                                        public void execute(final Renderer renderer) {
-                                            final byte[] data = message.data;
-                                            final byte[] extra = message.extra;
-
-                                            final int x = message.chunkX;
-                                            final int z = message.chunkZ;
-
-                                            if (isChunkOutside(x, z)) {
-                                                return;
-                                            }
-
-                                            for (int xx = 0; xx < subMeshSize; xx++) {
-                                                for (int yy = 1; yy < height; yy++) {
-                                                    for (int zz = 0; zz < subMeshSize; zz++) {
-                                                        final int index = xx + (yy + zz * height) * subMeshSize;
-                                                        final int blockId = data[index] & 0xff;
-                                                        final BlockSide orientation = extra == null ? BlockSide.Front
-                                                                : BlockSide.values()[extra[index] & 0xff];
-
-                                                        setBlockInternal(xx + x * subMeshSize, yy,
-                                                                zz + z * subMeshSize, blockId, orientation);
-
-                                                        // TODO: optimize
-                                                        setLightMax(lightingWrite, xx + x * subMeshSize, yy, zz + z
-                                                                * subMeshSize);
-                                                    }
-                                                }
-                                            }
-
-                                            // initiateLightingOnly(x * subMeshSize, z * subMeshSize, x * subMeshSize
-                                            // + subMeshSize, z * subMeshSize + subMeshSize, height);
-
-                                            isLoaded.add(new Pos(x, 0, z));
-
-                                            lightUpdateBox.add(new Pos(x * subMeshSize, 0, z * subMeshSize));
-                                            lightUpdateBox.add(new Pos(x * subMeshSize + subMeshSize - 1, 0, z
-                                                    * subMeshSize));
-                                            lightUpdateBox.add(new Pos(x * subMeshSize, 0, z * subMeshSize
-                                                    + subMeshSize - 1));
-                                            lightUpdateBox.add(new Pos(x * subMeshSize + subMeshSize - 1, 0, z
-                                                    * subMeshSize + subMeshSize - 1));
-                                        }
-
-                                        private void setLightMax(final byte[] buffer, int x, int y, int z) {
-                                            x = MathUtils.moduloPositive(x, width);
-                                            y = MathUtils.clamp(y, 0, height - 1);
-                                            z = MathUtils.moduloPositive(z, width);
-
-                                            buffer[x + (y + z * height) * width] = (byte) 0xff;
-                                        }
-                                    });
-                        }
-                    }
-
-                    for (final UpdateMessage updateMessage : blockDataUpdates) {
-                        if (updateMessage instanceof BlocksMessage) {
-                            final BlocksMessage message = (BlocksMessage) updateMessage;
-
-                            WorkerManager.getWorker().enqueue(
-                                    new Task(BLOCKS, updateMessage.chunkX, updateMessage.chunkZ) {
-                                        @Override
-                                        public void execute(final Renderer renderer) {
-                                            final int x = message.chunkX;
-                                            final int z = message.chunkZ;
-
-                                            if (!isChunkValid(x, z)) {
-                                                return;
-                                            }
-
-                                            final List<BlockEditData> blockUpdates = message.blockUpdates;
-                                            for (final BlockEditData blockEditData : blockUpdates) {
-                                                final Pos pos = blockEditData.pos;
-                                                setBlockInternal(pos.x, pos.y, pos.z, blockEditData.type,
-                                                        blockEditData.orientation);
-                                                lightUpdateBox.add(pos);
-                                                serverConnection.setBlock(pos.x, pos.y, pos.z, blockEditData.type,
-                                                        blockEditData.orientation);
-                                            }
-
-                                            // initiateLightingOnly(x * subMeshSize, z * subMeshSize, x * subMeshSize
-                                            // + subMeshSize, z * subMeshSize + subMeshSize, height);
-                                        }
-                                    });
-                        }
-                    }
-
-                    for (final UpdateMessage updateMessage : rebuildUpdates) {
-                        if (updateMessage instanceof RebuildMessage) {
-                            WorkerManager.getWorker().enqueue(
-                                    new Task(REBUILD, updateMessage.chunkX, updateMessage.chunkZ) {
-                                        @Override
-                                        public void execute(final Renderer renderer) {
-                                            if (!isChunkValid(updateMessage.chunkX, updateMessage.chunkZ)) {
-                                                return;
-                                            }
-
-                                            createSubMesh(renderer, updateMessage.chunkX * subMeshSize, 0,
-                                                    updateMessage.chunkZ * subMeshSize, subMeshSize, height,
-                                                    subMeshSize, ALL);
-                                        }
-                                    });
-                        }
-                    }
-
-                    for (final UpdateMessage updateMessage : lightUpdates) {
-                        if (updateMessage instanceof LightMessage) {
-                            WorkerManager.getWorker().enqueue(
-                                    new Task(LIGHT, updateMessage.chunkX, updateMessage.chunkZ) {
-                                        @Override
-                                        public void execute(final Renderer renderer) {
-                                            final int x = updateMessage.chunkX;
-                                            final int z = updateMessage.chunkZ;
-
-                                            if (!isChunkValid(x, z)) {
-                                                return;
-                                            }
-
-                                            createSubMesh(renderer, x * subMeshSize, 0, z * subMeshSize, subMeshSize,
-                                                    height, subMeshSize, COLORS);
-                                        }
-                                    });
-                        }
-                    }
+                    drainDirty();
                 }
 
                 try {
@@ -869,82 +905,213 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
             exitLatch.countDown();
         }
 
-        private void addBlockEditDatas(final List<UpdateMessage> rebuildUpdates, final UpdateMessage updateMessage,
-                final Pos pos) {
-            final int xx = MathUtils.moduloPositive(pos.x, subMeshSize);
-            final int zz = MathUtils.moduloPositive(pos.z, subMeshSize);
-            if (xx == 0 && isChunkValid(updateMessage.chunkX - 1, updateMessage.chunkZ)) {
-                final RebuildMessage rebuildMessage = new RebuildMessage(updateMessage.chunkX - 1, updateMessage.chunkZ);
-                if (!rebuildUpdates.contains(rebuildMessage)) {
-                    rebuildUpdates.add(rebuildMessage);
-                }
-            } else if (xx == subMeshSize - 1 && isChunkValid(updateMessage.chunkX + 1, updateMessage.chunkZ)) {
-                final RebuildMessage rebuildMessage = new RebuildMessage(updateMessage.chunkX + 1, updateMessage.chunkZ);
-                if (!rebuildUpdates.contains(rebuildMessage)) {
-                    rebuildUpdates.add(rebuildMessage);
-                }
+        /**
+         * Flag a chunk as dirty. If the ring slot is currently flagged for another chunk, that chunk has moved out of
+         * view and its flags are dropped.
+         * 
+         * @return ring slot of the chunk
+         */
+        private int markDirty(final int chunkX, final int chunkZ, final int flags) {
+            final int slot = getRingSlot(chunkX, chunkZ);
+            if (dirtyFlags[slot] == 0) {
+                dirtySlots[dirtyCount++] = slot;
+                dirtyChunkX[slot] = chunkX;
+                dirtyChunkZ[slot] = chunkZ;
+            } else if (dirtyChunkX[slot] != chunkX || dirtyChunkZ[slot] != chunkZ) {
+                dirtyFlags[slot] = 0;
+                pendingData[slot] = null;
+                pendingBlocks[slot] = null;
+                dirtyChunkX[slot] = chunkX;
+                dirtyChunkZ[slot] = chunkZ;
             }
-            if (zz == 0 && isChunkValid(updateMessage.chunkX, updateMessage.chunkZ - 1)) {
-                final RebuildMessage rebuildMessage = new RebuildMessage(updateMessage.chunkX, updateMessage.chunkZ - 1);
-                if (!rebuildUpdates.contains(rebuildMessage)) {
-                    rebuildUpdates.add(rebuildMessage);
+            dirtyFlags[slot] |= flags;
+            return slot;
+        }
+
+        private void drainDirty() {
+            for (int i = 0; i < dirtyCount; i++) {
+                final int slot = dirtySlots[i];
+                final int flags = dirtyFlags[slot];
+
+                if ((flags & NEEDS_DATA) != 0) {
+                    enqueueChunk(pendingData[slot]);
+                }
+                if ((flags & NEEDS_BLOCKS) != 0) {
+                    enqueueBlocks(pendingBlocks[slot]);
                 }
-            } else if (zz == subMeshSize - 1 && isChunkValid(updateMessage.chunkX, updateMessage.chunkZ + 1)) {
-                final RebuildMessage rebuildMessage = new RebuildMessage(updateMessage.chunkX, updateMessage.chunkZ + 1);
-                if (!rebuildUpdates.contains(rebuildMessage)) {
-                    rebuildUpdates.add(rebuildMessage);
+                if ((flags & NEEDS_REBUILD) != 0) {
+                    enqueueRebuild(dirtyChunkX[slot], dirtyChunkZ[slot]);
+                } else if ((flags & NEEDS_LIGHT) != 0) {
+                    enqueueLight(dirtyChunkX[slot], dirtyChunkZ[slot]);
                 }
+
+                dirtyFlags[slot] = 0;
+                pendingData[slot] = null;
+                pendingBlocks[slot] = null;
             }
+            dirtyCount = 0;
+        }
+
+        private void enqueueChunk(final ChunkMessage message) {
+            worker.enqueue(new Task(CHUNK, message.chunkX, message.chunkZ) {
+                @Override
+                public void execute(final Renderer renderer) {
+                    final byte[] data = message.data;
+                    final byte[] extra = message.extra;
+
+                    final int x = message.chunkX;
+                    final int z = message.chunkZ;
+
+                    if (isChunkOutside(x, z) || !chunkStates.isCurrent(x, z, message.generation)) {
+                        return;
+                    }
+
+                    copyChunk(data, extra, x * subMeshSize, z * subMeshSize);
+
+                    // initiateLightingOnly(x * subMeshSize, z * subMeshSize, x * subMeshSize
+                    // + subMeshSize, z * subMeshSize + subMeshSize, height);
 
-            if (xx == 0 && zz == 0 && isChunkValid(updateMessage.chunkX - 1, updateMessage.chunkZ - 1)) {
-                final RebuildMessage rebuildMessage = new RebuildMessage(updateMessage.chunkX - 1,
-                        updateMessage.chunkZ - 1);
-                if (!rebuildUpdates.contains(rebuildMessage)) {
-                    rebuildUpdates.add(rebuildMessage);
+                    if (!chunkStates.setData(x, z, message.generation)) {
+                        return;
+                    }
+
+                    lightUpdateBox.add(new Pos(x * subMeshSize, 0, z * subMeshSize));
+                    lightUpdateBox.add(new Pos(x * subMeshSize + subMeshSize - 1, 0, z * subMeshSize));
+                    lightUpdateBox.add(new Pos(x * subMeshSize, 0, z * subMeshSize + subMeshSize - 1));
+                    lightUpdateBox.add(new Pos(x * subMeshSize + subMeshSize - 1, 0, z * subMeshSize + subMeshSize
+                            - 1));
                 }
-            } else if (xx == subMeshSize - 1 && zz == 0
-                    && isChunkValid(updateMessage.chunkX + 1, updateMessage.chunkZ - 1)) {
-                final RebuildMessage rebuildMessage = new RebuildMessage(updateMessage.chunkX + 1,
-                        updateMessage.chunkZ - 1);
-                if (!rebuildUpdates.contains(rebuildMessage)) {
-                    rebuildUpdates.add(rebuildMessage);
+            });
+        }
+
+        private void enqueueBlocks(final BlocksMessage message) {
+            worker.enqueue(new Task(BLOCKS, message.chunkX, message.chunkZ) {
+                @Override
+                public void execute(final Renderer renderer) {
+                    final int x = message.chunkX;
+                    final int z = message.chunkZ;
+
+                    if (!isChunkValid(x, z)) {
+                        return;
+                    }
+
+                    // edits from the server first, so local edits made after them win
+                    for (final BlockEditData blockEditData : message.serverUpdates) {
+                        final Pos pos = blockEditData.pos;
+                        setBlockInternal(pos.x, pos.y, pos.z, blockEditData.type, blockEditData.orientation);
+                        lightUpdateBox.add(pos);
+                    }
+
+                    final List<BlockEditData> blockUpdates = message.blockUpdates;
+                    for (final BlockEditData blockEditData : blockUpdates) {
+                        final Pos pos = blockEditData.pos;
+                        setBlockInternal(pos.x, pos.y, pos.z, blockEditData.type, blockEditData.orientation);
+                        lightUpdateBox.add(pos);
+                        serverConnection.setBlock(pos.x, pos.y, pos.z, blockEditData.type,
+                                blockEditData.orientation);
+                    }
+
+                    // initiateLightingOnly(x * subMeshSize, z * subMeshSize, x * subMeshSize
+                    // + subMeshSize, z * subMeshSize + subMeshSize, height);
                 }
-            } else if (xx == subMeshSize - 1 && zz == subMeshSize - 1
-                    && isChunkValid(updateMessage.chunkX + 1, updateMessage.chunkZ + 1)) {
-                final RebuildMessage rebuildMessage = new RebuildMessage(updateMessage.chunkX + 1,
-                        updateMessage.chunkZ + 1);
-                if (!rebuildUpdates.contains(rebuildMessage)) {
-                    rebuildUpdates.add(rebuildMessage);
+            });
+        }
+
+        private void enqueueRebuild(final int x, final int z) {
+            worker.enqueue(new Task(REBUILD, x, z) {
+                @Override
+                public void execute(final Renderer renderer) {
+                    if (!isChunkValid(x, z)) {
+                        return;
+                    }
+
+                    createSubMesh(renderer, x * subMeshSize, 0, z * subMeshSize, subMeshSize, height, subMeshSize, ALL);
+                    chunkStates.advance(x, z, ChunkState.MESHED);
                 }
-            } else if (xx == 0 && zz == subMeshSize - 1
-                    && isChunkValid(updateMessage.chunkX - 1, updateMessage.chunkZ + 1)) {
-                final RebuildMessage rebuildMessage = new RebuildMessage(updateMessage.chunkX - 1,
-                        updateMessage.chunkZ + 1);
-                if (!rebuildUpdates.contains(rebuildMessage)) {
-                    rebuildUpdates.add(rebuildMessage);
+            });
+        }
+
+        private void enqueueLight(final int x, final int z) {
+            worker.enqueue(new Task(LIGHT, x, z) {
+                @Override
+                public void execute(final Renderer renderer) {
+                    if (!isChunkValid(x, z)) {
+                        return;
+                    }
+
+                    createSubMesh(renderer, x * subMeshSize, 0, z * subMeshSize, subMeshSize, height, subMeshSize,
+                            COLORS);
                 }
+            });
+        }
+
+        private void addBlockEditDatas(final int chunkX, final int chunkZ, final Pos pos) {
+            final int xx = MathUtils.moduloPositive(pos.x, subMeshSize);
+            final int zz = MathUtils.moduloPositive(pos.z, subMeshSize);
+            if (xx == 0 && isChunkValid(chunkX - 1, chunkZ)) {
+                markDirty(chunkX - 1, chunkZ, NEEDS_REBUILD);
+            } else if (xx == subMeshSize - 1 && isChunkValid(chunkX + 1, chunkZ)) {
+                markDirty(chunkX + 1, chunkZ, NEEDS_REBUILD);
+            }
+            if (zz == 0 && isChunkValid(chunkX, chunkZ - 1)) {
+                markDirty(chunkX, chunkZ - 1, NEEDS_REBUILD);
+            } else if (zz == subMeshSize - 1 && isChunkValid(chunkX, chunkZ + 1)) {
+                markDirty(chunkX, chunkZ + 1, NEEDS_REBUILD);
+            }
+
+            if (xx == 0 && zz == 0 && isChunkValid(chunkX - 1, chunkZ - 1)) {
+                markDirty(chunkX - 1, chunkZ - 1, NEEDS_REBUILD);
+            } else if (xx == subMeshSize - 1 && zz == 0 && isChunkValid(chunkX + 1, chunkZ - 1)) {
+                markDirty(chunkX + 1, chunkZ - 1, NEEDS_REBUILD);
+            } else if (xx == subMeshSize - 1 && zz == subMeshSize - 1 && isChunkValid(chunkX + 1, chunkZ + 1)) {
+                markDirty(chunkX + 1, chunkZ + 1, NEEDS_REBUILD);
+            } else if (xx == 0 && zz == subMeshSize - 1 && isChunkValid(chunkX - 1, chunkZ + 1)) {
+                markDirty(chunkX - 1, chunkZ + 1, NEEDS_REBUILD);
             }
         }
+    }
 
+    /**
+     * Get the index of the ring buffer slot a chunk is stored in.
+     */
+    private int getRingSlot(final int chunkX, final int chunkZ) {
+        return MathUtils.moduloPositive(chunkX, ringUnitSize) + MathUtils.moduloPositive(chunkZ, ringUnitSize)
+                * ringUnitSize;
     }
 
     private boolean isChunkValid(final int chunkX, final int chunkZ) {
-        if (!isLoaded.contains(new Pos(chunkX, 0, chunkZ))) {
+        if (!chunkStates.isLoaded(chunkX, chunkZ)) {
             return false;
         }
         return !isChunkOutside(chunkX, chunkZ);
     }
 
+    /**
+     * @return true if the chunk is outside the ring buffer, that is outside the view including the unload margin
+     */
     private boolean isChunkOutside(final int chunkX, final int chunkZ) {
         final int diffX1 = playerPositionX - chunkX;
         final int diffZ1 = playerPositionZ - chunkZ;
-        if (diffX1 > gridUnitSize / 2 || diffX1 < -gridUnitSize / 2 + 1 || diffZ1 > gridUnitSize / 2
-                || diffZ1 < -gridUnitSize / 2 + 1) {
+        final int ringHalf = gridUnitSize / 2 + unloadMargin;
+        if (diffX1 > ringHalf || diffX1 < -ringHalf + 1 || diffZ1 > ringHalf || diffZ1 < -ringHalf + 1) {
             return true;
         }
         return false;
     }
 
+    /**
+     * @return true if the chunk is inside the rendered view
+     */
+    private boolean isChunkInView(final int chunkX, final int chunkZ) {
+        final int diffX1 = playerPositionX - chunkX;
+        final int diffZ1 = playerPositionZ - chunkZ;
+        if (diffX1 > gridUnitSize / 2 || diffX1 < -gridUnitSize / 2 + 1 || diffZ1 > gridUnitSize / 2
+                || diffZ1 < -gridUnitSize / 2 + 1) {
+            return false;
+        }
+        return true;
+    }
+
     private static int VERTICES = 1 << 0;
     private static int TEXCOORDS = 1 << 1;
     private static int COLORS = 1 << 2;
@@ -1023,15 +1190,22 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
             }
         }
 
-        setMeshData(renderer, xStart, yStart, zStart, pos, indexCount, vertexCount, vertices, texcoords, colors,
-                indices, minY, maxY);
-        setMeshDataTransparent(renderer, xStart, yStart, zStart, pos, indexCountTransparent, vertexCountTransparent,
-                verticesTransparent, texcoordsTransparent, colorsTransparent, indicesTransparent, minY, maxY);
+        final int chunkX = MathUtils.floor((float) xStart / subMeshSize);
+        final int chunkZ = MathUtils.floor((float) zStart / subMeshSize);
+        final int slot = getRingSlot(chunkX, chunkZ);
+        final boolean visible = isChunkInView(chunkX, chunkZ);
+
+        setMeshData(renderer, xStart, yStart, zStart, pos, slot, visible, indexCount, vertexCount, vertices,
+                texcoords, colors, indices, minY, maxY);
+        setMeshDataTransparent(renderer, xStart, yStart, zStart, pos, slot, visible, indexCountTransparent,
+                vertexCountTransparent, verticesTransparent, texcoordsTransparent, colorsTransparent,
+                indicesTransparent, minY, maxY);
     }
 
     private void setMeshData(final Renderer renderer, final int xStart, final int yStart, final int zStart,
-            final Pos pos, final int indexCount, final int vertexCount, final float[] vertices,
-            final float[] texcoords, final float[] colors, final int[] indices, final int minY, final int maxY) {
+            final Pos pos, final int slot, final boolean visible, final int indexCount, final int vertexCount,
+            final float[] vertices, final float[] texcoords, final float[] colors, final int[] indices,
+            final int minY, final int maxY) {
         if (indexCount == 0) {
             if (meshCache.containsKey(pos)) {
                 final Mesh mesh = meshCache.get(pos);
@@ -1039,14 +1213,17 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
                     solidNode.detachChild(mesh);
                 }
             }
+            hiddenSolid[slot] = false;
             return;
         }
 
         Mesh mesh;
         if (meshCache.containsKey(pos)) {
             mesh = meshCache.get(pos);
-            if (!solidNode.hasChild(mesh)) {
+            if (visible && !solidNode.hasChild(mesh)) {
                 solidNode.attachChild(mesh);
+            } else if (!visible && solidNode.hasChild(mesh)) {
+                solidNode.detachChild(mesh);
             }
         } else {
             if (indices == null) {
@@ -1067,18 +1244,23 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
                 mesh.getSceneHints().setDataMode(DataMode.VBO);
             }
 
-            solidNode.attachChild(mesh);
+            if (visible) {
+                solidNode.attachChild(mesh);
+            }
             meshCache.put(pos, mesh);
             mesh.getMeshData().setIndexMode(IndexMode.Triangles);
         }
 
+        hiddenSolid[slot] = !visible;
+
         updateBuffers(renderer, xStart, zStart, indexCount, vertexCount, vertices, texcoords, colors, indices, minY,
                 maxY, mesh);
     }
 
     private void setMeshDataTransparent(final Renderer renderer, final int xStart, final int yStart, final int zStart,
-            final Pos pos, final int indexCount, final int vertexCount, final float[] vertices,
-            final float[] texcoords, final float[] colors, final int[] indices, final int minY, final int maxY) {
+            final Pos pos, final int slot, final boolean visible, final int indexCount, final int vertexCount,
+            final float[] vertices, final float[] texcoords, final float[] colors, final int[] indices,
+            final int minY, final int maxY) {
         if (indexCount == 0) {
             if (meshCacheTransparent.containsKey(pos)) {
                 final Mesh mesh = meshCacheTransparent.get(pos);
@@ -1086,14 +1268,17 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
                     transparentNode.detachChild(mesh);
                 }
             }
+            hiddenTransparent[slot] = false;
             return;
         }
 
         Mesh mesh;
         if (meshCacheTransparent.containsKey(pos)) {
             mesh = meshCacheTransparent.get(pos);
-            if (!transparentNode.hasChild(mesh)) {
+            if (visible && !transparentNode.hasChild(mesh)) {
                 transparentNode.attachChild(mesh);
+            } else if (!visible && transparentNode.hasChild(mesh)) {
+                transparentNode.detachChild(mesh);
             }
         } else {
             if (indices == null) {
@@ -1114,11 +1299,15 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
                 mesh.getSceneHints().setDataMode(DataMode.VBO);
             }
 
-            transparentNode.attachChild(mesh);
+            if (visible) {
+                transparentNode.attachChild(mesh);
+            }
             meshCacheTransparent.put(pos, mesh);
             mesh.getMeshData().setIndexMode(IndexMode.Triangles);
         }
 
+        hiddenTransparent[slot] = !visible;
+
         updateBuffers(renderer, xStart, zStart, indexCount, vertexCount, vertices, texcoords, colors, indices, minY,
                 maxY, mesh);
     }
@@ -1272,6 +1461,19 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
 
     @Override
     public void setBlocks(final List<BlockEditData> blockList) {
+        addBlocks(blockList, false);
+    }
+
+    @Override
+    public void postBlocks(final List<BlockEditData> blockList) {
+        addBlocks(blockList, true);
+    }
+
+    /**
+     * @param fromServer
+     *            true for edits the server sent, which are not sent back to it
+     */
+    private void addBlocks(final List<BlockEditData> blockList, final boolean fromServer) {
         final Map<Coords, List<BlockEditData>> chunks = Maps.newHashMap();
         for (final BlockEditData data : blockList) {
             final int xx = data.pos.x;
@@ -1292,7 +1494,11 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
         for (final Entry<Coords, List<BlockEditData>> entry : chunks.entrySet()) {
             final Coords coord = entry.getKey();
             final List<BlockEditData> list = entry.getValue();
-            chunkMailBox.add(new BlocksMessage(coord.getX(), coord.getZ(), list));
+            if (fromServer && coldStore != null) {
+                coldStore.invalidate(coord.getX(), coord.getZ(),
+                        chunkStates.getState(coord.getX(), coord.getZ()) != ChunkState.EVICTED);
+            }
+            chunkMailBox.add(new BlocksMessage(coord.getX(), coord.getZ(), list, fromServer));
         }
     }
 
@@ -1305,7 +1511,7 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
      * @return Orientation
      */
     public BlockSide getBlockOrientation(final int x, final int y, final int z) {
-        return BlockSide.values()[getBlockExtra(x, y, z)];
+        return BlockSide.fromOrdinal(getBlockExtra(x, y, z));
     }
 
     public int getBlockExtra(int x, final int y, int z) {
@@ -1332,6 +1538,86 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
         blockExtra[x + (y + z * height) * width] = (byte) orientation.ordinal();
     }
 
+    /**
+     * Copies the chunk at world block coordinates x0, z0 into the ring buffers, see
+     * {@link #copyChunk(byte[], byte[], int, int, int, int, int, byte[], byte[], byte[], int, int)}.
+     * 
+     * @param extra
+     *            orientations, or null for all {@link BlockSide#Front}
+     */
+    private void copyChunk(final byte[] data, final byte[] extra, final int x0, final int z0) {
+        copyChunk(data, extra, x0, z0, subMeshSize, currentTileX, currentTileZ, blocks, blockExtra, lightingWrite,
+                width, height);
+    }
+
+    /**
+     * Copies a chunk into ring buffers of the block world's layout one x row at a time, the rows are contiguous in
+     * both layouts. Only the part of the chunk within the bounds of testOutsideBounds, half the ring width around the
+     * tile position, is copied. Orientations are copied raw, and the cells are lit fully like
+     * {@link #setBlockInternal(int, int, int, int, BlockSide)} cells before the lighting pass. Public so benchmarks
+     * can run it without a block world.
+     * 
+     * @param data
+     *            chunk blocks, x fastest, then y, then z
+     * @param extra
+     *            orientations in the same layout, or null for all {@link BlockSide#Front}
+     * @param x0
+     *            world block coordinate of the chunk's first x row
+     * @param tileX
+     *            world block coordinate the ring is centered on
+     * @param width
+     *            ring width in blocks, a multiple of the chunk size
+     */
+    public static void copyChunk(final byte[] data, final byte[] extra, final int x0, final int z0,
+            final int chunkSize, final int tileX, final int tileZ, final byte[] blocks, final byte[] blockExtra,
+            final byte[] light, final int width, final int height) {
+        final int gridSize = width / 2;
+        final int xStart = Math.max(x0, tileX - gridSize);
+        final int xEnd = Math.min(x0 + chunkSize, tileX + gridSize);
+        final int zStart = Math.max(z0, tileZ - gridSize);
+        final int zEnd = Math.min(z0 + chunkSize, tileZ + gridSize);
+        if (xStart >= xEnd || zStart >= zEnd) {
+            return;
+        }
+
+        final int rowLength = xEnd - xStart;
+        final int ringX = MathUtils.moduloPositive(xStart, width);
+        // a row never wraps the ring since width is a multiple of the chunk size
+        for (int zz = zStart; zz < zEnd; zz++) {
+            final int ringZ = MathUtils.moduloPositive(zz, width);
+            for (int yy = 1; yy < height; yy++) {
+                final int source = xStart - x0 + (yy + (zz - z0) * height) * chunkSize;
+                final int target = ringX + (yy + ringZ * height) * width;
+
+                System.arraycopy(data, source, blocks, target, rowLength);
+                if (extra == null) {
+                    Arrays.fill(blockExtra, target, target + rowLength, (byte) BlockSide.Front.ordinal());
+                } else {
+                    System.arraycopy(extra, source, blockExtra, target, rowLength);
+                }
+                Arrays.fill(light, target, target + rowLength, (byte) 0xff);
+            }
+        }
+    }
+
+    /**
+     * Copies the chunk at world block coordinates x0, z0 out of the ring buffers, the reverse of
+     * {@link #copyChunk(byte[], byte[], int, int)}. The chunk has to be loaded.
+     */
+    private void copyChunkOut(final byte[] data, final byte[] extra, final int x0, final int z0) {
+        final int ringX = MathUtils.moduloPositive(x0, width);
+        for (int zz = 0; zz < subMeshSize; zz++) {
+            final int ringZ = MathUtils.moduloPositive(z0 + zz, width);
+            for (int yy = 0; yy < height; yy++) {
+                final int target = (yy + zz * height) * subMeshSize;
+                final int source = ringX + (yy + ringZ * height) * width;
+
+                System.arraycopy(blocks, source, data, target, subMeshSize);
+                System.arraycopy(blockExtra, source, extra, target, subMeshSize);
+            }
+        }
+    }
+
     private void setLightSolid(int x, final int y, int z, final boolean val) {
         x = MathUtils.moduloPositive(x, width);
         z = MathUtils.moduloPositive(z, width);
@@ -1791,6 +2077,8 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
             lightUpdateBox.switchAndGet();
             lightUpdateBox.switchAndGet();
 
+            WorkerManager.unregister(worker);
+
             threadsStarted = false;
 
             logger.info("All threads done: " + wait);
@@ -1811,6 +2099,19 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
         updateLighting = true;
     }
 
+    /**
+     * Get the Worker this block world schedules its chunk update tasks on.
+     * 
+     * @return Worker
+     */
+    public Worker getWorker() {
+        return worker;
+    }
+
+    public ChunkPrefetchPolicy getPrefetchPolicy() {
+        return prefetchPolicy;
+    }
+
     public WorldSettings getSettings() {
         return settings;
     }
@@ -1876,7 +2177,83 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
     }
 
     public int getCurrentlyLoadedChunksCount() {
-        return isLoaded.size();
+        return chunkStates.getLoadedCount();
+    }
+
+    /**
+     * Get the lifecycle state of a chunk.
+     * 
+     * @param chunkX
+     * @param chunkZ
+     * @return ChunkState, EVICTED if the chunk is not in the world
+     */
+    public ChunkState getChunkState(final int chunkX, final int chunkZ) {
+        return chunkStates.getState(chunkX, chunkZ);
+    }
+
+    /**
+     * Get number of chunks in the world currently in the given state.
+     * 
+     * @param state
+     * @return int
+     */
+    public int getChunkCount(final ChunkState state) {
+        return chunkStates.getCount(state);
+    }
+
+    /**
+     * Get number of chunk requests sent to the server that have not been answered yet.
+     * 
+     * @return int
+     */
+    public int getChunkRequestsInFlight() {
+        return chunkStates.getInFlightCount();
+    }
+
+    /**
+     * Get total number of chunk requests sent to the server.
+     * 
+     * @return long
+     */
+    public long getChunkRequestsIssued() {
+        return chunkStates.getRequestsIssued();
+    }
+
+    /**
+     * Get number of chunk requests that were not sent since a request for the same chunk was already in flight.
+     * 
+     * @return long
+     */
+    public long getChunkRequestsSuppressed() {
+        return chunkStates.getRequestsSuppressed();
+    }
+
+    /**
+     * Get number of chunk replies dropped since the chunk had already left the world when they arrived.
+     * 
+     * @return long
+     */
+    public long getStaleChunkReplies() {
+        return chunkStates.getStaleReplies();
+    }
+
+    /**
+     * Get number of chunks restored from memory instead of being requested from the server. They are included in
+     * {@link #getChunkRequestsIssued()}.
+     * 
+     * @return long
+     */
+    public long getColdChunkRestores() {
+        return coldStore != null ? coldStore.getRestoredCount() : 0;
+    }
+
+    /**
+     * Get number of bytes used by chunks kept in memory after they were unloaded.
+     * 
+     * @return long
+     */
+    public long getColdChunkBytes() {
+        return coldStore != null ? coldStore.getBytes() : 0;
     }
 
     private abstract class UpdateMessage {
@@ -1920,18 +2297,29 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
     }
 
     private class BlocksMessage extends UpdateMessage {
+        /** Local edits, sent on to the server when applied. */
         List<BlockEditData> blockUpdates;
+        /** Edits from the server. */
+        List<BlockEditData> serverUpdates;
 
-        public BlocksMessage(final int chunkX, final int chunkZ, final List<BlockEditData> blockUpdates) {
+        public BlocksMessage(final int chunkX, final int chunkZ, final List<BlockEditData> blockUpdates,
+                final boolean fromServer) {
             this.chunkX = chunkX;
             this.chunkZ = chunkZ;
-            this.blockUpdates = blockUpdates;
+            if (fromServer) {
+                this.blockUpdates = Lists.newArrayList();
+                serverUpdates = blockUpdates;
+            } else {
+                this.blockUpdates = blockUpdates;
+                serverUpdates = Lists.newArrayList();
+            }
         }
 
         public BlocksMessage(final int chunkX, final int chunkZ, final BlockEditData singleBlockUpdate) {
             this.chunkX = chunkX;
             this.chunkZ = chunkZ;
             blockUpdates = Lists.newArrayList(singleBlockUpdate);
+            serverUpdates = Lists.newArrayList();
         }
 
         @Override
@@ -1943,18 +2331,23 @@ public final class BlockWorld implements BlockProvider, LightProvider, ChunkModi
             builder.append(chunkZ);
             builder.append(", blockUpdates=");
             builder.append(blockUpdates);
+            builder.append(", serverUpdates=");
+            builder.append(serverUpdates);
             builder.append("]");
             return builder.toString();
         }
     }
 
     private class ChunkMessage extends UpdateMessage {
+        int generation;
         byte[] data;
         byte[] extra;
 
-        public ChunkMessage(final int chunkX, final int chunkZ, final byte[] data, final byte[] extra) {
+        public ChunkMessage(final int chunkX, final int chunkZ, final int generation, final byte[] data,
+                final byte[] extra) {
             this.chunkX = chunkX;
             this.chunkZ = chunkZ;
+            this.generation = generation;
             this.data = data;
             this.extra = extra;
         }
@@ -9,10 +9,20 @@ package com.ardorcraft.world;
 public class Chunk {
     private final byte[] blocks;
     private final byte[] extra;
+    private final long version;
 
     public Chunk(final byte[] blocks, final byte[] extra) {
+        this(blocks, extra, 0);
+    }
+
+    /**
+     * @param version
+     *            version of the chunk in the map it came from, or 0 if unknown
+     */
+    public Chunk(final byte[] blocks, final byte[] extra, final long version) {
         this.blocks = blocks;
         this.extra = extra;
+        this.version = version;
     }
 
     public byte[] getBlocks() {
@@ -22,4 +32,12 @@ public class Chunk {
     public byte[] getExtra() {
         return extra;
     }
+
+    /**
+     * @return version of the chunk in the map it came from, or 0 if unknown
+     * @see com.ardorcraft.file.WorldStorage#getVersion(int, int)
+     */
+    public long getVersion() {
+        return version;
+    }
 }
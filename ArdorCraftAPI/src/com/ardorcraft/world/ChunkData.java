@@ -0,0 +1,33 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.world;
+
+/**
+ * A chunk and its chunk coordinates, for batched replies.
+ */
+public class ChunkData {
+    public int x;
+    public int z;
+    public Chunk chunk;
+
+    public ChunkData(final int x, final int z, final Chunk chunk) {
+        this.x = x;
+        this.z = z;
+        this.chunk = chunk;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder();
+        builder.append("ChunkData [x=");
+        builder.append(x);
+        builder.append(", z=");
+        builder.append(z);
+        builder.append("]");
+        return builder.toString();
+    }
+}
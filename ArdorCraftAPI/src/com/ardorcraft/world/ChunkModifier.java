@@ -14,9 +14,20 @@ import java.util.List;
 public interface ChunkModifier extends BlockProvider {
     void postChunk(final int x, final int z, final Chunk chunk);
 
+    /**
+     * Posts a number of chunks at once, in the order they should be applied.
+     */
+    void postChunks(final List<ChunkData> chunks);
+
     void setBlock(final int x, final int y, final int z, final int blockId);
 
     void setBlock(final int x, final int y, final int z, final int blockId, final BlockSide orientation);
 
     void setBlocks(final List<BlockEditData> blockList);
+
+    /**
+     * Applies block edits made elsewhere that the server sent, unlike {@link #setBlocks(List)} they are not sent back
+     * to the server.
+     */
+    void postBlocks(final List<BlockEditData> blockList);
 }
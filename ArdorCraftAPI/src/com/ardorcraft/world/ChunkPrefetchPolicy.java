@@ -0,0 +1,66 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.world;
+
+import java.util.Collection;
+import java.util.Comparator;
+
+import com.ardor3d.math.type.ReadOnlyVector3;
+import com.ardorcraft.data.Pos;
+
+/**
+ * Decides in which order chunks are requested and built, and which chunks outside the view should be fetched ahead of
+ * time. All chunk coordinates are in chunk units.
+ */
+public interface ChunkPrefetchPolicy {
+    /**
+     * Called every time the player position and view direction are updated.
+     * 
+     * @param location
+     *            Player position in blocks
+     * @param direction
+     *            View direction
+     * @param tileSize
+     *            Chunk size in blocks
+     */
+    void updatePlayer(final ReadOnlyVector3 location, final ReadOnlyVector3 direction, final int tileSize);
+
+    /**
+     * Get the order in which new chunks should be requested, most urgent first.
+     * 
+     * @param playerChunkX
+     * @param playerChunkZ
+     * @return Comparator
+     */
+    Comparator<Pos> getRequestOrder(final int playerChunkX, final int playerChunkZ);
+
+    /**
+     * Get the chunk that the Worker should prioritize tasks around.
+     * 
+     * @param playerChunkX
+     * @param playerChunkZ
+     * @param store
+     *            Pos to store the result in
+     */
+    void getPriorityCenter(final int playerChunkX, final int playerChunkZ, final Pos store);
+
+    /**
+     * Add chunks outside the view that should be requested speculatively. Only chunks within margin chunks of the view
+     * will be kept by the world.
+     * 
+     * @param playerChunkX
+     * @param playerChunkZ
+     * @param viewSize
+     *            Side of the view in chunks
+     * @param margin
+     *            Unload margin in chunks
+     * @param store
+     *            Collection to add chunk positions to
+     */
+    void getLookAhead(final int playerChunkX, final int playerChunkZ, final int viewSize, final int margin,
+            final Collection<Pos> store);
+}
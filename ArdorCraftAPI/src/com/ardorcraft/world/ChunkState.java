@@ -0,0 +1,30 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.world;
+
+/**
+ * Lifecycle of a chunk in the BlockWorld ring buffer.
+ */
+public enum ChunkState {
+    /** Chunk has been requested from the server, waiting for data. */
+    REQUESTED,
+    /** Block data has been copied into the world. */
+    DATA,
+    /** Lighting has been calculated. */
+    LIT,
+    /** Mesh has been built. */
+    MESHED,
+    /** Chunk is not in the world (never requested, or moved out of range). */
+    EVICTED;
+
+    /**
+     * @return true if the block data of the chunk is present in the world
+     */
+    public boolean isLoaded() {
+        return this == DATA || this == LIT || this == MESHED;
+    }
+}
@@ -0,0 +1,209 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.world;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+
+import com.ardor3d.math.MathUtils;
+import com.google.common.collect.Maps;
+
+/**
+ * Keeps track of the state of each ring buffer slot in the BlockWorld. Every time a slot is claimed by a new chunk its
+ * generation is increased, so replies and tasks for a chunk that has since been evicted or replaced can be detected
+ * and dropped.
+ */
+final class ChunkStateTable {
+    /** Requests without reply for this long are considered lost and may be issued again. */
+    private static final long REQUEST_TIMEOUT = 10000;
+
+    private final int ringSize;
+    private final ChunkState[] states;
+    private final int[] generations;
+    private final int[] chunkX;
+    private final int[] chunkZ;
+
+    private final Map<Long, Long> inFlight = Maps.newHashMap();
+
+    private long requestsIssued = 0;
+    private long requestsSuppressed = 0;
+    private long staleReplies = 0;
+
+    public ChunkStateTable(final int ringSize) {
+        this.ringSize = ringSize;
+        states = new ChunkState[ringSize * ringSize];
+        generations = new int[ringSize * ringSize];
+        chunkX = new int[ringSize * ringSize];
+        chunkZ = new int[ringSize * ringSize];
+        Arrays.fill(states, ChunkState.EVICTED);
+    }
+
+    /**
+     * @return key of the chunk coordinates, for maps of chunks
+     */
+    static long getKey(final int x, final int z) {
+        return (long) x << 32 | z & 0xffffffffL;
+    }
+
+    private int getSlot(final int x, final int z) {
+        return MathUtils.moduloPositive(x, ringSize) + MathUtils.moduloPositive(z, ringSize) * ringSize;
+    }
+
+    private boolean isOwner(final int slot, final int x, final int z) {
+        return chunkX[slot] == x && chunkZ[slot] == z && states[slot] != ChunkState.EVICTED;
+    }
+
+    /**
+     * Claim the slot for a chunk that has come into range.
+     * 
+     * @return true if a request should be sent to the server, false if the chunk is already present or a request for
+     *         it is still in flight
+     */
+    public synchronized boolean request(final int x, final int z) {
+        final int slot = getSlot(x, z);
+        if (isOwner(slot, x, z)) {
+            return false;
+        }
+
+        generations[slot]++;
+        chunkX[slot] = x;
+        chunkZ[slot] = z;
+        states[slot] = ChunkState.REQUESTED;
+
+        final long key = getKey(x, z);
+        final long now = System.currentTimeMillis();
+        final Long requestTime = inFlight.get(key);
+        if (requestTime != null && now - requestTime < REQUEST_TIMEOUT) {
+            requestsSuppressed++;
+            return false;
+        }
+        inFlight.put(key, now);
+        requestsIssued++;
+        return true;
+    }
+
+    /**
+     * Accept chunk data arriving for a chunk.
+     * 
+     * @return generation to tag the data with, or -1 if the data is stale and should be dropped
+     */
+    public synchronized int accept(final int x, final int z) {
+        inFlight.remove(getKey(x, z));
+
+        final int slot = getSlot(x, z);
+        if (!isOwner(slot, x, z)) {
+            staleReplies++;
+            return -1;
+        }
+        return generations[slot];
+    }
+
+    /**
+     * @return true if the slot still belongs to the chunk at the given generation
+     */
+    public synchronized boolean isCurrent(final int x, final int z, final int generation) {
+        final int slot = getSlot(x, z);
+        return isOwner(slot, x, z) && generations[slot] == generation;
+    }
+
+    /**
+     * Mark the data of a chunk as copied into the world.
+     * 
+     * @return false if the slot has been claimed by another generation in the meantime
+     */
+    public synchronized boolean setData(final int x, final int z, final int generation) {
+        final int slot = getSlot(x, z);
+        if (!isOwner(slot, x, z) || generations[slot] != generation) {
+            return false;
+        }
+        states[slot] = ChunkState.DATA;
+        return true;
+    }
+
+    /**
+     * Move a loaded chunk forward to LIT or MESHED. States never move backwards here, new data resets to DATA through
+     * {@link #setData(int, int, int)}.
+     */
+    public synchronized void advance(final int x, final int z, final ChunkState state) {
+        final int slot = getSlot(x, z);
+        if (isOwner(slot, x, z) && states[slot].isLoaded() && state.ordinal() > states[slot].ordinal()) {
+            states[slot] = state;
+        }
+    }
+
+    public synchronized void evict(final int x, final int z) {
+        final int slot = getSlot(x, z);
+        if (isOwner(slot, x, z)) {
+            states[slot] = ChunkState.EVICTED;
+        }
+    }
+
+    /**
+     * Evicts every chunk and forgets the requests in flight, so chunks requested again are fetched anew.
+     */
+    public synchronized void evictAll() {
+        Arrays.fill(states, ChunkState.EVICTED);
+        inFlight.clear();
+    }
+
+    public synchronized ChunkState getState(final int x, final int z) {
+        final int slot = getSlot(x, z);
+        if (!isOwner(slot, x, z)) {
+            return ChunkState.EVICTED;
+        }
+        return states[slot];
+    }
+
+    public synchronized boolean isLoaded(final int x, final int z) {
+        final int slot = getSlot(x, z);
+        return isOwner(slot, x, z) && states[slot].isLoaded();
+    }
+
+    public synchronized int getCount(final ChunkState state) {
+        int count = 0;
+        for (final ChunkState current : states) {
+            if (current == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized int getLoadedCount() {
+        int count = 0;
+        for (final ChunkState current : states) {
+            if (current.isLoaded()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public synchronized int getInFlightCount() {
+        final long now = System.currentTimeMillis();
+        final Iterator<Long> iterator = inFlight.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next() >= REQUEST_TIMEOUT) {
+                iterator.remove();
+            }
+        }
+        return inFlight.size();
+    }
+
+    public synchronized long getRequestsIssued() {
+        return requestsIssued;
+    }
+
+    public synchronized long getRequestsSuppressed() {
+        return requestsSuppressed;
+    }
+
+    public synchronized long getStaleReplies() {
+        return staleReplies;
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.world;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
+
+import com.ardorcraft.file.ChunkCodec;
+import com.ardorcraft.file.ChunkCodecs;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Cold tier for chunks the BlockWorld drops from its ring buffer. Their blocks and block extras are kept compressed in
+ * memory up to a byte budget, the chunks stored first are dropped first. A chunk that comes back into range is
+ * restored from here without asking the server.
+ * <p>
+ * Compression and restores run on a background thread, the caller only hands over copies of the data. A chunk the
+ * server sends edits for is dropped from the store, and if it is being restored it is requested from the server
+ * instead, so a restored chunk never misses an edit it was sent. A chunk that got edits from the server while it was in
+ * the world is not stored when it leaves, the edits may not have been applied yet.
+ */
+final class ColdChunkStore {
+    private static final Logger logger = Logger.getLogger(ColdChunkStore.class.getName());
+
+    private final ChunkModifier target;
+    private final IServerConnection serverConnection;
+    private final long maxBytes;
+    private final ChunkCodec codec = ChunkCodecs.get(ChunkCodecs.FAST_LZ);
+    private final ExecutorService executor;
+
+    /** In store order. Guarded by this. */
+    private final Map<Long, ColdChunk> chunks = Maps.newLinkedHashMap();
+    /** Keys of chunks taken out for a restore that has not posted them yet. Guarded by this. */
+    private final Set<Long> restoring = Sets.newHashSet();
+    /** Keys of chunks in the world that got edits from the server. Guarded by this. */
+    private final Set<Long> edited = Sets.newHashSet();
+    private long bytes;
+    private long restored;
+
+    /**
+     * @param target
+     *            gets the restored chunks
+     * @param serverConnection
+     *            asked for chunks whose restore was given up
+     */
+    ColdChunkStore(final ChunkModifier target, final IServerConnection serverConnection, final long maxBytes) {
+        this.target = target;
+        this.serverConnection = serverConnection;
+        this.maxBytes = maxBytes;
+        executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "ColdChunkStore");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Stores a chunk that left the world, the arrays are owned by the store from now on.
+     */
+    void store(final int x, final int z, final byte[] blocks, final byte[] extra) {
+        final long key = ChunkStateTable.getKey(x, z);
+        final ColdChunk chunk = new ColdChunk(blocks, extra);
+        synchronized (this) {
+            remove(key);
+            if (edited.remove(key)) {
+                return;
+            }
+            chunks.put(key, chunk);
+            bytes += chunk.getSize();
+            trim();
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                compress(key, chunk);
+            }
+        });
+    }
+
+    private void compress(final long key, final ColdChunk chunk) {
+        final byte[] blocks;
+        final byte[] extra;
+        synchronized (this) {
+            if (chunks.get(key) != chunk) {
+                return;
+            }
+            blocks = chunk.blocks;
+            extra = chunk.extra;
+        }
+        final byte[] packedBlocks = codec.encode(blocks, blocks.length);
+        final byte[] packedExtra = codec.encode(extra, extra.length);
+        synchronized (this) {
+            // restored or dropped while compressing
+            if (chunks.get(key) != chunk) {
+                return;
+            }
+            bytes -= chunk.getSize();
+            chunk.blocks = packedBlocks;
+            chunk.extra = packedExtra;
+            chunk.packed = true;
+            bytes += chunk.getSize();
+        }
+    }
+
+    /**
+     * Takes a chunk out of the store and posts it to the target from the background thread.
+     *
+     * @return false if the chunk is not in the store
+     */
+    boolean restore(final int x, final int z) {
+        final long key = ChunkStateTable.getKey(x, z);
+        final byte[] blocks;
+        final byte[] extra;
+        final boolean packed;
+        synchronized (this) {
+            final ColdChunk chunk = chunks.remove(key);
+            if (chunk == null) {
+                return false;
+            }
+            bytes -= chunk.getSize();
+            blocks = chunk.blocks;
+            extra = chunk.extra;
+            packed = chunk.packed;
+            restoring.add(key);
+            restored++;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                Chunk chunk = null;
+                try {
+                    chunk = packed ? new Chunk(codec.decode(blocks, 0, blocks.length), codec.decode(extra, 0,
+                            extra.length)) : new Chunk(blocks, extra);
+                } catch (final IOException e) {
+                    logger.warning("Could not restore chunk " + x + "," + z + ": " + e.getMessage());
+                }
+                synchronized (ColdChunkStore.this) {
+                    // posted under the lock, so edits invalidating it are posted after it
+                    if (restoring.remove(key) && chunk != null) {
+                        target.postChunk(x, z, chunk);
+                        return;
+                    }
+                }
+                serverConnection.requestChunk(x, z);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Drops the chunk since the server sent edits for it, and gives up its restore if one is running. Must be called
+     * before the edits are posted to the block world.
+     *
+     * @param inWorld
+     *            true if the chunk has a slot in the world, it is then not stored when it leaves
+     */
+    synchronized void invalidate(final int x, final int z, final boolean inWorld) {
+        final long key = ChunkStateTable.getKey(x, z);
+        remove(key);
+        restoring.remove(key);
+        if (inWorld) {
+            edited.add(key);
+        }
+    }
+
+    /**
+     * Forgets the edits of a chunk that left the world without being stored.
+     */
+    synchronized void discard(final int x, final int z) {
+        edited.remove(ChunkStateTable.getKey(x, z));
+    }
+
+    synchronized void clear() {
+        chunks.clear();
+        restoring.clear();
+        edited.clear();
+        bytes = 0;
+    }
+
+    synchronized long getBytes() {
+        return bytes;
+    }
+
+    synchronized long getRestoredCount() {
+        return restored;
+    }
+
+    private void remove(final long key) {
+        final ColdChunk chunk = chunks.remove(key);
+        if (chunk != null) {
+            bytes -= chunk.getSize();
+        }
+    }
+
+    private void trim() {
+        final Iterator<ColdChunk> iterator = chunks.values().iterator();
+        while (bytes > maxBytes && iterator.hasNext()) {
+            bytes -= iterator.next().getSize();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * Blocks and extras of a chunk, raw until the background thread has compressed them. Guarded by the store.
+     */
+    private static final class ColdChunk {
+        private byte[] blocks;
+        private byte[] extra;
+        private boolean packed;
+
+        private ColdChunk(final byte[] blocks, final byte[] extra) {
+            this.blocks = blocks;
+            this.extra = extra;
+        }
+
+        private int getSize() {
+            return blocks.length + extra.length;
+        }
+    }
+}
@@ -0,0 +1,27 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.world;
+
+import java.util.List;
+
+import com.ardorcraft.data.Pos;
+
+/**
+ * Server connection that takes chunk requests in batches, so a move or a view distance change costs one message
+ * instead of one per chunk. Replies can come back batched through {@link ChunkModifier#postChunks(List)}.
+ * <p>
+ * Connections that only implement {@link IServerConnection} are wrapped in a {@link BatchedServerConnectionAdapter}.
+ */
+public interface IBatchedServerConnection extends IServerConnection {
+    /**
+     * Requests a number of chunks.
+     * 
+     * @param positions
+     *            chunk coordinates (y unused) in priority order, the most wanted first
+     */
+    void requestChunks(final List<Pos> positions);
+}
@@ -0,0 +1,18 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.world;
+
+/**
+ * Server connection that keeps the chunks it received and names their version when it requests them again, so the
+ * server can answer that a chunk is unchanged, send only the edits it missed, and go on sending the chunk's edits.
+ * <p>
+ * A block world does not keep the chunks of such a connection in its cold store, see
+ * {@link WorldSettings#setColdCacheBytes(long)}. A chunk restored from there would not be requested, so the server
+ * would neither check its version nor know to send its edits.
+ */
+public interface ICachingServerConnection extends IServerConnection {
+}
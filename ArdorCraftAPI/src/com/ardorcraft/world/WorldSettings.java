@@ -8,6 +8,7 @@ package com.ardorcraft.world;
 
 import com.ardor3d.math.MathUtils;
 import com.ardor3d.util.resource.ResourceSource;
+import com.ardorcraft.util.queue.Worker;
 
 /**
  * Settings class for setting up the BlockWorld object.
@@ -18,6 +19,8 @@ public class WorldSettings {
     private int tileSize = 16;
     private int tileHeight = 128;
     private int gridSize = 16;
+    private int unloadMargin = 0;
+    private long coldCacheBytes = 32 * 1024 * 1024;
 
     private ResourceSource terrainTexture;
     private int terrainTextureTileSize;
@@ -27,6 +30,8 @@ public class WorldSettings {
     private boolean doDefaultTint = true;
 
     private IServerConnection serverConnection;
+    private Worker worker;
+    private ChunkPrefetchPolicy prefetchPolicy;
 
     public WorldSettings() {
 
@@ -42,6 +47,8 @@ public class WorldSettings {
         tileSize = settings.tileSize;
         tileHeight = settings.tileHeight;
         gridSize = settings.gridSize;
+        unloadMargin = settings.unloadMargin;
+        coldCacheBytes = settings.coldCacheBytes;
 
         terrainTexture = settings.terrainTexture;
         terrainTextureTileSize = settings.terrainTextureTileSize;
@@ -51,6 +58,8 @@ public class WorldSettings {
         doDefaultTint = settings.doDefaultTint;
 
         serverConnection = settings.serverConnection;
+        worker = settings.worker;
+        prefetchPolicy = settings.prefetchPolicy;
     }
 
     /**
@@ -110,6 +119,52 @@ public class WorldSettings {
         this.gridSize = gridSize + gridSize % 2;
     }
 
+    /**
+     * Get number of chunks outside the view that are kept before being unloaded.
+     * 
+     * @return int
+     */
+    public int getUnloadMargin() {
+        return unloadMargin;
+    }
+
+    /**
+     * Set number of chunks outside the view that are kept (but not rendered) before being unloaded. Chunks that come
+     * back into view within the margin are shown again without being fetched, lit and meshed again, which avoids
+     * reloading when moving along a chunk border. The world buffers grow to (gridSize + 2 * unloadMargin) chunks per
+     * side. Default is 0.
+     * 
+     * @param unloadMargin
+     *            int
+     */
+    public void setUnloadMargin(final int unloadMargin) {
+        this.unloadMargin = Math.max(0, unloadMargin);
+    }
+
+    /**
+     * Get byte budget for compressed chunks kept in memory after they are unloaded.
+     * 
+     * @return long
+     */
+    public long getColdCacheBytes() {
+        return coldCacheBytes;
+    }
+
+    /**
+     * Set byte budget for chunks kept compressed in memory after they are unloaded. A chunk that comes back into range
+     * is restored from memory instead of being requested from the server, it is only lit and meshed again. Edits the
+     * server sends for an unloaded chunk drop it from memory, but edits it does not send, such as those made by other
+     * players outside the area it sends edits for, are missed until the chunk is dropped. Default is 32 MB, 0 turns
+     * it off. It is always off for an {@link ICachingServerConnection}, which keeps the chunks itself and has the
+     * server check them when they come back.
+     * 
+     * @param coldCacheBytes
+     *            long
+     */
+    public void setColdCacheBytes(final long coldCacheBytes) {
+        this.coldCacheBytes = Math.max(0, coldCacheBytes);
+    }
+
     /**
      * Get texture atlas used for terrain.
      * 
@@ -224,4 +279,46 @@ public class WorldSettings {
     public void setDoDefaultTint(final boolean doDefaultTint) {
         this.doDefaultTint = doDefaultTint;
     }
+
+    /**
+     * Get the Worker used for scheduling chunk update tasks.
+     * 
+     * @return Worker, or null if the shared default Worker should be used
+     */
+    public Worker getWorker() {
+        return worker;
+    }
+
+    /**
+     * Set the Worker used for scheduling chunk update tasks. Give each block world its own Worker (see
+     * WorkerManager.createWorker()) to keep their task queues and player positions apart. Several worlds can still
+     * share one Worker on purpose. Default is null, which means the shared WorkerManager.getWorker().
+     * 
+     * @param worker
+     *            Worker
+     */
+    public void setWorker(final Worker worker) {
+        this.worker = worker;
+    }
+
+    /**
+     * Get the policy deciding chunk request order and look-ahead.
+     * 
+     * @return ChunkPrefetchPolicy, or null for the default DirectionalPrefetchPolicy
+     */
+    public ChunkPrefetchPolicy getPrefetchPolicy() {
+        return prefetchPolicy;
+    }
+
+    /**
+     * Set the policy deciding chunk request order and look-ahead. The policy keeps track of player movement, so use
+     * one instance per world. Look-ahead chunks are only requested when the unload margin is above 0. Default is null,
+     * which means a new DirectionalPrefetchPolicy.
+     * 
+     * @param prefetchPolicy
+     *            ChunkPrefetchPolicy
+     */
+    public void setPrefetchPolicy(final ChunkPrefetchPolicy prefetchPolicy) {
+        this.prefetchPolicy = prefetchPolicy;
+    }
 }
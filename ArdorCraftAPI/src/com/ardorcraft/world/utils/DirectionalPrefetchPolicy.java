@@ -0,0 +1,203 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.world.utils;
+
+import java.util.Collection;
+import java.util.Comparator;
+
+import com.ardor3d.math.MathUtils;
+import com.ardor3d.math.type.ReadOnlyVector3;
+import com.ardorcraft.data.Pos;
+import com.ardorcraft.world.ChunkPrefetchPolicy;
+
+/**
+ * Prefetch policy that favours chunks in the direction the player is moving, or looking when standing still.
+ * <p>
+ * Requests are sorted by squared distance, scaled down for chunks in front of the player. Worker tasks are prioritized
+ * around the position the player is predicted to be at after the lead time. When moving, a band of chunks just outside
+ * the view in the direction of movement is requested ahead of time, as deep as the player will travel during the lead
+ * time (limited by the unload margin).
+ */
+public class DirectionalPrefetchPolicy implements ChunkPrefetchPolicy {
+    private float leadTime = 1.0f;
+    private float directionBias = 0.5f;
+    private int maxLead = 4;
+    private float minSpeed = 0.5f;
+
+    private long lastTime = 0;
+    private double lastX;
+    private double lastZ;
+
+    // Smoothed velocity in chunks per second
+    private float velocityX;
+    private float velocityZ;
+
+    // Horizontal view direction, normalized
+    private float directionX;
+    private float directionZ = 1;
+
+    @Override
+    public void updatePlayer(final ReadOnlyVector3 location, final ReadOnlyVector3 direction, final int tileSize) {
+        final long time = System.nanoTime();
+        if (lastTime != 0) {
+            final float dt = (time - lastTime) / 1000000000f;
+            if (dt > 0) {
+                final float instantX = (float) ((location.getX() - lastX) / tileSize / dt);
+                final float instantZ = (float) ((location.getZ() - lastZ) / tileSize / dt);
+                final float alpha = Math.min(1f, dt / 0.25f);
+                velocityX += (instantX - velocityX) * alpha;
+                velocityZ += (instantZ - velocityZ) * alpha;
+            }
+        }
+        lastTime = time;
+        lastX = location.getX();
+        lastZ = location.getZ();
+
+        final float length = (float) Math.sqrt(direction.getX() * direction.getX() + direction.getZ()
+                * direction.getZ());
+        if (length > MathUtils.ZERO_TOLERANCE) {
+            directionX = (float) direction.getX() / length;
+            directionZ = (float) direction.getZ() / length;
+        }
+    }
+
+    /**
+     * Set velocity directly, in chunks per second. Used when replaying recorded movement.
+     */
+    public void setVelocity(final float velocityX, final float velocityZ) {
+        this.velocityX = velocityX;
+        this.velocityZ = velocityZ;
+    }
+
+    /**
+     * Set horizontal view direction directly. Used when replaying recorded movement.
+     */
+    public void setDirection(final float directionX, final float directionZ) {
+        final float length = (float) Math.sqrt(directionX * directionX + directionZ * directionZ);
+        if (length > MathUtils.ZERO_TOLERANCE) {
+            this.directionX = directionX / length;
+            this.directionZ = directionZ / length;
+        }
+    }
+
+    public float getSpeed() {
+        return (float) Math.sqrt(velocityX * velocityX + velocityZ * velocityZ);
+    }
+
+    private float getFocusX() {
+        final float speed = getSpeed();
+        return speed > minSpeed ? velocityX / speed : directionX;
+    }
+
+    private float getFocusZ() {
+        final float speed = getSpeed();
+        return speed > minSpeed ? velocityZ / speed : directionZ;
+    }
+
+    @Override
+    public Comparator<Pos> getRequestOrder(final int playerChunkX, final int playerChunkZ) {
+        final float focusX = getFocusX();
+        final float focusZ = getFocusZ();
+        return new Comparator<Pos>() {
+            @Override
+            public int compare(final Pos o1, final Pos o2) {
+                return Float.compare(getCost(o1), getCost(o2));
+            }
+
+            private float getCost(final Pos pos) {
+                final int dx = pos.x - playerChunkX;
+                final int dz = pos.z - playerChunkZ;
+                final int distanceSquared = dx * dx + dz * dz;
+                if (distanceSquared == 0) {
+                    return 0;
+                }
+                final float cos = (dx * focusX + dz * focusZ) / (float) Math.sqrt(distanceSquared);
+                return distanceSquared * (1f - directionBias * cos);
+            }
+        };
+    }
+
+    @Override
+    public void getPriorityCenter(final int playerChunkX, final int playerChunkZ, final Pos store) {
+        final int leadX = MathUtils.clamp(Math.round(velocityX * leadTime), -maxLead, maxLead);
+        final int leadZ = MathUtils.clamp(Math.round(velocityZ * leadTime), -maxLead, maxLead);
+        store.set(playerChunkX + leadX, 0, playerChunkZ + leadZ);
+    }
+
+    @Override
+    public void getLookAhead(final int playerChunkX, final int playerChunkZ, final int viewSize, final int margin,
+            final Collection<Pos> store) {
+        final float speed = getSpeed();
+        if (margin <= 0 || speed <= minSpeed) {
+            return;
+        }
+        final int depth = Math.min(margin, (int) Math.ceil(speed * leadTime));
+        final float focusX = velocityX / speed;
+        final float focusZ = velocityZ / speed;
+
+        final int viewMinX = playerChunkX - viewSize / 2;
+        final int viewMaxX = playerChunkX + viewSize / 2 - 1;
+        final int viewMinZ = playerChunkZ - viewSize / 2;
+        final int viewMaxZ = playerChunkZ + viewSize / 2 - 1;
+
+        for (int x = viewMinX - depth; x <= viewMaxX + depth; x++) {
+            for (int z = viewMinZ - depth; z <= viewMaxZ + depth; z++) {
+                final int outsideX = x < viewMinX ? viewMinX - x : x > viewMaxX ? x - viewMaxX : 0;
+                final int outsideZ = z < viewMinZ ? viewMinZ - z : z > viewMaxZ ? z - viewMaxZ : 0;
+                if (outsideX == 0 && outsideZ == 0) {
+                    continue;
+                }
+                final int dx = x - playerChunkX;
+                final int dz = z - playerChunkZ;
+                final float cos = (dx * focusX + dz * focusZ) / (float) Math.sqrt(dx * dx + dz * dz);
+                // Roughly a 120 degree cone ahead of the player
+                if (cos > 0.5f) {
+                    store.add(new Pos(x, 0, z));
+                }
+            }
+        }
+    }
+
+    public float getLeadTime() {
+        return leadTime;
+    }
+
+    /**
+     * Set how many seconds ahead the player position is predicted. Default is 1.
+     * 
+     * @param leadTime
+     */
+    public void setLeadTime(final float leadTime) {
+        this.leadTime = leadTime;
+    }
+
+    public float getDirectionBias() {
+        return directionBias;
+    }
+
+    /**
+     * Set how strongly chunks in front of the player are preferred, 0 (not at all) to 1. Default is 0.5.
+     * 
+     * @param directionBias
+     */
+    public void setDirectionBias(final float directionBias) {
+        this.directionBias = MathUtils.clamp(directionBias, 0f, 1f);
+    }
+
+    public int getMaxLead() {
+        return maxLead;
+    }
+
+    /**
+     * Set how many chunks ahead of the player the Worker priority center may move. Default is 4.
+     * 
+     * @param maxLead
+     */
+    public void setMaxLead(final int maxLead) {
+        this.maxLead = maxLead;
+    }
+}
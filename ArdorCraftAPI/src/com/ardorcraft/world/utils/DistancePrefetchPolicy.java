@@ -0,0 +1,36 @@
+/**
+ * Copyright (c) 2011-2012 Ardor Labs AB.
+ *
+ * This file is part of the ArdorCraft API, developed by Rikard Herlitz.
+ */
+
+package com.ardorcraft.world.utils;
+
+import java.util.Collection;
+import java.util.Comparator;
+
+import com.ardor3d.math.type.ReadOnlyVector3;
+import com.ardorcraft.data.Pos;
+import com.ardorcraft.world.ChunkPrefetchPolicy;
+
+/**
+ * Prefetch policy that only looks at the distance to the player and never requests anything outside the view.
+ */
+public class DistancePrefetchPolicy implements ChunkPrefetchPolicy {
+    @Override
+    public void updatePlayer(final ReadOnlyVector3 location, final ReadOnlyVector3 direction, final int tileSize) {}
+
+    @Override
+    public Comparator<Pos> getRequestOrder(final int playerChunkX, final int playerChunkZ) {
+        return new ChunkDistanceComparator(playerChunkX, playerChunkZ);
+    }
+
+    @Override
+    public void getPriorityCenter(final int playerChunkX, final int playerChunkZ, final Pos store) {
+        store.set(playerChunkX, 0, playerChunkZ);
+    }
+
+    @Override
+    public void getLookAhead(final int playerChunkX, final int playerChunkZ, final int viewSize, final int margin,
+            final Collection<Pos> store) {}
+}
@@ -272,7 +272,7 @@ public abstract class ArdorBaseApplet extends Applet implements Scene {
     @Override
     public boolean renderUnto(final Renderer renderer) {
         // Execute renderQueue item
-        WorkerManager.getWorker().execute(renderer);
+        WorkerManager.executeAll(renderer);
 
         // Clean up card garbage such as textures, vbos, etc.
         ContextGarbageCollector.doRuntimeCleanup(renderer);
@@ -239,7 +239,7 @@ public abstract class ArdorBaseApplication implements Runnable, Updater, Scene {
     @MainThread
     public boolean renderUnto(final Renderer renderer) {
         // Execute renderQueue item
-        WorkerManager.getWorker().execute(renderer);
+        WorkerManager.executeAll(renderer);
 
         _root.updateGeometricState(0, true);
 
@@ -0,0 +1,78 @@
+package com.ardorcraft.benchmark;
+
+import java.io.File;
+import java.util.Random;
+
+import com.ardorcraft.generators.DefaultDataGenerator;
+import com.ardorcraft.network.LocalServerDataHandler;
+
+/**
+ * Measures repeated chunk requests and server side block reads against a {@link LocalServerDataHandler}, with its
+ * chunk cache disabled and with the default budget.
+ * <p>
+ * Usage: ChunkCacheBenchmark [chunksPerSide] [passes]
+ */
+public class ChunkCacheBenchmark {
+    private static final int WIDTH = WorldFileReadBenchmark.WIDTH;
+    private static final int HEIGHT = WorldFileReadBenchmark.HEIGHT;
+    private static final int BLOCK_READS = 50000;
+
+    public static void main(final String[] args) throws Exception {
+        final int side = args.length > 0 ? Integer.parseInt(args[0]) : 12;
+        final int passes = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+        final File file = File.createTempFile("cachebenchmark", ".acr");
+        try {
+            for (int i = 0; i < 2; i++) {
+                // first round warms up the JIT
+                final boolean print = i == 1;
+                run("no cache", file, 0, side, passes, print);
+                run("cache", file, LocalServerDataHandler.DEFAULT_CACHE_BYTES, side, passes, print);
+            }
+        } finally {
+            file.delete();
+            new File(file.getPath() + ".idx").delete();
+            new File(file.getPath() + ".journal").delete();
+        }
+    }
+
+    private static void run(final String name, final File file, final long cacheBytes, final int side,
+            final int passes, final boolean print) {
+        final LocalServerDataHandler server = new LocalServerDataHandler(WIDTH, HEIGHT, side,
+                new DefaultDataGenerator(), file, cacheBytes);
+        try {
+            // generates the chunks on the first run, and fills the cache
+            requestAll(server, side);
+
+            long start = System.nanoTime();
+            for (int pass = 0; pass < passes; pass++) {
+                requestAll(server, side);
+            }
+            final long requestTime = System.nanoTime() - start;
+
+            final Random random = new Random(1);
+            int sum = 0;
+            start = System.nanoTime();
+            for (int i = 0; i < BLOCK_READS; i++) {
+                sum += server.getBlock(random.nextInt(side * WIDTH), random.nextInt(HEIGHT), random.nextInt(side
+                        * WIDTH));
+            }
+            final long blockTime = System.nanoTime() - start;
+
+            if (print) {
+                System.out.println(String.format("%-9s getChunk: %7.1f us/chunk, getBlock: %8.3f us/block (%d)",
+                        name, requestTime / 1000.0 / (side * side * passes), blockTime / 1000.0 / BLOCK_READS, sum));
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private static void requestAll(final LocalServerDataHandler server, final int side) {
+        for (int x = 0; x < side; x++) {
+            for (int z = 0; z < side; z++) {
+                server.getChunk(x, z);
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+
+package com.ardorcraft.benchmark;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.ardor3d.math.MathUtils;
+import com.ardorcraft.file.ChunkCodec;
+import com.ardorcraft.file.ColumnRleCodec;
+import com.ardorcraft.file.DeflateCodec;
+import com.ardorcraft.file.FastLzCodec;
+import com.ardorcraft.file.UniformCodec;
+import com.ardorcraft.generators.DataGenerator;
+import com.ardorcraft.generators.DefaultDataGenerator;
+import com.ardorcraft.generators.InterpolatedNoiseDataGenerator;
+import com.ardorcraft.world.WorldModifier;
+import com.google.common.collect.Lists;
+
+/**
+ * Compares the chunk codecs on terrain from {@link DefaultDataGenerator} and {@link InterpolatedNoiseDataGenerator}:
+ * compression ratio, and encode and decode throughput in MB/s of chunk data.
+ * <p>
+ * Usage: ChunkCodecBenchmark [chunksPerSide] [passes]
+ */
+public class ChunkCodecBenchmark {
+    public static void main(final String[] args) throws Exception {
+        final int side = args.length > 0 ? Integer.parseInt(args[0]) : 12;
+        final int passes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        final int width = WorldFileReadBenchmark.WIDTH;
+        final int height = WorldFileReadBenchmark.HEIGHT;
+        final ChunkCodec[] codecs = new ChunkCodec[] {
+                new DeflateCodec(1), new DeflateCodec(6), new DeflateCodec(9), new FastLzCodec(),
+                new ColumnRleCodec(width, height, false), new ColumnRleCodec(width, height, true),
+                new UniformCodec(width, height, new DeflateCodec()) };
+        final String[] names = new String[] { "deflate 1", "deflate 6", "deflate 9", "fast lz", "column rle",
+                "column rle + lz", "sections + deflate" };
+
+        for (int c = 0; c < codecs.length; c++) {
+            checkEmpty(names[c], codecs[c]);
+        }
+
+        final DataGenerator[] generators = new DataGenerator[] {
+                new DefaultDataGenerator(), new InterpolatedNoiseDataGenerator() };
+        for (final DataGenerator generator : generators) {
+            final List<byte[]> chunks = generate(generator, side, width, height);
+            System.out.println(generator.getClass().getSimpleName() + ", " + chunks.size() + " chunks:");
+            for (int i = 0; i < 2; i++) {
+                // first round warms up the JIT
+                for (int c = 0; c < codecs.length; c++) {
+                    run(names[c], codecs[c], chunks, passes, i == 1);
+                }
+            }
+        }
+    }
+
+    private static List<byte[]> generate(final DataGenerator generator, final int side, final int width,
+            final int height) {
+        final List<byte[]> chunks = Lists.newArrayList();
+        for (int x = 0; x < side; x++) {
+            for (int z = 0; z < side; z++) {
+                final byte[] data = new byte[width * width * height];
+                generator.generateChunk(x * width, z * width, x * width + width, z * width + width, 1, height,
+                        new ChunkModifier(data, width, height));
+                chunks.add(data);
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     * Empty data has to round trip too, it is the edge case decoders get wrong.
+     */
+    private static void checkEmpty(final String name, final ChunkCodec codec) throws Exception {
+        final byte[] encoded = codec.encode(new byte[0], 0);
+        if (codec.decode(encoded, 0, encoded.length).length != 0
+                || codec.decode(encoded, 0, encoded.length, new byte[0]) != 0) {
+            throw new IllegalStateException(name + " does not round trip empty data");
+        }
+    }
+
+    private static void run(final String name, final ChunkCodec codec, final List<byte[]> chunks, final int passes,
+            final boolean print) throws Exception {
+        final byte[][] encoded = new byte[chunks.size()][];
+        final byte[] target = new byte[chunks.get(0).length];
+
+        long rawBytes = 0;
+        long encodedBytes = 0;
+        final long encodeStart = System.nanoTime();
+        for (int pass = 0; pass < passes; pass++) {
+            for (int i = 0; i < encoded.length; i++) {
+                final byte[] data = chunks.get(i);
+                encoded[i] = codec.encode(data, data.length);
+                rawBytes += data.length;
+                encodedBytes += encoded[i].length;
+            }
+        }
+        final long encodeTime = System.nanoTime() - encodeStart;
+
+        final long decodeStart = System.nanoTime();
+        for (int pass = 0; pass < passes; pass++) {
+            for (int i = 0; i < encoded.length; i++) {
+                codec.decode(encoded[i], 0, encoded[i].length, target);
+            }
+        }
+        final long decodeTime = System.nanoTime() - decodeStart;
+
+        for (int i = 0; i < encoded.length; i++) {
+            codec.decode(encoded[i], 0, encoded[i].length, target);
+            if (!Arrays.equals(target, chunks.get(i))) {
+                throw new IllegalStateException(name + " does not round trip");
+            }
+        }
+
+        if (print) {
+            System.out.println(String.format("  %-18s ratio: %6.1f, %6.1f bytes/chunk, encode: %7.1f MB/s, "
+                    + "decode: %7.1f MB/s", name, (double) rawBytes / encodedBytes, (double) encodedBytes
+                    / encoded.length / passes, rawBytes / 1e6 / (encodeTime / 1e9), rawBytes / 1e6
+                    / (decodeTime / 1e9)));
+        }
+    }
+
+    /**
+     * Writes the blocks of one chunk into an array, in the layout the world file stores.
+     */
+    private static final class ChunkModifier implements WorldModifier {
+        private final byte[] data;
+        private final int width;
+        private final int height;
+
+        private ChunkModifier(final byte[] data, final int width, final int height) {
+            this.data = data;
+            this.width = width;
+            this.height = height;
+        }
+
+        @Override
+        public void setBlock(final int x, final int y, final int z, final int block) {
+            if (y < 0 || y >= height) {
+                return;
+            }
+            data[getIndex(x, y, z)] = (byte) block;
+        }
+
+        @Override
+        public int getBlock(final int x, final int y, final int z) {
+            if (y < 0 || y >= height) {
+                return 0;
+            }
+            return data[getIndex(x, y, z)] & 0xff;
+        }
+
+        private int getIndex(final int x, final int y, final int z) {
+            return MathUtils.moduloPositive(x, width) + (y + MathUtils.moduloPositive(z, width) * height) * width;
+        }
+    }
+}
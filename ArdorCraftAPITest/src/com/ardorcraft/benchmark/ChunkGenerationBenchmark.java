@@ -0,0 +1,64 @@
+package com.ardorcraft.benchmark;
+
+import java.io.File;
+
+import com.ardorcraft.generators.DefaultDataGenerator;
+import com.ardorcraft.network.LocalServerDataHandler;
+
+/**
+ * Measures the time a {@link LocalServerDataHandler} takes to create a new world around the client, the 3x3 tiles
+ * requested by one client position, with one generator thread and up to the given number.
+ * <p>
+ * Usage: ChunkGenerationBenchmark [gridSize] [maxThreads]
+ */
+public class ChunkGenerationBenchmark {
+    private static final int WIDTH = WorldFileReadBenchmark.WIDTH;
+    private static final int HEIGHT = WorldFileReadBenchmark.HEIGHT;
+
+    public static void main(final String[] args) throws Exception {
+        final int gridSize = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        final int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime()
+                .availableProcessors();
+
+        System.out.println("Processors: " + Runtime.getRuntime().availableProcessors());
+        for (int i = 0; i < 2; i++) {
+            // first round warms up the JIT
+            final boolean print = i == 1;
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                run(gridSize, threads, print);
+            }
+        }
+    }
+
+    private static void run(final int gridSize, final int threads, final boolean print) throws Exception {
+        final File file = File.createTempFile("generationbenchmark", ".acr");
+        file.delete();
+        try {
+            final LocalServerDataHandler server = new LocalServerDataHandler(WIDTH, HEIGHT, gridSize,
+                    new DefaultDataGenerator(), file, LocalServerDataHandler.DEFAULT_CACHE_BYTES, threads);
+            final int side = gridSize * 3;
+            final long start = System.nanoTime();
+            try {
+                server.updateClientPosition(0, 0);
+                // waits for every chunk of the requested tiles
+                for (int x = -side / 2; x < side - side / 2; x++) {
+                    for (int z = -side / 2; z < side - side / 2; z++) {
+                        server.getChunk(x, z);
+                    }
+                }
+            } finally {
+                server.close();
+            }
+            final long time = System.nanoTime() - start;
+
+            if (print) {
+                System.out.println(String.format("%2d threads: %d chunks in %7.1f ms, %6.2f ms/chunk", threads, side
+                        * side, time / 1e6, time / 1e6 / (side * side)));
+            }
+        } finally {
+            file.delete();
+            new File(file.getPath() + ".idx").delete();
+            new File(file.getPath() + ".journal").delete();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.ardorcraft.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import com.ardor3d.math.MathUtils;
+import com.ardorcraft.world.BlockSide;
+import com.ardorcraft.world.BlockWorld;
+
+/**
+ * Compares the two ways the block world copies a received chunk into its ring buffers: cell by cell with wrapping and
+ * an orientation lookup per cell as before, and one {@link System#arraycopy} per x row with
+ * {@link BlockWorld#copyChunk(byte[], byte[], int, int, int, int, int, byte[], byte[], byte[], int, int)}. Both run on
+ * buffers of the same layout as BlockWorld, since BlockWorld itself needs a GL context. Before timing, both copy
+ * chunks around a ring that is off the chunk grid, so the clipping to the ring bounds is checked too.
+ * <p>
+ * Usage: ChunkIngestBenchmark [ringChunksPerSide] [passes]
+ */
+public class ChunkIngestBenchmark {
+    private static final int SIZE = WorldFileReadBenchmark.WIDTH;
+    private static final int HEIGHT = WorldFileReadBenchmark.HEIGHT;
+
+    public static void main(final String[] args) {
+        final int ring = args.length > 0 ? Integer.parseInt(args[0]) : 20;
+        final int passes = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        final int width = ring * SIZE;
+        final byte[] blocks = new byte[width * HEIGHT * width];
+        final byte[] extra = new byte[width * HEIGHT * width];
+        final byte[] light = new byte[width * HEIGHT * width];
+
+        final Random random = new Random(1);
+        final byte[] data = new byte[SIZE * SIZE * HEIGHT];
+        final byte[] orientations = new byte[SIZE * SIZE * HEIGHT];
+        WorldFileReadBenchmark.fillChunk(data, random);
+        for (int i = 0; i < orientations.length; i++) {
+            orientations[i] = (byte) random.nextInt(BlockSide.values().length);
+        }
+
+        checkClipped(data, orientations, ring, blocks, extra, light, false);
+        checkClipped(data, orientations, ring, blocks, extra, light, true);
+
+        for (int i = 0; i < 2; i++) {
+            // first round warms up the JIT
+            final boolean print = i == 1;
+            long start = System.nanoTime();
+            for (int pass = 0; pass < passes; pass++) {
+                for (int x = 0; x < ring; x++) {
+                    for (int z = 0; z < ring; z++) {
+                        copyCells(data, orientations, x * SIZE, z * SIZE, width / 2, width / 2, blocks, extra,
+                                light, width);
+                    }
+                }
+            }
+            final long cellTime = System.nanoTime() - start;
+            final int cellHash = hash(blocks, extra, light);
+
+            clear(blocks, extra, light);
+            start = System.nanoTime();
+            for (int pass = 0; pass < passes; pass++) {
+                for (int x = 0; x < ring; x++) {
+                    for (int z = 0; z < ring; z++) {
+                        BlockWorld.copyChunk(data, orientations, x * SIZE, z * SIZE, SIZE, width / 2, width / 2,
+                                blocks, extra, light, width, HEIGHT);
+                    }
+                }
+            }
+            final long rowTime = System.nanoTime() - start;
+            final int rowHash = hash(blocks, extra, light);
+            clear(blocks, extra, light);
+
+            if (cellHash != rowHash) {
+                throw new IllegalStateException("Row copy differs from cell copy");
+            }
+            if (print) {
+                final int chunks = ring * ring * passes;
+                final double megabytes = chunks * (double) data.length / 1e6;
+                System.out.println(String.format("cells: %7.1f us/chunk, %7.1f MB/s", cellTime / 1000.0 / chunks,
+                        megabytes / (cellTime / 1e9)));
+                System.out.println(String.format("rows:  %7.1f us/chunk, %7.1f MB/s", rowTime / 1000.0 / chunks,
+                        megabytes / (rowTime / 1e9)));
+            }
+        }
+    }
+
+    /**
+     * Copies the chunks of a ring centered half a chunk off the grid with both copies and compares the buffers, the
+     * chunks at the edges are clipped. Every chunk has different data, so a clipped cell that wraps onto the other
+     * side of the ring shows, unless a later chunk overwrites it, which the reverse order catches.
+     */
+    private static void checkClipped(final byte[] data, final byte[] orientations, final int ring,
+            final byte[] blocks, final byte[] extra, final byte[] light, final boolean reverse) {
+        final int width = ring * SIZE;
+        final int tileX = width / 2 + SIZE / 2 + 3;
+        final int tileZ = width / 2 - SIZE / 2 - 3;
+        final byte[] chunkData = new byte[data.length];
+        final int[] hashes = new int[2];
+        for (int copy = 0; copy < 2; copy++) {
+            for (int i = 0; i < (ring + 2) * (ring + 2); i++) {
+                final int index = reverse ? (ring + 2) * (ring + 2) - 1 - i : i;
+                final int x = index / (ring + 2) - 1;
+                final int z = index % (ring + 2) - 1;
+                for (int j = 0; j < data.length; j++) {
+                    chunkData[j] = (byte) (data[j] + x * 7 + z * 13);
+                }
+                if (copy == 0) {
+                    copyCells(chunkData, orientations, x * SIZE, z * SIZE, tileX, tileZ, blocks, extra, light, width);
+                } else {
+                    BlockWorld.copyChunk(chunkData, orientations, x * SIZE, z * SIZE, SIZE, tileX, tileZ, blocks,
+                            extra, light, width, HEIGHT);
+                }
+            }
+            hashes[copy] = hash(blocks, extra, light);
+            clear(blocks, extra, light);
+        }
+        if (hashes[0] != hashes[1]) {
+            throw new IllegalStateException("Clipped row copy differs from cell copy" + (reverse ? " in reverse" : ""));
+        }
+    }
+
+    /**
+     * The copy as it was, cell by cell, skipping cells outside the ring bounds around tileX, tileZ.
+     */
+    private static void copyCells(final byte[] data, final byte[] orientations, final int x0, final int z0,
+            final int tileX, final int tileZ, final byte[] blocks, final byte[] extra, final byte[] light,
+            final int width) {
+        final int gridSize = width / 2;
+        for (int xx = 0; xx < SIZE; xx++) {
+            for (int yy = 1; yy < HEIGHT; yy++) {
+                for (int zz = 0; zz < SIZE; zz++) {
+                    if (xx + x0 < tileX - gridSize || xx + x0 >= tileX + gridSize || zz + z0 < tileZ - gridSize
+                            || zz + z0 >= tileZ + gridSize) {
+                        continue;
+                    }
+                    final int index = xx + (yy + zz * HEIGHT) * SIZE;
+                    final BlockSide orientation = BlockSide.values()[orientations[index] & 0xff];
+
+                    final int x = MathUtils.moduloPositive(xx + x0, width);
+                    final int z = MathUtils.moduloPositive(zz + z0, width);
+                    blocks[x + (yy + z * HEIGHT) * width] = data[index];
+                    extra[x + (yy + z * HEIGHT) * width] = (byte) orientation.ordinal();
+                    light[x + (MathUtils.clamp(yy, 0, HEIGHT - 1) + z * HEIGHT) * width] = (byte) 0xff;
+                }
+            }
+        }
+    }
+
+    private static int hash(final byte[] blocks, final byte[] extra, final byte[] light) {
+        return Arrays.hashCode(blocks) ^ 31 * Arrays.hashCode(extra) ^ 961 * Arrays.hashCode(light);
+    }
+
+    private static void clear(final byte[] blocks, final byte[] extra, final byte[] light) {
+        Arrays.fill(blocks, (byte) 0);
+        Arrays.fill(extra, (byte) 0);
+        Arrays.fill(light, (byte) 0);
+    }
+}
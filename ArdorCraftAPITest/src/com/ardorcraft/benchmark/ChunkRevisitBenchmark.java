@@ -0,0 +1,165 @@
+package com.ardorcraft.benchmark;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.ardorcraft.data.Pos;
+import com.ardorcraft.generators.DefaultDataGenerator;
+import com.ardorcraft.network.ChunkServer;
+import com.ardorcraft.network.LocalServerDataHandler;
+import com.ardorcraft.network.NetworkServerConnection;
+import com.ardorcraft.world.BlockEditData;
+import com.ardorcraft.world.BlockSide;
+import com.ardorcraft.world.Chunk;
+import com.ardorcraft.world.ChunkData;
+import com.ardorcraft.world.ChunkModifier;
+import com.google.common.collect.Lists;
+
+/**
+ * Measures coming back to an area with {@link NetworkServerConnection}: a client loads an area, goes to another one
+ * and comes back, while another client makes a number of edits in the first area. Reports the bytes sent for the
+ * area the second time and how long it took, without a chunk cache on the client and with one, for a static world and
+ * for increasing numbers of edits.
+ * <p>
+ * Usage: ChunkRevisitBenchmark [areaChunksPerSide]
+ */
+public class ChunkRevisitBenchmark {
+    private static final int WIDTH = WorldFileReadBenchmark.WIDTH;
+    private static final int HEIGHT = WorldFileReadBenchmark.HEIGHT;
+    private static final int[] EDITS = new int[] {
+            0, 10, 100, 1000 };
+
+    public static void main(final String[] args) throws Exception {
+        final int area = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+
+        final File file = File.createTempFile("revisitbenchmark", ".acr");
+        file.delete();
+        final LocalServerDataHandler dataHandler = new LocalServerDataHandler(WIDTH, HEIGHT, 8,
+                new DefaultDataGenerator(), file);
+        final ChunkServer server = new ChunkServer(dataHandler, new InetSocketAddress("127.0.0.1", 0), Runtime
+                .getRuntime().availableProcessors());
+        try {
+            final List<Pos> home = getArea(0, area);
+            final List<Pos> away = getArea(area, area);
+            dataHandler.prepareChunks(home);
+            dataHandler.prepareChunks(away);
+            for (final Pos pos : home) {
+                dataHandler.getChunkVersion(pos.x, pos.z);
+            }
+            for (final Pos pos : away) {
+                dataHandler.getChunkVersion(pos.x, pos.z);
+            }
+            System.out.println(home.size() + " chunks per area");
+
+            final Random random = new Random(1);
+            // first round warms up the JIT
+            run(server, home, away, 0, NetworkServerConnection.DEFAULT_CACHE_BYTES, random, null);
+            for (final int edits : EDITS) {
+                run(server, home, away, edits, 0, random, "no cache");
+                run(server, home, away, edits, NetworkServerConnection.DEFAULT_CACHE_BYTES, random, "cache");
+            }
+        } finally {
+            server.close();
+            dataHandler.close();
+            file.delete();
+            new File(file.getPath() + ".idx").delete();
+            new File(file.getPath() + ".journal").delete();
+        }
+    }
+
+    private static List<Pos> getArea(final int originX, final int size) {
+        final List<Pos> positions = Lists.newArrayList();
+        for (int x = originX; x < originX + size; x++) {
+            for (int z = 0; z < size; z++) {
+                positions.add(new Pos(x, 0, z));
+            }
+        }
+        return positions;
+    }
+
+    private static void run(final ChunkServer server, final List<Pos> home, final List<Pos> away, final int edits,
+            final long cacheBytes, final Random random, final String label) throws Exception {
+        final Client client = new Client(server.getPort(), cacheBytes);
+        final Client editor = new Client(server.getPort(), 0);
+        try {
+            client.load(home);
+            client.load(away);
+            final int side = (int) Math.sqrt(home.size()) * WIDTH;
+            for (int i = 0; i < edits; i++) {
+                editor.connection.setBlock(random.nextInt(side), 1 + random.nextInt(HEIGHT - 1), random.nextInt(side),
+                        1 + random.nextInt(20), BlockSide.Front);
+            }
+            // lets the edits be applied
+            Thread.sleep(ChunkServer.TICK_INTERVAL * 4);
+
+            final long bytes = server.getChunkBytes();
+            final long start = System.nanoTime();
+            client.load(home);
+            final double time = (System.nanoTime() - start) / 1e6;
+            if (label != null) {
+                System.out.println(String.format("%5d edits, %-8s: %9.1f kB, %8.2f ms", edits, label, (server
+                        .getChunkBytes() - bytes) / 1024.0, time));
+            }
+        } finally {
+            client.connection.close();
+            editor.connection.close();
+        }
+    }
+
+    private static final class Client implements ChunkModifier {
+        private final NetworkServerConnection connection;
+        private volatile CountDownLatch chunksLatch;
+
+        private Client(final int port, final long cacheBytes) {
+            connection = new NetworkServerConnection(cacheBytes);
+            connection.getModifier(this);
+            connection.connect("127.0.0.1:" + port);
+        }
+
+        private void load(final List<Pos> positions) throws InterruptedException {
+            chunksLatch = new CountDownLatch(positions.size());
+            connection.requestChunks(positions);
+            if (!chunksLatch.await(60, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("Chunks missing after 60 s");
+            }
+        }
+
+        @Override
+        public void postChunks(final List<ChunkData> chunks) {
+            for (int i = 0; i < chunks.size(); i++) {
+                chunksLatch.countDown();
+            }
+        }
+
+        @Override
+        public void postChunk(final int x, final int z, final Chunk chunk) {
+            chunksLatch.countDown();
+        }
+
+        @Override
+        public void postBlocks(final List<BlockEditData> blockList) {}
+
+        @Override
+        public void setBlock(final int x, final int y, final int z, final int blockId) {}
+
+        @Override
+        public void setBlock(final int x, final int y, final int z, final int blockId, final BlockSide orientation) {}
+
+        @Override
+        public void setBlocks(final List<BlockEditData> blockList) {}
+
+        @Override
+        public int getBlock(final int x, final int y, final int z) {
+            return 0;
+        }
+
+        @Override
+        public int getBlockExtra(final int x, final int y, final int z) {
+            return 0;
+        }
+    }
+}
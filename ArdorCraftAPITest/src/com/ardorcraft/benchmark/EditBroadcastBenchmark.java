@@ -0,0 +1,172 @@
+package com.ardorcraft.benchmark;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.ardorcraft.data.Pos;
+import com.ardorcraft.generators.DefaultDataGenerator;
+import com.ardorcraft.network.ChunkServer;
+import com.ardorcraft.network.LocalServerDataHandler;
+import com.ardorcraft.network.NetworkServerConnection;
+import com.ardorcraft.world.BlockEditData;
+import com.ardorcraft.world.BlockSide;
+import com.ardorcraft.world.Chunk;
+import com.ardorcraft.world.ChunkData;
+import com.ardorcraft.world.ChunkModifier;
+import com.google.common.collect.Lists;
+
+/**
+ * Measures the edit broadcast of {@link ChunkServer}: a number of clients have the same area loaded, and one of them
+ * edits blocks in it at increasing rates. Reports the edit frames and bytes each client receives per second, which
+ * should level off once every block in the area changes each tick, and the edits clients apply.
+ * <p>
+ * Usage: EditBroadcastBenchmark [clients] [secondsPerRate] [editedBlocks]
+ */
+public class EditBroadcastBenchmark {
+    private static final int WIDTH = WorldFileReadBenchmark.WIDTH;
+    private static final int HEIGHT = WorldFileReadBenchmark.HEIGHT;
+    private static final int AREA = 4;
+    private static final int[] RATES = new int[] {
+            100, 1000, 10000, 50000 };
+
+    public static void main(final String[] args) throws Exception {
+        final int clientCount = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        final int editedBlocks = args.length > 2 ? Integer.parseInt(args[2]) : 512;
+
+        final File file = File.createTempFile("editbenchmark", ".acr");
+        file.delete();
+        final LocalServerDataHandler dataHandler = new LocalServerDataHandler(WIDTH, HEIGHT, 8,
+                new DefaultDataGenerator(), file);
+        final ChunkServer server = new ChunkServer(dataHandler, new InetSocketAddress("127.0.0.1", 0), Runtime
+                .getRuntime().availableProcessors());
+        final Client[] clients = new Client[clientCount];
+        try {
+            final List<Pos> area = Lists.newArrayList();
+            for (int x = 0; x < AREA; x++) {
+                for (int z = 0; z < AREA; z++) {
+                    area.add(new Pos(x, 0, z));
+                }
+            }
+            for (int i = 0; i < clientCount; i++) {
+                clients[i] = new Client(server.getPort(), area.size());
+                clients[i].connection.update(AREA / 2, AREA / 2);
+                clients[i].connection.requestChunks(area);
+            }
+            for (final Client client : clients) {
+                if (!client.chunksLatch.await(60, TimeUnit.SECONDS)) {
+                    throw new IllegalStateException("Chunks missing after 60 s");
+                }
+            }
+
+            final Random random = new Random(1);
+            final Pos[] blocks = new Pos[editedBlocks];
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = new Pos(random.nextInt(AREA * WIDTH), 1 + random.nextInt(HEIGHT - 1), random
+                        .nextInt(AREA * WIDTH));
+            }
+            System.out.println(clientCount + " clients, " + editedBlocks + " edited blocks, tick "
+                    + ChunkServer.TICK_INTERVAL + " ms");
+
+            final NetworkServerConnection editor = clients[0].connection;
+            for (final int rate : RATES) {
+                final long frames = server.getBroadcastFrames();
+                final long bytes = server.getBroadcastBytes();
+                final long applied = countApplied(clients);
+                final long start = System.nanoTime();
+                final long end = start + TimeUnit.SECONDS.toNanos(seconds);
+                long sent = 0;
+                while (System.nanoTime() < end) {
+                    final long due = (System.nanoTime() - start) * rate / 1000000000L;
+                    while (sent < due) {
+                        final Pos pos = blocks[random.nextInt(blocks.length)];
+                        editor.setBlock(pos.x, pos.y, pos.z, 1 + random.nextInt(20), BlockSide.Front);
+                        sent++;
+                    }
+                    Thread.sleep(1);
+                }
+                // lets the last ticks go out
+                Thread.sleep(ChunkServer.TICK_INTERVAL * 4);
+                final double time = (System.nanoTime() - start) / 1e9;
+
+                final double receivers = clientCount - 1;
+                System.out.println(String.format("%6d edits/s: %6.1f frames/s, %8.1f kB/s, %8.1f edits/s applied "
+                        + "per client", rate, (server.getBroadcastFrames() - frames) / receivers / time,
+                        (server.getBroadcastBytes() - bytes) / 1024.0 / receivers / time,
+                        (countApplied(clients) - applied) / receivers / time));
+            }
+        } finally {
+            for (final Client client : clients) {
+                if (client != null) {
+                    client.connection.close();
+                }
+            }
+            server.close();
+            dataHandler.close();
+            file.delete();
+            new File(file.getPath() + ".idx").delete();
+            new File(file.getPath() + ".journal").delete();
+        }
+    }
+
+    private static long countApplied(final Client[] clients) {
+        long applied = 0;
+        for (final Client client : clients) {
+            applied += client.applied.get();
+        }
+        return applied;
+    }
+
+    private static final class Client implements ChunkModifier {
+        private final NetworkServerConnection connection = new NetworkServerConnection();
+        private final CountDownLatch chunksLatch;
+        private final AtomicLong applied = new AtomicLong();
+
+        private Client(final int port, final int chunks) {
+            chunksLatch = new CountDownLatch(chunks);
+            connection.getModifier(this);
+            connection.connect("127.0.0.1:" + port);
+        }
+
+        @Override
+        public void postChunks(final List<ChunkData> chunks) {
+            for (int i = 0; i < chunks.size(); i++) {
+                chunksLatch.countDown();
+            }
+        }
+
+        @Override
+        public void postChunk(final int x, final int z, final Chunk chunk) {
+            chunksLatch.countDown();
+        }
+
+        @Override
+        public void postBlocks(final List<BlockEditData> blockList) {
+            applied.addAndGet(blockList.size());
+        }
+
+        @Override
+        public void setBlock(final int x, final int y, final int z, final int blockId) {}
+
+        @Override
+        public void setBlock(final int x, final int y, final int z, final int blockId, final BlockSide orientation) {}
+
+        @Override
+        public void setBlocks(final List<BlockEditData> blockList) {}
+
+        @Override
+        public int getBlock(final int x, final int y, final int z) {
+            return 0;
+        }
+
+        @Override
+        public int getBlockExtra(final int x, final int y, final int z) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.ardorcraft.benchmark;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+import com.ardorcraft.file.WorldFile;
+
+/**
+ * Checks that journaled block edits of a {@link WorldFile} survive a crash: edits appended by a process that is killed
+ * without closing the map, a torn record at the end of the journal, a damaged record in the middle, edits appended
+ * after a snapshot was taken, and folding. The crash runs in a child JVM that halts right after appending. Throws on
+ * the first failed check.
+ * <p>
+ * Usage: EditJournalRecoveryCheck [mapFile]
+ */
+public class EditJournalRecoveryCheck {
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 64;
+    /** Journal header and record sizes, see the journal layout. */
+    private static final int HEADER_SIZE = 24;
+    private static final int RECORD_SIZE = 19;
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length > 1 && args[0].equals("crash")) {
+            crash(new File(args[1]));
+            return;
+        }
+        final File file = args.length > 0 ? new File(args[0]) : File.createTempFile("journalcheck", ".acr");
+        final File journalFile = new File(file.getPath() + ".journal");
+        delete(file);
+
+        final Process process = new ProcessBuilder(new File(System.getProperty("java.home"), "bin" + File.separator
+                + "java").getPath(), "-cp", System.getProperty("java.class.path"),
+                EditJournalRecoveryCheck.class.getName(), "crash", file.getPath()).inheritIO().start();
+        check(process.waitFor() == 0, "crashing writer exited");
+
+        WorldFile worldFile = new WorldFile(file);
+        worldFile.enableJournal(WIDTH, HEIGHT);
+        check(getBlock(worldFile, 5, 10, 0) == 6 && getBlock(worldFile, 3, 10, 6) == 100
+                && getBlock(worldFile, -1, 5, 3) == 77, "edits survive a halted process");
+        worldFile.close();
+
+        worldFile = new WorldFile(file);
+        check(getBlock(worldFile, 3, 10, 6) == 100, "edits survive a reopen without enabling the journal");
+        worldFile.close();
+
+        RandomAccessFile journal = new RandomAccessFile(journalFile, "rw");
+        journal.setLength(journal.length() - 7);
+        journal.close();
+        worldFile = new WorldFile(file);
+        check(getBlock(worldFile, 3, 10, 6) == 100 && getBlock(worldFile, -1, 5, 3) == 0,
+                "a torn tail drops only the last record");
+        worldFile.enableJournal(WIDTH, HEIGHT);
+        worldFile.appendEdit(2, 2, 2, 9, 0);
+        worldFile.close();
+        worldFile = new WorldFile(file);
+        check(getBlock(worldFile, 2, 2, 2) == 9 && getBlock(worldFile, 3, 10, 6) == 100,
+                "edits appended after the tail was cut replay");
+        worldFile.close();
+
+        // record 50 sets block 1,10,3 to 51
+        journal = new RandomAccessFile(journalFile, "rw");
+        final long position = HEADER_SIZE + RECORD_SIZE * 50 + 3;
+        journal.seek(position);
+        final int value = journal.read();
+        journal.seek(position);
+        journal.write(value ^ 0x55);
+        journal.close();
+        worldFile = new WorldFile(file);
+        check(getBlock(worldFile, 1, 10, 3) == 50 && getBlock(worldFile, 2, 10, 3) == 0,
+                "replay stops at a damaged record");
+        worldFile.enableJournal(WIDTH, HEIGHT);
+
+        final long sequence = worldFile.getJournalSequence();
+        final byte[] snapshot = worldFile.load(0, 0);
+        worldFile.appendEdit(4, 4, 4, 42, 0);
+        worldFile.save(0, 0, snapshot, sequence);
+        check(getBlock(worldFile, 4, 4, 4) == 42, "an edit after the snapshot sequence stays pending");
+        worldFile.close();
+        worldFile = new WorldFile(file);
+        check(getBlock(worldFile, 4, 4, 4) == 42, "and replays after a reopen");
+
+        worldFile.enableJournal(WIDTH, HEIGHT);
+        for (int i = 0; i < 600; i++) {
+            worldFile.appendEdit(i % 16, 20, i / 16 % 16, 200, 0);
+        }
+        check(getBlock(worldFile, 15, 20, 5) == 200 && getBlock(worldFile, 4, 4, 4) == 42, "folded chunk is correct");
+        worldFile.save(0, 0, worldFile.load(0, 0));
+        worldFile.flushJournal();
+        check(journalFile.length() == HEADER_SIZE, "edits in saved snapshots are dropped from the journal on flush");
+
+        final long length = journalFile.length();
+        worldFile.save(3, 3, new byte[WIDTH * WIDTH * HEIGHT]);
+        check(journalFile.length() == length, "saving a chunk without edits does not touch the journal");
+        worldFile.close();
+
+        delete(file);
+        System.out.println("All checks passed");
+    }
+
+    /**
+     * Appends edits and halts without closing, run in a child JVM.
+     */
+    private static void crash(final File file) throws Exception {
+        final WorldFile worldFile = new WorldFile(file);
+        worldFile.enableJournal(WIDTH, HEIGHT);
+        worldFile.save(0, 0, new byte[WIDTH * WIDTH * HEIGHT]);
+        worldFile.save(-1, 0, new byte[WIDTH * WIDTH * HEIGHT]);
+        for (int i = 0; i < 100; i++) {
+            worldFile.appendEdit(i % 16, 10, i / 16, 1 + i, 0);
+        }
+        worldFile.appendEdit(-1, 5, 3, 77, 2);
+        worldFile.flushJournal();
+        Runtime.getRuntime().halt(0);
+    }
+
+    private static int getBlock(final WorldFile worldFile, final int x, final int y, final int z) throws Exception {
+        final int chunkX = (int) Math.floor((double) x / WIDTH);
+        final int chunkZ = (int) Math.floor((double) z / WIDTH);
+        final byte[] data = worldFile.load(chunkX, chunkZ);
+        return data[x - chunkX * WIDTH + (y + (z - chunkZ * WIDTH) * HEIGHT) * WIDTH] & 0xff;
+    }
+
+    private static void check(final boolean condition, final String message) {
+        if (!condition) {
+            throw new IllegalStateException("Failed: " + message);
+        }
+        System.out.println("ok: " + message);
+    }
+
+    private static void delete(final File file) {
+        for (final String suffix : new String[] { "", ".idx", ".journal", ".journal.tmp", ".idx.tmp" }) {
+            new File(file.getPath() + suffix).delete();
+        }
+    }
+}
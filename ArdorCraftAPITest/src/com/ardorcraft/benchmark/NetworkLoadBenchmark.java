@@ -0,0 +1,202 @@
+package com.ardorcraft.benchmark;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.ardorcraft.data.Pos;
+import com.ardorcraft.file.WorldFile;
+import com.ardorcraft.generators.DefaultDataGenerator;
+import com.ardorcraft.network.ChunkServer;
+import com.ardorcraft.network.LocalServerDataHandler;
+import com.ardorcraft.network.NetworkServerConnection;
+import com.ardorcraft.world.BlockEditData;
+import com.ardorcraft.world.BlockSide;
+import com.ardorcraft.world.Chunk;
+import com.ardorcraft.world.ChunkData;
+import com.ardorcraft.world.ChunkModifier;
+import com.google.common.collect.Lists;
+
+/**
+ * Headless load generator for {@link ChunkServer}: a number of {@link NetworkServerConnection} clients on loopback
+ * each keep requesting a view of chunks at random places in a pre-generated area, one batch at a time. Reports
+ * chunks/s over all clients and the latency from sending a batch to receiving each of its chunks.
+ * <p>
+ * Usage: NetworkLoadBenchmark [clients] [seconds] [viewChunksPerSide] [areaChunksPerSide]
+ */
+public class NetworkLoadBenchmark {
+    private static final int WIDTH = WorldFileReadBenchmark.WIDTH;
+    private static final int HEIGHT = WorldFileReadBenchmark.HEIGHT;
+
+    public static void main(final String[] args) throws Exception {
+        final int clients = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        final int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        final int view = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+        final int area = args.length > 3 ? Integer.parseInt(args[3]) : 32;
+
+        final File file = File.createTempFile("networkbenchmark", ".acr");
+        file.delete();
+        final LocalServerDataHandler dataHandler = new LocalServerDataHandler(WIDTH, HEIGHT, 8,
+                new DefaultDataGenerator(), file);
+        final ChunkServer server = new ChunkServer(dataHandler, new InetSocketAddress("127.0.0.1", 0), Runtime
+                .getRuntime().availableProcessors());
+        try {
+            final List<Pos> all = Lists.newArrayList();
+            for (int x = 0; x < area; x++) {
+                for (int z = 0; z < area; z++) {
+                    all.add(new Pos(x, 0, z));
+                }
+            }
+            dataHandler.prepareChunks(all);
+            for (final Pos pos : all) {
+                dataHandler.getEncodedChunk(pos.x, pos.z);
+            }
+            System.out.println("Generated " + all.size() + " chunks, " + clients + " clients, " + view + "x" + view
+                    + " chunks per request");
+
+            // first round warms up the JIT
+            run(server.getPort(), clients, Math.max(1, seconds / 5), view, area, false);
+            run(server.getPort(), clients, seconds, view, area, true);
+        } finally {
+            server.close();
+            dataHandler.close();
+            file.delete();
+            new File(file.getPath() + ".idx").delete();
+            new File(file.getPath() + ".journal").delete();
+        }
+    }
+
+    private static void run(final int port, final int clientCount, final int seconds, final int view,
+            final int area, final boolean print) throws Exception {
+        final long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        final Client[] clients = new Client[clientCount];
+        final Thread[] threads = new Thread[clientCount];
+        final long start = System.nanoTime();
+        for (int i = 0; i < clientCount; i++) {
+            clients[i] = new Client(port, view, area, end, i);
+            threads[i] = new Thread(clients[i], "loadClient-" + i);
+            threads[i].start();
+        }
+        for (final Thread thread : threads) {
+            thread.join();
+        }
+        final long time = System.nanoTime() - start;
+
+        int count = 0;
+        for (final Client client : clients) {
+            count += client.latencyCount;
+        }
+        final long[] latencies = new long[count];
+        int offset = 0;
+        for (final Client client : clients) {
+            System.arraycopy(client.latencies, 0, latencies, offset, client.latencyCount);
+            offset += client.latencyCount;
+        }
+        Arrays.sort(latencies);
+
+        if (print && count > 0) {
+            System.out.println(String.format("%d chunks in %.1f s: %8.1f chunks/s, latency p50: %6.2f ms, "
+                    + "p99: %6.2f ms, max: %6.2f ms", count, time / 1e9, count / (time / 1e9),
+                    latencies[count / 2] / 1e6, latencies[(int) (count * 0.99)] / 1e6, latencies[count - 1] / 1e6));
+        }
+    }
+
+    private static final class Client implements Runnable, ChunkModifier {
+        private final NetworkServerConnection connection = new NetworkServerConnection();
+        private final int view;
+        private final int area;
+        private final long end;
+        private final Random random;
+        private final ConcurrentMap<Long, Long> requestTimes = new ConcurrentHashMap<Long, Long>();
+        private volatile CountDownLatch batchLatch;
+        private long[] latencies = new long[1024];
+        private int latencyCount;
+
+        private Client(final int port, final int view, final int area, final long end, final int seed) {
+            this.view = view;
+            this.area = area;
+            this.end = end;
+            random = new Random(seed);
+            connection.getModifier(this);
+            connection.connect("127.0.0.1:" + port);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (System.nanoTime() < end) {
+                    final int originX = random.nextInt(area - view + 1);
+                    final int originZ = random.nextInt(area - view + 1);
+                    final List<Pos> positions = Lists.newArrayListWithCapacity(view * view);
+                    final long now = System.nanoTime();
+                    for (int x = originX; x < originX + view; x++) {
+                        for (int z = originZ; z < originZ + view; z++) {
+                            positions.add(new Pos(x, 0, z));
+                            requestTimes.put(WorldFile.getKey(x, z), now);
+                        }
+                    }
+                    batchLatch = new CountDownLatch(positions.size());
+                    connection.requestChunks(positions);
+                    if (!batchLatch.await(30, TimeUnit.SECONDS)) {
+                        throw new IllegalStateException("Chunks missing after 30 s");
+                    }
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                connection.close();
+            }
+        }
+
+        @Override
+        public void postChunks(final List<ChunkData> chunks) {
+            final long now = System.nanoTime();
+            for (final ChunkData data : chunks) {
+                final Long requestTime = requestTimes.remove(WorldFile.getKey(data.x, data.z));
+                if (requestTime == null) {
+                    continue;
+                }
+                synchronized (this) {
+                    if (latencyCount == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, latencyCount * 2);
+                    }
+                    latencies[latencyCount++] = now - requestTime;
+                }
+                batchLatch.countDown();
+            }
+        }
+
+        @Override
+        public void postChunk(final int x, final int z, final Chunk chunk) {
+            postChunks(Lists.newArrayList(new ChunkData(x, z, chunk)));
+        }
+
+        @Override
+        public void setBlock(final int x, final int y, final int z, final int blockId) {}
+
+        @Override
+        public void setBlock(final int x, final int y, final int z, final int blockId, final BlockSide orientation) {}
+
+        @Override
+        public void setBlocks(final List<BlockEditData> blockList) {}
+
+        @Override
+        public void postBlocks(final List<BlockEditData> blockList) {}
+
+        @Override
+        public int getBlock(final int x, final int y, final int z) {
+            return 0;
+        }
+
+        @Override
+        public int getBlockExtra(final int x, final int y, final int z) {
+            return 0;
+        }
+    }
+}
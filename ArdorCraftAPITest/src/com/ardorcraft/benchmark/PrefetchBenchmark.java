@@ -0,0 +1,191 @@
+package com.ardorcraft.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.ardor3d.math.MathUtils;
+import com.ardorcraft.data.Pos;
+import com.ardorcraft.world.ChunkPrefetchPolicy;
+import com.ardorcraft.world.utils.DirectionalPrefetchPolicy;
+import com.ardorcraft.world.utils.DistancePrefetchPolicy;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Replays a flight path against a simulated server and measures the hole rate, that is the fraction of chunks in the
+ * front half of the view that have no data yet, for different prefetch policies.
+ * <p>
+ * The path file has one frame per line: "x z directionX directionZ" in blocks, at 60 frames per second. Without a file
+ * a fast curved flight is generated.
+ * <p>
+ * Usage: PrefetchBenchmark [pathFile] [latencyFrames] [chunksPerFrame]
+ */
+public class PrefetchBenchmark {
+    private static final int FPS = 60;
+    private static final int TILE_SIZE = 16;
+    private static final int VIEW_SIZE = 16;
+
+    public static void main(final String[] args) throws IOException {
+        final List<float[]> path = args.length > 0 ? readPath(new File(args[0])) : generatePath();
+        final int latency = args.length > 1 ? Integer.parseInt(args[1]) : 6;
+        final int throughput = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+
+        System.out.println("Frames: " + path.size() + ", latency: " + latency + " frames, throughput: " + throughput
+                + " chunks/frame");
+
+        run("distance, margin 0", new DistancePrefetchPolicy(), 0, path, latency, throughput);
+        run("distance, margin 3", new DistancePrefetchPolicy(), 3, path, latency, throughput);
+        run("directional, margin 0", new DirectionalPrefetchPolicy(), 0, path, latency, throughput);
+        run("directional, margin 3", new DirectionalPrefetchPolicy(), 3, path, latency, throughput);
+    }
+
+    private static List<float[]> generatePath() {
+        final List<float[]> path = Lists.newArrayList();
+        final float speed = 60f; // blocks per second
+        float x = 0;
+        float z = 0;
+        for (int frame = 0; frame < FPS * 60; frame++) {
+            final double heading = Math.sin(frame / (FPS * 8.0)) * 1.5;
+            final float dirX = (float) Math.cos(heading);
+            final float dirZ = (float) Math.sin(heading);
+            x += dirX * speed / FPS;
+            z += dirZ * speed / FPS;
+            path.add(new float[] { x, z, dirX, dirZ });
+        }
+        return path;
+    }
+
+    private static List<float[]> readPath(final File file) throws IOException {
+        final List<float[]> path = Lists.newArrayList();
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] parts = line.trim().split("\\s+");
+                if (parts.length < 4) {
+                    continue;
+                }
+                path.add(new float[] { Float.parseFloat(parts[0]), Float.parseFloat(parts[1]),
+                        Float.parseFloat(parts[2]), Float.parseFloat(parts[3]) });
+            }
+        } finally {
+            reader.close();
+        }
+        return path;
+    }
+
+    private static void run(final String name, final ChunkPrefetchPolicy policy, final int margin,
+            final List<float[]> path, final int latency, final int throughput) {
+        final Set<Pos> loaded = Sets.newHashSet();
+        final Set<Pos> requested = Sets.newHashSet();
+        final LinkedList<Pos> serverQueue = new LinkedList<Pos>();
+        final Map<Pos, Integer> requestFrame = Maps.newHashMap();
+        final List<Pos> lookAhead = Lists.newArrayList();
+
+        long visibleChunks = 0;
+        long holes = 0;
+        long requests = 0;
+        int oldX = Integer.MAX_VALUE;
+        int oldZ = Integer.MAX_VALUE;
+        float lastX = path.get(0)[0];
+        float lastZ = path.get(0)[1];
+
+        for (int frame = 0; frame < path.size(); frame++) {
+            final float[] step = path.get(frame);
+            final int playerX = MathUtils.floor(step[0] / TILE_SIZE);
+            final int playerZ = MathUtils.floor(step[1] / TILE_SIZE);
+
+            if (policy instanceof DirectionalPrefetchPolicy) {
+                final DirectionalPrefetchPolicy directional = (DirectionalPrefetchPolicy) policy;
+                directional.setVelocity((step[0] - lastX) * FPS / TILE_SIZE, (step[1] - lastZ) * FPS / TILE_SIZE);
+                directional.setDirection(step[2], step[3]);
+            }
+            lastX = step[0];
+            lastZ = step[1];
+
+            // Server answers requests in order, after the latency
+            int served = 0;
+            while (!serverQueue.isEmpty() && served < throughput
+                    && frame - requestFrame.get(serverQueue.getFirst()) >= latency) {
+                final Pos pos = serverQueue.removeFirst();
+                requestFrame.remove(pos);
+                if (requested.remove(pos) && !isOutside(pos, playerX, playerZ, margin)) {
+                    loaded.add(pos);
+                }
+                served++;
+            }
+
+            if (playerX != oldX || playerZ != oldZ) {
+                oldX = playerX;
+                oldZ = playerZ;
+
+                final List<Pos> newPos = Lists.newArrayList();
+                for (int x = 0; x < VIEW_SIZE; x++) {
+                    for (int z = 0; z < VIEW_SIZE; z++) {
+                        newPos.add(new Pos(playerX + x - VIEW_SIZE / 2, 0, playerZ + z - VIEW_SIZE / 2));
+                    }
+                }
+                Collections.sort(newPos, policy.getRequestOrder(playerX, playerZ));
+
+                lookAhead.clear();
+                policy.getLookAhead(playerX, playerZ, VIEW_SIZE, margin, lookAhead);
+                Collections.sort(lookAhead, policy.getRequestOrder(playerX, playerZ));
+                newPos.addAll(lookAhead);
+
+                for (final Pos pos : newPos) {
+                    if (isOutside(pos, playerX, playerZ, margin) || loaded.contains(pos) || requested.contains(pos)) {
+                        continue;
+                    }
+                    requested.add(pos);
+                    if (!requestFrame.containsKey(pos)) {
+                        serverQueue.add(pos);
+                        requestFrame.put(pos, frame);
+                        requests++;
+                    }
+                }
+
+                final Iterator<Pos> iterator = loaded.iterator();
+                while (iterator.hasNext()) {
+                    if (isOutside(iterator.next(), playerX, playerZ, margin)) {
+                        iterator.remove();
+                    }
+                }
+                requested.retainAll(requestFrame.keySet());
+            }
+
+            // Count holes in the front half of the view
+            for (int x = 0; x < VIEW_SIZE; x++) {
+                for (int z = 0; z < VIEW_SIZE; z++) {
+                    final int dx = x - VIEW_SIZE / 2;
+                    final int dz = z - VIEW_SIZE / 2;
+                    if (dx * step[2] + dz * step[3] < 0) {
+                        continue;
+                    }
+                    visibleChunks++;
+                    if (!loaded.contains(new Pos(playerX + dx, 0, playerZ + dz))) {
+                        holes++;
+                    }
+                }
+            }
+        }
+
+        System.out.println(String.format("%-24s hole rate: %6.2f%%, requests: %d", name, holes * 100.0
+                / visibleChunks, requests));
+    }
+
+    private static boolean isOutside(final Pos pos, final int playerX, final int playerZ, final int margin) {
+        final int diffX = playerX - pos.x;
+        final int diffZ = playerZ - pos.z;
+        final int half = VIEW_SIZE / 2 + margin;
+        return diffX > half || diffX < -half + 1 || diffZ > half || diffZ < -half + 1;
+    }
+}
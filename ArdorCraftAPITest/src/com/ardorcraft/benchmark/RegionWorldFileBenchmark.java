@@ -0,0 +1,109 @@
+package com.ardorcraft.benchmark;
+
+import java.io.File;
+import java.util.Random;
+
+import com.ardorcraft.file.FastLzCodec;
+import com.ardorcraft.file.RegionWorldFile;
+import com.ardorcraft.file.WorldFile;
+import com.ardorcraft.file.WorldStorage;
+
+/**
+ * Compares a single {@link WorldFile} against a {@link RegionWorldFile} holding the same large world, when only a small
+ * area around the player is used: time to open the map and load the area, and heap held afterwards. Both are measured
+ * with the index sidecars in place and with them deleted, which forces a scan.
+ * <p>
+ * Usage: RegionWorldFileBenchmark [chunksPerSide] [activeChunksPerSide]
+ */
+public class RegionWorldFileBenchmark {
+    public static void main(final String[] args) throws Exception {
+        final int side = args.length > 0 ? Integer.parseInt(args[0]) : 160;
+        final int active = args.length > 1 ? Integer.parseInt(args[1]) : 12;
+
+        final File file = File.createTempFile("regionbenchmark", ".acr");
+        final File directory = new File(file.getPath() + ".regions");
+        try {
+            final WorldFile worldFile = new WorldFile(file);
+            final RegionWorldFile regionFile = new RegionWorldFile(directory);
+            final Random random = new Random(1);
+            final byte[] data = new byte[WorldFileReadBenchmark.WIDTH * WorldFileReadBenchmark.WIDTH
+                    * WorldFileReadBenchmark.HEIGHT];
+            // a fast codec, filling the world is not what is measured
+            worldFile.setCodec(new FastLzCodec());
+            regionFile.setCodec(new FastLzCodec());
+            for (int x = 0; x < side; x++) {
+                for (int z = 0; z < side; z++) {
+                    WorldFileReadBenchmark.fillChunk(data, random);
+                    worldFile.save(x, z, data);
+                    regionFile.save(x, z, data);
+                }
+            }
+            System.out.println("Chunks: " + side * side + ", file size: " + worldFile.size() / 1024 + " kB, "
+                    + directory.list().length + " region files");
+            worldFile.close();
+            regionFile.close();
+
+            for (int i = 0; i < 2; i++) {
+                // first round warms up the JIT
+                final boolean print = i == 1;
+                run("single file, index", file, null, side, active, false, print);
+                run("regions, index", null, directory, side, active, false, print);
+                run("single file, scan", file, null, side, active, true, print);
+                run("regions, scan", null, directory, side, active, true, print);
+            }
+        } finally {
+            file.delete();
+            new File(file.getPath() + ".idx").delete();
+            final File[] files = directory.listFiles();
+            if (files != null) {
+                for (final File regionFile : files) {
+                    regionFile.delete();
+                }
+            }
+            directory.delete();
+        }
+    }
+
+    private static void run(final String name, final File file, final File directory, final int side,
+            final int active, final boolean scan, final boolean print) throws Exception {
+        if (scan) {
+            if (file != null) {
+                new File(file.getPath() + ".idx").delete();
+            } else {
+                for (final File indexFile : directory.listFiles()) {
+                    if (indexFile.getName().endsWith(".idx")) {
+                        indexFile.delete();
+                    }
+                }
+            }
+        }
+
+        final long heapBefore = getUsedHeap();
+        final long start = System.nanoTime();
+        final WorldStorage storage = file != null ? new WorldFile(file) : new RegionWorldFile(directory);
+        final byte[] target = new byte[WorldFileReadBenchmark.WIDTH * WorldFileReadBenchmark.WIDTH
+                * WorldFileReadBenchmark.HEIGHT];
+        final int origin = (side - active) / 2;
+        for (int x = origin; x < origin + active; x++) {
+            for (int z = origin; z < origin + active; z++) {
+                storage.load(x, z, target);
+            }
+        }
+        final long time = System.nanoTime() - start;
+        final long heap = getUsedHeap() - heapBefore;
+        storage.close();
+
+        if (print) {
+            System.out.println(String.format("%-20s open and load %dx%d: %7.1f ms, heap held: %6d kB", name, active,
+                    active, time / 1e6, heap / 1024));
+        }
+    }
+
+    private static long getUsedHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,87 @@
+package com.ardorcraft.benchmark;
+
+import java.io.File;
+import java.util.Random;
+
+import com.ardorcraft.file.WorldFile;
+
+/**
+ * Compares chunk loads from a {@link WorldFile} opened with channel reads against one opened memory mapped, each with
+ * {@link WorldFile#load(int, int)} and with {@link WorldFile#load(int, int, byte[])} into a reused array.
+ * <p>
+ * The cold pass is the first pass over all chunks after opening the file, the warm time is the average of the passes
+ * after that. The cold numbers still include the OS file cache unless it is dropped before running.
+ * <p>
+ * Usage: WorldFileLoadBenchmark [chunksPerSide] [warmPasses]
+ */
+public class WorldFileLoadBenchmark {
+    public static void main(final String[] args) throws Exception {
+        final int side = args.length > 0 ? Integer.parseInt(args[0]) : 48;
+        final int warmPasses = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+        final File file = File.createTempFile("loadbenchmark", ".acr");
+        file.deleteOnExit();
+        new File(file.getPath() + ".idx").deleteOnExit();
+
+        final WorldFile worldFile = new WorldFile(file);
+        final Random random = new Random(1);
+        final byte[] data = new byte[WorldFileReadBenchmark.WIDTH * WorldFileReadBenchmark.WIDTH
+                * WorldFileReadBenchmark.HEIGHT];
+        for (int x = 0; x < side; x++) {
+            for (int z = 0; z < side; z++) {
+                WorldFileReadBenchmark.fillChunk(data, random);
+                worldFile.save(x, z, data);
+            }
+        }
+        System.out.println("Chunks: " + side * side + ", file size: " + worldFile.size() / 1024 + " kB");
+        worldFile.close();
+
+        for (int i = 0; i < 2; i++) {
+            // first round warms up the JIT
+            final boolean print = i == 1;
+            run("channel, load()", file, false, false, side, warmPasses, print);
+            run("channel, load(target)", file, false, true, side, warmPasses, print);
+            run("mapped, load()", file, true, false, side, warmPasses, print);
+            run("mapped, load(target)", file, true, true, side, warmPasses, print);
+        }
+
+        file.delete();
+        new File(file.getPath() + ".idx").delete();
+    }
+
+    private static void run(final String name, final File file, final boolean mapped, final boolean intoTarget,
+            final int side, final int warmPasses, final boolean print) throws Exception {
+        final WorldFile worldFile = new WorldFile(file, mapped);
+        final byte[] target = new byte[WorldFileReadBenchmark.WIDTH * WorldFileReadBenchmark.WIDTH
+                * WorldFileReadBenchmark.HEIGHT];
+        try {
+            final long cold = pass(worldFile, side, intoTarget, target);
+            long warm = 0;
+            for (int i = 0; i < warmPasses; i++) {
+                warm += pass(worldFile, side, intoTarget, target);
+            }
+            if (print) {
+                final double chunks = side * side;
+                System.out.println(String.format("%-22s cold: %6.1f us/chunk, warm: %6.1f us/chunk", name, cold
+                        / 1000.0 / chunks, warm / 1000.0 / chunks / warmPasses));
+            }
+        } finally {
+            worldFile.close();
+        }
+    }
+
+    private static long pass(final WorldFile worldFile, final int side, final boolean intoTarget,
+            final byte[] target) throws Exception {
+        final long start = System.nanoTime();
+        for (int x = 0; x < side; x++) {
+            for (int z = 0; z < side; z++) {
+                if (intoTarget) {
+                    worldFile.load(x, z, target);
+                } else {
+                    worldFile.load(x, z);
+                }
+            }
+        }
+        return System.nanoTime() - start;
+    }
+}
@@ -0,0 +1,110 @@
+package com.ardorcraft.benchmark;
+
+import java.io.File;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.ardorcraft.file.WorldFile;
+import com.google.common.collect.Lists;
+
+/**
+ * Measures how chunk loads from a {@link WorldFile} scale with the number of reading threads.
+ * <p>
+ * Usage: WorldFileReadBenchmark [chunksPerSide] [maxThreads]
+ */
+public class WorldFileReadBenchmark {
+    static final int WIDTH = 16;
+    static final int HEIGHT = 128;
+    private static final int PASSES = 16;
+
+    public static void main(final String[] args) throws Exception {
+        final int side = args.length > 0 ? Integer.parseInt(args[0]) : 32;
+        final int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime()
+                .availableProcessors();
+
+        final File file = File.createTempFile("readbenchmark", ".acr");
+        file.deleteOnExit();
+        final WorldFile worldFile = new WorldFile(file);
+        try {
+            final Random random = new Random(1);
+            final byte[] data = new byte[WIDTH * WIDTH * HEIGHT];
+            for (int x = 0; x < side; x++) {
+                for (int z = 0; z < side; z++) {
+                    fillChunk(data, random);
+                    worldFile.save(x, z, data);
+                }
+            }
+            System.out.println("Chunks: " + side * side + ", file size: " + worldFile.size() / 1024 + " kB");
+
+            // warm up
+            read(worldFile, side, 1);
+
+            for (int threads = 1; threads <= maxThreads; threads *= 2) {
+                final long time = read(worldFile, side, threads);
+                System.out.println(String.format("%2d threads: %6d ms, %8.0f chunks/s", threads, time, side * side
+                        * PASSES * 1000.0 / Math.max(1, time)));
+            }
+        } finally {
+            worldFile.close();
+            file.delete();
+        }
+    }
+
+    static void fillChunk(final byte[] data, final Random random) {
+        final int base = 40 + random.nextInt(30);
+        for (int x = 0; x < WIDTH; x++) {
+            for (int z = 0; z < WIDTH; z++) {
+                final int surface = base + random.nextInt(4);
+                for (int y = 0; y < HEIGHT; y++) {
+                    final byte block;
+                    if (y < surface - 4) {
+                        block = (byte) (random.nextInt(50) == 0 ? 14 : 1);
+                    } else if (y < surface) {
+                        block = 3;
+                    } else if (y == surface) {
+                        block = 2;
+                    } else {
+                        block = 0;
+                    }
+                    data[x + (y + z * HEIGHT) * WIDTH] = block;
+                }
+            }
+        }
+    }
+
+    /**
+     * Loads every chunk {@link #PASSES} times, with the passes spread over the given number of threads.
+     */
+    private static long read(final WorldFile worldFile, final int side, final int threads) throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final long start = System.currentTimeMillis();
+        try {
+            final List<Future<?>> results = Lists.newArrayList();
+            for (int i = 0; i < threads; i++) {
+                final int thread = i;
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        for (int pass = thread; pass < PASSES; pass += threads) {
+                            for (int n = 0; n < side * side; n++) {
+                                final int index = (n + pass * 7) % (side * side);
+                                worldFile.load(index / side, index % side);
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (final Future<?> result : results) {
+                result.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        return System.currentTimeMillis() - start;
+    }
+}
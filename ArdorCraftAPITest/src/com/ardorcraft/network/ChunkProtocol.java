@@ -0,0 +1,161 @@
+package com.ardorcraft.network;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.ardorcraft.data.Pos;
+import com.ardorcraft.world.BlockEditData;
+
+/**
+ * Binary protocol between {@link ChunkServer} and {@link NetworkServerConnection}.
+ * <p>
+ * Every message is a frame: an int length of the rest of the frame, a type byte and the payload, big endian.
+ * <ul>
+ * <li>{@link #REQUEST_CHUNKS}: int count, then count times int x, int z, long version of the copy the client kept or
+ * 0, in priority order</li>
+ * <li>{@link #UPDATE}: int x, int z of the chunk the player is in</li>
+ * <li>{@link #SET_BLOCK}: int x, y, z, int block id, byte orientation ordinal or -1</li>
+ * <li>{@link #PLAYER_POSITION}: float x, y, z of the location, float x, y, z of the direction</li>
+ * <li>{@link #CHUNK}: int x, int z, long version, byte codec id, then the chunk compressed as stored in the map</li>
+ * <li>{@link #BLOCKS}: int count, then count times the {@link #SET_BLOCK} payload, edits made by other clients</li>
+ * <li>{@link #CHUNK_UNCHANGED}: int x, int z, long version, the copy the client kept is current</li>
+ * <li>{@link #CHUNK_EDITS}: int x, int z, long version of the kept copy, long version, int count, then count times
+ * int block index << 8 | block id, the blocks changed since the kept copy</li>
+ * </ul>
+ * Chunk payloads are decoded through {@link com.ardorcraft.file.ChunkCodecs}, so the server never compresses a chunk
+ * again that is already stored compressed.
+ */
+public final class ChunkProtocol {
+    public static final int DEFAULT_PORT = 7431;
+    /** Largest frame either side accepts, a bigger length means a broken stream. */
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+    /** Length and type. */
+    public static final int FRAME_HEADER_SIZE = 5;
+
+    public static final byte REQUEST_CHUNKS = 1;
+    public static final byte UPDATE = 2;
+    public static final byte SET_BLOCK = 3;
+    public static final byte PLAYER_POSITION = 4;
+    public static final byte CHUNK = 16;
+    public static final byte BLOCKS = 17;
+    public static final byte CHUNK_UNCHANGED = 18;
+    public static final byte CHUNK_EDITS = 19;
+
+    /** Chunk coordinates, version and codec id in front of the chunk data. */
+    public static final int CHUNK_HEADER_SIZE = 17;
+    /** Size of one chunk in {@link #REQUEST_CHUNKS}. */
+    public static final int CHUNK_REQUEST_SIZE = 16;
+    /** Size of one edit in {@link #SET_BLOCK} and {@link #BLOCKS}. */
+    public static final int BLOCK_EDIT_SIZE = 17;
+
+    private ChunkProtocol() {}
+
+    /**
+     * @param versions
+     *            per position the version of the copy the client kept, or 0
+     */
+    public static ByteBuffer requestChunks(final List<Pos> positions, final long[] versions) {
+        final ByteBuffer frame = allocate(REQUEST_CHUNKS, 4 + positions.size() * CHUNK_REQUEST_SIZE);
+        frame.putInt(positions.size());
+        for (int i = 0; i < positions.size(); i++) {
+            final Pos pos = positions.get(i);
+            frame.putInt(pos.x);
+            frame.putInt(pos.z);
+            frame.putLong(versions[i]);
+        }
+        return finish(frame);
+    }
+
+    public static ByteBuffer update(final int x, final int z) {
+        final ByteBuffer frame = allocate(UPDATE, 8);
+        frame.putInt(x);
+        frame.putInt(z);
+        return finish(frame);
+    }
+
+    public static ByteBuffer setBlock(final int x, final int y, final int z, final int blockId, final int orientation) {
+        final ByteBuffer frame = allocate(SET_BLOCK, BLOCK_EDIT_SIZE);
+        putBlockEdit(frame, x, y, z, blockId, orientation);
+        return finish(frame);
+    }
+
+    public static ByteBuffer blocks(final List<BlockEditData> edits) {
+        final ByteBuffer frame = allocate(BLOCKS, 4 + edits.size() * BLOCK_EDIT_SIZE);
+        frame.putInt(edits.size());
+        for (final BlockEditData edit : edits) {
+            final int orientation = edit.orientation != null ? edit.orientation.ordinal() : -1;
+            putBlockEdit(frame, edit.pos.x, edit.pos.y, edit.pos.z, edit.type, orientation);
+        }
+        return finish(frame);
+    }
+
+    public static ByteBuffer playerPosition(final float x, final float y, final float z, final float dx,
+            final float dy, final float dz) {
+        final ByteBuffer frame = allocate(PLAYER_POSITION, 24);
+        frame.putFloat(x);
+        frame.putFloat(y);
+        frame.putFloat(z);
+        frame.putFloat(dx);
+        frame.putFloat(dy);
+        frame.putFloat(dz);
+        return finish(frame);
+    }
+
+    public static ByteBuffer chunk(final int x, final int z, final long version, final int codecId,
+            final byte[] data) {
+        final ByteBuffer frame = allocate(CHUNK, CHUNK_HEADER_SIZE + data.length);
+        frame.putInt(x);
+        frame.putInt(z);
+        frame.putLong(version);
+        frame.put((byte) codecId);
+        frame.put(data);
+        return finish(frame);
+    }
+
+    public static ByteBuffer chunkUnchanged(final int x, final int z, final long version) {
+        final ByteBuffer frame = allocate(CHUNK_UNCHANGED, 16);
+        frame.putInt(x);
+        frame.putInt(z);
+        frame.putLong(version);
+        return finish(frame);
+    }
+
+    /**
+     * @param edits
+     *            block index << 8 | block id per changed block
+     */
+    public static ByteBuffer chunkEdits(final int x, final int z, final long fromVersion, final long version,
+            final int[] edits) {
+        final ByteBuffer frame = allocate(CHUNK_EDITS, 28 + edits.length * 4);
+        frame.putInt(x);
+        frame.putInt(z);
+        frame.putLong(fromVersion);
+        frame.putLong(version);
+        frame.putInt(edits.length);
+        for (final int edit : edits) {
+            frame.putInt(edit);
+        }
+        return finish(frame);
+    }
+
+    private static void putBlockEdit(final ByteBuffer frame, final int x, final int y, final int z,
+            final int blockId, final int orientation) {
+        frame.putInt(x);
+        frame.putInt(y);
+        frame.putInt(z);
+        frame.putInt(blockId);
+        frame.put((byte) orientation);
+    }
+
+    private static ByteBuffer allocate(final byte type, final int payloadSize) {
+        final ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + payloadSize);
+        frame.putInt(1 + payloadSize);
+        frame.put(type);
+        return frame;
+    }
+
+    private static ByteBuffer finish(final ByteBuffer frame) {
+        frame.flip();
+        return frame;
+    }
+}
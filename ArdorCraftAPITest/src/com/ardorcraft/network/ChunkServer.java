@@ -0,0 +1,605 @@
+package com.ardorcraft.network;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import com.ardor3d.math.MathUtils;
+import com.ardorcraft.data.Pos;
+import com.ardorcraft.file.EncodedChunk;
+import com.ardorcraft.file.WorldFile;
+import com.ardorcraft.generators.DefaultDataGenerator;
+import com.ardorcraft.world.BlockEditData;
+import com.ardorcraft.world.BlockSide;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+/**
+ * Non-blocking TCP server for {@link NetworkServerConnection} clients, serving the chunks of a
+ * {@link LocalServerDataHandler} with the {@link ChunkProtocol}.
+ * <p>
+ * One selector thread accepts, reads and writes for all clients. Chunk requests and block edits are handed to a pool
+ * of worker threads, so loading or generating a chunk never holds up other clients. Chunks are sent compressed as
+ * they are stored in the map, one frame per chunk as soon as it is loaded.
+ * <p>
+ * A client can name the version of a copy of the chunk it kept in its request. If that is still the chunk's version
+ * it is only told so, and if the edits since are known it gets only the changed blocks, so coming back to an area
+ * costs little more than the requests.
+ * <p>
+ * Block edits are passed on to every other client that has the chunk loaded. Each client has an interest set, the
+ * chunks it was sent, less the chunks further than the interest radius from the position its update and player
+ * position messages give. Edits are collected per tick, a later edit to the same block replaces an earlier one, and
+ * each client gets at most one frame per tick with the edits in its interest set. So the traffic per client is bounded
+ * by the blocks changed per tick in its area, not by the number of edits.
+ * <p>
+ * A client that does not read what is sent to it is disconnected once more than {@link #MAX_QUEUED_BYTES} are queued
+ * for it, so a stalled client does not grow the server's heap.
+ * <p>
+ * Usage: ChunkServer [port] [mapFile]
+ */
+public class ChunkServer {
+    private static final Logger logger = Logger.getLogger(ChunkServer.class.getName());
+
+    /** Milliseconds between edit broadcasts. */
+    public static final long TICK_INTERVAL = 50;
+    /** Chunks from the client position beyond which its interest is dropped. */
+    public static final int DEFAULT_INTEREST_RADIUS = 16;
+    /** Bytes queued for a client beyond which it is disconnected. */
+    public static final long MAX_QUEUED_BYTES = 32 * 1024 * 1024;
+
+    private final LocalServerDataHandler server;
+    private final int interestRadius;
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ExecutorService workers;
+    /** Channels with frames queued since the selector last looked, it enables writing for them. */
+    private final Queue<FrameChannel> writeRequests = new ConcurrentLinkedQueue<FrameChannel>();
+    /** Serializes client position updates, the data handler tracks one position. */
+    private final Object updateLock = new Object();
+    private final List<Session> sessions = new CopyOnWriteArrayList<Session>();
+    /** Edits since the last tick per block, in order. Guarded by itself. */
+    private Map<Pos, Edit> pendingEdits = Maps.newLinkedHashMap();
+    private final AtomicLong broadcastFrames = new AtomicLong();
+    private final AtomicLong broadcastBytes = new AtomicLong();
+    private final AtomicLong chunkBytes = new AtomicLong();
+    private final Thread selectorThread;
+    private final Thread tickThread;
+    private volatile boolean exit;
+
+    public ChunkServer(final LocalServerDataHandler server, final int port) throws IOException {
+        this(server, new InetSocketAddress(port), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param address
+     *            address to listen on, port 0 for any free port
+     * @param workerThreads
+     *            threads loading chunks and applying edits
+     */
+    public ChunkServer(final LocalServerDataHandler server, final InetSocketAddress address, final int workerThreads)
+            throws IOException {
+        this(server, address, workerThreads, DEFAULT_INTEREST_RADIUS);
+    }
+
+    /**
+     * @param interestRadius
+     *            chunks from a client's position it is kept informed of edits in, when it has them
+     */
+    public ChunkServer(final LocalServerDataHandler server, final InetSocketAddress address, final int workerThreads,
+            final int interestRadius) throws IOException {
+        this.server = server;
+        this.interestRadius = interestRadius;
+
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.configureBlocking(false);
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(address);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+        workers = Executors.newFixedThreadPool(workerThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, "chunkServerWorker-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        selectorThread = new Thread(new SelectorThread(), "chunkServer");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+
+        tickThread = new Thread(new TickThread(), "chunkServerTick");
+        tickThread.setDaemon(true);
+        tickThread.start();
+        logger.info("Chunk server listening on " + serverChannel.socket().getLocalSocketAddress());
+    }
+
+    /**
+     * @return the port the server listens on
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public int getClientCount() {
+        return sessions.size();
+    }
+
+    /**
+     * @return edit frames sent to clients so far
+     */
+    public long getBroadcastFrames() {
+        return broadcastFrames.get();
+    }
+
+    /**
+     * @return bytes of edit frames sent to clients so far
+     */
+    public long getBroadcastBytes() {
+        return broadcastBytes.get();
+    }
+
+    /**
+     * @return bytes of chunk frames sent to clients so far, whole chunks as well as unchanged and edited ones
+     */
+    public long getChunkBytes() {
+        return chunkBytes.get();
+    }
+
+    /**
+     * Disconnects all clients and stops listening. The data handler is left open. Workers are not interrupted, that
+     * would close the map channel they may be reading from, they finish their tasks with the clients gone.
+     */
+    public void close() {
+        exit = true;
+        selector.wakeup();
+        workers.shutdown();
+        try {
+            selectorThread.join();
+            tickThread.join();
+            workers.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private final FrameChannel.FrameHandler frameHandler = new FrameChannel.FrameHandler() {
+        @Override
+        public void frame(final FrameChannel channel, final byte type, final ByteBuffer payload) throws IOException {
+            final Session session = (Session) channel.getAttachment();
+            switch (type) {
+                case ChunkProtocol.REQUEST_CHUNKS: {
+                    final int count = payload.getInt();
+                    if (count < 0 || count > payload.remaining() / ChunkProtocol.CHUNK_REQUEST_SIZE) {
+                        throw new IOException("Bad chunk request count: " + count);
+                    }
+                    final List<Pos> positions = Lists.newArrayListWithCapacity(count);
+                    final long[] versions = new long[count];
+                    for (int i = 0; i < count; i++) {
+                        positions.add(new Pos(payload.getInt(), 0, payload.getInt()));
+                        versions[i] = payload.getLong();
+                    }
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendChunks(session, positions, versions);
+                        }
+                    });
+                    break;
+                }
+                case ChunkProtocol.UPDATE: {
+                    final int x = payload.getInt();
+                    final int z = payload.getInt();
+                    session.moveTo(x, z);
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            synchronized (updateLock) {
+                                server.updateClientPosition(x, z);
+                            }
+                        }
+                    });
+                    break;
+                }
+                case ChunkProtocol.SET_BLOCK: {
+                    final int x = payload.getInt();
+                    final int y = payload.getInt();
+                    final int z = payload.getInt();
+                    final int blockId = payload.getInt();
+                    final int orientation = payload.get();
+                    if (y < 0 || y >= server.getHeight() || blockId < 0 || blockId > 255) {
+                        throw new IOException("Bad block: " + x + "," + y + "," + z + " id " + blockId);
+                    }
+                    workers.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            server.setBlock(x, y, z, blockId, orientation);
+                            // only once applied, so a chunk loaded after it was queued contains it
+                            addEdit(session, x, y, z, blockId, orientation);
+                        }
+                    });
+                    break;
+                }
+                case ChunkProtocol.PLAYER_POSITION: {
+                    final float x = payload.getFloat();
+                    payload.getFloat();
+                    final float z = payload.getFloat();
+                    final int width = server.getWidth();
+                    session.moveTo(MathUtils.floor(x / width), MathUtils.floor(z / width));
+                    break;
+                }
+                default:
+                    throw new IOException("Unknown frame type: " + type);
+            }
+        }
+    };
+
+    /**
+     * @param versions
+     *            per position the version of the copy the client kept, or 0
+     */
+    private void sendChunks(final Session session, final List<Pos> positions, final long[] versions) {
+        server.prepareChunks(positions);
+        for (int i = 0; i < positions.size(); i++) {
+            if (!session.channel.getChannel().isOpen()) {
+                return;
+            }
+            final Pos pos = positions.get(i);
+            final long key = WorldFile.getKey(pos.x, pos.z);
+            session.startLoading(key);
+            final ByteBuffer frame = loadChunk(pos.x, pos.z, versions[i]);
+            synchronized (session) {
+                final List<BlockEditData> missed = session.finishLoading(key);
+                if (frame == null) {
+                    continue;
+                }
+                chunkBytes.addAndGet(frame.remaining());
+                send(session, frame);
+                if (!missed.isEmpty()) {
+                    // sent during the load, so possibly ahead of the chunk and lost on the client
+                    sendEdits(session, missed);
+                }
+            }
+            requestWrite(session.channel);
+        }
+    }
+
+    /**
+     * @return the frame that brings the client's copy of the chunk up to date, or null if the chunk could not be
+     *         loaded
+     */
+    private ByteBuffer loadChunk(final int x, final int z, final long knownVersion) {
+        // before the data, so the data sent is at least as new as the version sent with it
+        final long version = server.getChunkVersion(x, z);
+        if (knownVersion != 0 && version != 0) {
+            if (knownVersion == version) {
+                return ChunkProtocol.chunkUnchanged(x, z, version);
+            }
+            final int[] edits = server.getChunkEdits(x, z, knownVersion, version);
+            if (edits != null) {
+                return ChunkProtocol.chunkEdits(x, z, knownVersion, version, edits);
+            }
+        }
+        final EncodedChunk chunk = server.getEncodedChunk(x, z);
+        return chunk != null ? ChunkProtocol.chunk(x, z, version, chunk.getCodecId(), chunk.getData()) : null;
+    }
+
+    private void addEdit(final Session source, final int x, final int y, final int z, final int blockId,
+            final int orientation) {
+        final Pos pos = new Pos(x, y, z);
+        final BlockSide side = orientation >= 0 && orientation <= BlockSide.Bottom.ordinal() ? BlockSide
+                .fromOrdinal(orientation) : null;
+        synchronized (pendingEdits) {
+            // removed first so the block moves to the end of the order
+            pendingEdits.remove(pos);
+            pendingEdits.put(pos, new Edit(new BlockEditData(pos, blockId, side), source));
+        }
+    }
+
+    /**
+     * Sends every client the edits since the last tick in chunks it is interested in, other than its own.
+     */
+    private void broadcastEdits() {
+        final Map<Pos, Edit> edits;
+        synchronized (pendingEdits) {
+            if (pendingEdits.isEmpty()) {
+                return;
+            }
+            edits = pendingEdits;
+            pendingEdits = Maps.newLinkedHashMap();
+        }
+
+        final int width = server.getWidth();
+        final List<Long> keys = Lists.newArrayListWithCapacity(edits.size());
+        for (final Pos pos : edits.keySet()) {
+            keys.add(WorldFile.getKey(MathUtils.floor((float) pos.x / width), MathUtils.floor((float) pos.z / width)));
+        }
+
+        for (final Session session : sessions) {
+            final List<BlockEditData> selected = Lists.newArrayList();
+            synchronized (session) {
+                int index = 0;
+                for (final Edit edit : edits.values()) {
+                    final long key = keys.get(index++);
+                    session.addLoadingEdit(key, edit.data);
+                    if (edit.source != session && session.interest.contains(key)) {
+                        selected.add(edit.data);
+                    }
+                }
+                if (!selected.isEmpty()) {
+                    sendEdits(session, selected);
+                }
+            }
+            if (!selected.isEmpty()) {
+                requestWrite(session.channel);
+            }
+        }
+    }
+
+    private void sendEdits(final Session session, final List<BlockEditData> edits) {
+        final ByteBuffer frame = ChunkProtocol.blocks(edits);
+        broadcastFrames.incrementAndGet();
+        broadcastBytes.addAndGet(frame.remaining());
+        send(session, frame);
+    }
+
+    /**
+     * Queues the frame, or disconnects the client if too much is queued for it already.
+     */
+    private void send(final Session session, final ByteBuffer frame) {
+        if (session.channel.getQueuedBytes() > MAX_QUEUED_BYTES) {
+            if (sessions.remove(session)) {
+                logger.warning("Client not reading, disconnected with " + session.channel.getQueuedBytes()
+                        + " bytes queued");
+            }
+            // the selector drops the key of the closed channel
+            session.channel.close();
+            return;
+        }
+        session.channel.send(frame);
+    }
+
+    private void requestWrite(final FrameChannel channel) {
+        writeRequests.offer(channel);
+        selector.wakeup();
+    }
+
+    private final class SelectorThread implements Runnable {
+        @Override
+        public void run() {
+            while (!exit) {
+                try {
+                    selector.select();
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                    break;
+                }
+
+                FrameChannel pending;
+                while ((pending = writeRequests.poll()) != null) {
+                    final SelectionKey key = pending.getChannel().keyFor(selector);
+                    if (key != null && key.isValid()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                }
+
+                final Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+                while (iterator.hasNext()) {
+                    final SelectionKey key = iterator.next();
+                    iterator.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        final FrameChannel channel = (FrameChannel) key.attachment();
+                        if (key.isReadable()) {
+                            channel.read(frameHandler);
+                        }
+                        if (key.isValid() && key.isWritable() && channel.write()) {
+                            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        }
+                    } catch (final EOFException e) {
+                        disconnect(key);
+                    } catch (final IOException e) {
+                        logger.warning("Client error: " + e.getMessage());
+                        disconnect(key);
+                    }
+                }
+            }
+
+            for (final SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof FrameChannel) {
+                    disconnect(key);
+                }
+            }
+            try {
+                serverChannel.close();
+                selector.close();
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void accept() throws IOException {
+            final SocketChannel socketChannel = serverChannel.accept();
+            if (socketChannel == null) {
+                return;
+            }
+            socketChannel.configureBlocking(false);
+            socketChannel.socket().setTcpNoDelay(true);
+            final FrameChannel channel = new FrameChannel(socketChannel);
+            final Session session = new Session(channel);
+            channel.setAttachment(session);
+            socketChannel.register(selector, SelectionKey.OP_READ, channel);
+            sessions.add(session);
+        }
+
+        private void disconnect(final SelectionKey key) {
+            key.cancel();
+            final FrameChannel channel = (FrameChannel) key.attachment();
+            channel.close();
+            sessions.remove(channel.getAttachment());
+        }
+    }
+
+    private final class TickThread implements Runnable {
+        @Override
+        public void run() {
+            while (!exit) {
+                final long start = System.currentTimeMillis();
+                try {
+                    broadcastEdits();
+                } catch (final Exception e) {
+                    e.printStackTrace();
+                }
+                final long left = TICK_INTERVAL - (System.currentTimeMillis() - start);
+                if (left > 0) {
+                    try {
+                        Thread.sleep(left);
+                    } catch (final InterruptedException e) {
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class Edit {
+        private final BlockEditData data;
+        private final Session source;
+
+        private Edit(final BlockEditData data, final Session source) {
+            this.data = data;
+            this.source = source;
+        }
+    }
+
+    /**
+     * What the server knows about a client.
+     */
+    private final class Session {
+        private final FrameChannel channel;
+        /** Keys of the chunks the client was sent, within the interest radius. */
+        private final Set<Long> interest = Sets.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+        /**
+         * Edits broadcast while a chunk was being loaded for the client, per chunk key. Guarded by the session.
+         */
+        private final Map<Long, Loading> loading = Maps.newHashMap();
+        private int chunkX;
+        private int chunkZ;
+        private boolean positioned;
+
+        private Session(final FrameChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Drops interest in chunks that are now out of the radius.
+         */
+        private synchronized void moveTo(final int x, final int z) {
+            if (positioned && x == chunkX && z == chunkZ) {
+                return;
+            }
+            chunkX = x;
+            chunkZ = z;
+            positioned = true;
+            final Iterator<Long> iterator = interest.iterator();
+            while (iterator.hasNext()) {
+                final long key = iterator.next();
+                if (!isInRadius(WorldFile.getCoordinateX(key), WorldFile.getCoordinateZ(key))) {
+                    iterator.remove();
+                }
+            }
+        }
+
+        private boolean isInRadius(final int x, final int z) {
+            return !positioned || Math.abs(x - chunkX) <= interestRadius && Math.abs(z - chunkZ) <= interestRadius;
+        }
+
+        /**
+         * Adds the chunk to the interest set before it is loaded, so no edit applied after the load read it is missed.
+         */
+        private synchronized void startLoading(final long key) {
+            if (isInRadius(WorldFile.getCoordinateX(key), WorldFile.getCoordinateZ(key))) {
+                interest.add(key);
+            }
+            Loading state = loading.get(key);
+            if (state == null) {
+                state = new Loading();
+                loading.put(key, state);
+            }
+            state.loaders++;
+        }
+
+        /**
+         * @return edits to the chunk broadcast while it was loading, must be called with the session lock held
+         */
+        private List<BlockEditData> finishLoading(final long key) {
+            final Loading state = loading.get(key);
+            if (--state.loaders == 0) {
+                loading.remove(key);
+            }
+            return Lists.newArrayList(state.edits);
+        }
+
+        /**
+         * Must be called with the session lock held.
+         */
+        private void addLoadingEdit(final long key, final BlockEditData edit) {
+            if (!loading.isEmpty()) {
+                final Loading state = loading.get(key);
+                if (state != null) {
+                    state.edits.add(edit);
+                }
+            }
+        }
+    }
+
+    private static final class Loading {
+        private int loaders;
+        private final List<BlockEditData> edits = Lists.newArrayList();
+    }
+
+    public static void main(final String[] args) throws Exception {
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : ChunkProtocol.DEFAULT_PORT;
+        final File mapFile = new File(args.length > 1 ? args[1] : "world.acr");
+
+        final LocalServerDataHandler dataHandler = new LocalServerDataHandler(16, 128, 10,
+                new DefaultDataGenerator(), mapFile);
+        final ChunkServer chunkServer = new ChunkServer(dataHandler, port);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                chunkServer.close();
+                dataHandler.close();
+            }
+        });
+        Thread.currentThread().join();
+    }
+}
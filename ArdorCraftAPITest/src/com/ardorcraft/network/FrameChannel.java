@@ -0,0 +1,141 @@
+package com.ardorcraft.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Non-blocking socket channel split into {@link ChunkProtocol} frames. Reads and writes are done by the selector
+ * thread that owns the channel, frames can be queued for sending from any thread.
+ */
+final class FrameChannel {
+    interface FrameHandler {
+        /**
+         * @param payload
+         *            the frame after the type byte, only valid during the call
+         */
+        void frame(FrameChannel channel, byte type, ByteBuffer payload) throws IOException;
+    }
+
+    private static final int INITIAL_READ_BUFFER_SIZE = 64 * 1024;
+
+    private final SocketChannel channel;
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER_SIZE);
+    private final Queue<ByteBuffer> writeQueue = new ConcurrentLinkedQueue<ByteBuffer>();
+    private final AtomicLong queuedBytes = new AtomicLong();
+    private volatile Object attachment;
+
+    FrameChannel(final SocketChannel channel) {
+        this.channel = channel;
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    Object getAttachment() {
+        return attachment;
+    }
+
+    void setAttachment(final Object attachment) {
+        this.attachment = attachment;
+    }
+
+    /**
+     * Queues a frame, the owner has to make the selector thread call {@link #write()}.
+     */
+    void send(final ByteBuffer frame) {
+        queuedBytes.addAndGet(frame.remaining());
+        writeQueue.offer(frame);
+    }
+
+    /**
+     * @return bytes queued and not written yet
+     */
+    long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    boolean hasQueuedFrames() {
+        return !writeQueue.isEmpty();
+    }
+
+    /**
+     * Reads what the channel has and passes on every complete frame.
+     *
+     * @throws EOFException
+     *             if the other side closed the connection
+     */
+    void read(final FrameHandler handler) throws IOException {
+        while (true) {
+            final int count = channel.read(readBuffer);
+            if (count < 0) {
+                throw new EOFException("Connection closed");
+            }
+
+            readBuffer.flip();
+            while (readBuffer.remaining() >= 4) {
+                final int length = readBuffer.getInt(readBuffer.position());
+                if (length < 1 || length > ChunkProtocol.MAX_FRAME_SIZE) {
+                    throw new IOException("Bad frame length: " + length);
+                }
+                if (readBuffer.remaining() < 4 + length) {
+                    break;
+                }
+                final int end = readBuffer.position() + 4 + length;
+                final int limit = readBuffer.limit();
+                readBuffer.position(readBuffer.position() + 4);
+                final byte type = readBuffer.get();
+                readBuffer.limit(end);
+                handler.frame(this, type, readBuffer.slice());
+                readBuffer.limit(limit);
+                readBuffer.position(end);
+            }
+            readBuffer.compact();
+
+            if (!readBuffer.hasRemaining()) {
+                // a frame bigger than the buffer, grow to fit it
+                final ByteBuffer grown = ByteBuffer.allocate(readBuffer.capacity() * 2);
+                readBuffer.flip();
+                grown.put(readBuffer);
+                readBuffer = grown;
+            } else if (count == 0) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Writes queued frames until the socket buffer is full.
+     *
+     * @return true if everything queued was written
+     */
+    boolean write() throws IOException {
+        ByteBuffer frame;
+        while ((frame = writeQueue.peek()) != null) {
+            final int written = channel.write(frame);
+            queuedBytes.addAndGet(-written);
+            if (frame.hasRemaining()) {
+                return false;
+            }
+            writeQueue.poll();
+        }
+        return true;
+    }
+
+    /**
+     * Closes the channel and drops the queued frames.
+     */
+    void close() {
+        writeQueue.clear();
+        try {
+            channel.close();
+        } catch (final IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -1,21 +1,31 @@
 
 package com.ardorcraft.network;
 
+import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
 import com.ardor3d.math.type.ReadOnlyVector3;
+import com.ardorcraft.data.Pos;
 import com.ardorcraft.world.BlockSide;
 import com.ardorcraft.world.Chunk;
+import com.ardorcraft.world.ChunkData;
 import com.ardorcraft.world.ChunkModifier;
-import com.ardorcraft.world.IServerConnection;
+import com.ardorcraft.world.IBatchedServerConnection;
+import com.google.common.collect.Lists;
 
 /**
  * "Fake" local server implementation which just generate data upon request throught the LocalServerDataHandler and
  * pongs the data back. For real server/client communication, just implement the IServerConnection and send the requests
  * etc to your server.
+ * <p>
+ * Batched requests are generated in their priority order and posted back in batches of up to
+ * {@link #POST_BATCH_SIZE} chunks, so the first chunks do not wait for the whole batch.
  */
-public class LocalServerConnection implements IServerConnection {
+public class LocalServerConnection implements IBatchedServerConnection {
+    /** Chunks posted back in one batch at most. */
+    public static final int POST_BATCH_SIZE = 16;
+
     private final LocalServerDataHandler server;
     private ChunkModifier chunkModifier;
 
@@ -93,12 +103,34 @@ public class LocalServerConnection implements IServerConnection {
         });
     }
 
+    @Override
+    public void requestChunks(final List<Pos> positions) {
+        requestChunkMailbox.getMailBox().offer(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                server.prepareChunks(positions);
+                List<ChunkData> batch = Lists.newArrayListWithCapacity(POST_BATCH_SIZE);
+                for (final Pos pos : positions) {
+                    batch.add(new ChunkData(pos.x, pos.z, server.getChunk(pos.x, pos.z)));
+                    if (batch.size() == POST_BATCH_SIZE) {
+                        chunkModifier.postChunks(batch);
+                        batch = Lists.newArrayListWithCapacity(POST_BATCH_SIZE);
+                    }
+                }
+                if (!batch.isEmpty()) {
+                    chunkModifier.postChunks(batch);
+                }
+                return null;
+            }
+        });
+    }
+
     @Override
     public void setBlock(final int x, final int y, final int z, final int blockId, final BlockSide orientation) {
         requestChunkMailbox.getMailBox().offer(new Callable<Void>() {
             @Override
             public Void call() throws Exception {
-                server.setBlock(x, y, z, blockId);
+                server.setBlock(x, y, z, blockId, orientation != null ? orientation.ordinal() : -1);
                 return null;
             }
         });
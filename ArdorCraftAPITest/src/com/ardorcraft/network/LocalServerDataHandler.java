@@ -3,24 +3,68 @@ package com.ardorcraft.network;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import com.ardor3d.math.MathUtils;
 import com.ardorcraft.data.Pos;
+import com.ardorcraft.file.EncodedChunk;
+import com.ardorcraft.file.RegionWorldFile;
 import com.ardorcraft.file.WorldFile;
+import com.ardorcraft.file.WorldStorage;
 import com.ardorcraft.generators.DataGenerator;
 import com.ardorcraft.world.Chunk;
 import com.ardorcraft.world.WorldModifier;
 import com.ardorcraft.world.utils.ChunkDistanceComparator;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 /**
  * Simple data handler that works against a map file.
+ * <p>
+ * Block edits are appended to the map's edit journal, which is synced every second, and applied to chunks kept in
+ * memory. A saving thread writes those chunks back every half minute or as soon as too many are dirty, so repeated
+ * edits to a chunk cost one save and a crash loses at most the last second of edits.
+ * <p>
+ * Clean chunks are kept decompressed in an LRU cache with a byte budget, so repeated requests for a chunk and
+ * {@link #getBlock(int, int, int)} do not inflate it again. Chunks handed out by {@link #getChunk(int, int)} share
+ * their array with the cache and must not be changed. Dirty chunks are not part of the budget, they are written back
+ * by the saving thread and move to the cache once saved.
+ * <p>
+ * New chunks are generated on a pool of threads, one chunk buffer per thread, nearest to the client first. A chunk
+ * that is requested before it exists jumps the queue. Generated chunks are saved by a single writer thread, so
+ * generator threads never wait for the map file.
+ * <p>
+ * An area can be generated ahead of time in the background with {@link #pregenerate(List)}. Its chunks are queued a
+ * few at a time behind all chunks clients need, so clients are served first.
+ * <p>
+ * A map directory is opened as a {@link RegionWorldFile}, for worlds too big for a single map file.
+ * <p>
+ * The last edits of recently edited chunks are kept with the chunk version after each, so a client that kept a copy
+ * of a chunk can be sent only the blocks changed since, see {@link #getChunkEdits(int, int, long, long)}.
  */
 public class LocalServerDataHandler {
     private static final Logger logger = Logger.getLogger(LocalServerDataHandler.class.getName());
@@ -29,18 +73,87 @@ public class LocalServerDataHandler {
     private final int width;
     private final int gridSize;
 
-    private final WorldFile worldFile;
+    private final WorldStorage worldFile;
     private final DataGenerator generator;
+    private final Thread compactionThread;
+    private volatile boolean exit;
+
+    /** Milliseconds between syncs of the edit journal. */
+    private static final long JOURNAL_SYNC_INTERVAL = 1000;
+    /** Milliseconds between flushes of dirty chunks. */
+    private static final long FLUSH_INTERVAL = 30000;
+    /** Dirty chunks held before a flush starts early. */
+    private static final int MAX_DIRTY_CHUNKS = 256;
+    private final Map<Pos, DirtyChunk> dirtyChunks = Maps.newLinkedHashMap();
+    /** Default byte budget of the clean chunk cache. */
+    public static final long DEFAULT_CACHE_BYTES = 64 * 1024 * 1024;
+    private final Cache<Pos, byte[]> chunkCache;
+    /** Counts edits, a load that saw it change may be stale and is not cached. Guarded by this. */
+    private int editCount;
+    /** Chunks with an edit history. */
+    private static final int HISTORY_CHUNKS = 1024;
+    /** Edits kept per chunk, the older half is dropped when there are more. */
+    private static final int MAX_HISTORY_EDITS = 256;
+    /** Guarded by this. */
+    private final Cache<Pos, EditHistory> editHistory = CacheBuilder.newBuilder().maximumSize(HISTORY_CHUNKS).build();
+    private final CountDownLatch exitLatch = new CountDownLatch(1);
+
+    /** Priority of chunks that are waited for. */
+    private static final long URGENT = -1;
+    /** Priority of pre-generated chunks, after every chunk for a client. */
+    private static final long PREGENERATION = Long.MAX_VALUE;
+    /** Generated chunks waiting for the writer before generators block. */
+    private static final int MAX_UNWRITTEN_CHUNKS = 64;
+    private final ThreadPoolExecutor generatorPool;
+    private final ConcurrentMap<Pos, PendingChunk> pendingChunks = new ConcurrentHashMap<Pos, PendingChunk>();
+    private final BlockingQueue<PendingChunk> unwrittenChunks = new LinkedBlockingQueue<PendingChunk>(
+            MAX_UNWRITTEN_CHUNKS);
+    private final AtomicLong taskOrder = new AtomicLong();
+    private final Thread writerThread;
+    private final ThreadLocal<LocalBlockModifier> generatorBuffers = new ThreadLocal<LocalBlockModifier>() {
+        @Override
+        protected LocalBlockModifier initialValue() {
+            return new LocalBlockModifier(new byte[width * width * height]);
+        }
+    };
 
     public LocalServerDataHandler(final int width, final int height, final int gridSize, final DataGenerator generator,
             final File mapFile) {
+        this(width, height, gridSize, generator, mapFile, DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * @param cacheBytes
+     *            byte budget of the clean chunk cache, 0 to not cache
+     */
+    public LocalServerDataHandler(final int width, final int height, final int gridSize, final DataGenerator generator,
+            final File mapFile, final long cacheBytes) {
+        this(width, height, gridSize, generator, mapFile, cacheBytes, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param cacheBytes
+     *            byte budget of the clean chunk cache, 0 to not cache
+     * @param generatorThreads
+     *            number of threads generating chunks, the generator must be thread safe
+     */
+    public LocalServerDataHandler(final int width, final int height, final int gridSize, final DataGenerator generator,
+            final File mapFile, final long cacheBytes, final int generatorThreads) {
         this.width = width;
         this.height = height;
         this.gridSize = gridSize;
         this.generator = generator;
+        chunkCache = CacheBuilder.newBuilder().maximumWeight(cacheBytes).weigher(new Weigher<Pos, byte[]>() {
+            @Override
+            public int weigh(final Pos key, final byte[] value) {
+                return value.length;
+            }
+        }).build();
 
         try {
-            if (mapFile != null) {
+            if (mapFile != null && mapFile.isDirectory()) {
+                worldFile = new RegionWorldFile(mapFile);
+            } else if (mapFile != null) {
                 worldFile = new WorldFile(mapFile);
             } else {
                 final File file = new File("world.acr");
@@ -49,12 +162,52 @@ public class LocalServerDataHandler {
                 }
                 worldFile = new WorldFile(file);
             }
+            worldFile.enableJournal(width, height);
         } catch (final Exception e) {
             throw new RuntimeException(e);
         }
+
+        final Thread savingThread = new Thread(new SavingThread(), "mapSaving");
+        savingThread.setDaemon(true);
+        savingThread.start();
+
+        compactionThread = new Thread(new CompactionThread(), "mapCompaction");
+        compactionThread.setDaemon(true);
+        compactionThread.start();
+
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+        generatorPool = new ThreadPoolExecutor(generatorThreads, generatorThreads, 0, TimeUnit.MILLISECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "chunkGenerator-" + threadNumber.getAndIncrement());
+                        thread.setDaemon(true);
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+
+        writerThread = new Thread(new WriterThread(), "mapWriter");
+        writerThread.setDaemon(true);
+        writerThread.start();
     }
 
     public void close() {
+        exit = true;
+        // generators do not touch the map file, so they can be interrupted
+        generatorPool.shutdownNow();
+        synchronized (this) {
+            notifyAll();
+        }
+        // no interrupts, they would close the map file channel under a running load
+        try {
+            generatorPool.awaitTermination(1, TimeUnit.MINUTES);
+            writerThread.join();
+            exitLatch.await();
+            compactionThread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         try {
             worldFile.close();
         } catch (final IOException e) {
@@ -63,111 +216,415 @@ public class LocalServerDataHandler {
         System.out.println("World closed");
     }
 
+    /**
+     * @return chunk width in blocks
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return chunk height in blocks
+     */
+    public int getHeight() {
+        return height;
+    }
+
     private byte[] loadChunkData(final int x, final int z) {
-        byte[] block = null;
         try {
             if (!worldFile.contains(x, z)) {
-                try {
-                    generateChunks(x, z, 1, 1, true);
-                } catch (final Exception e1) {
-                    e1.printStackTrace();
-                    return null;
+                final PendingChunk pending = requestGeneration(x, z, URGENT);
+                // only once saved, so journaled edits to it are not overwritten by the save
+                while (!pending.saved.await(100, TimeUnit.MILLISECONDS)) {
+                    if (exit) {
+                        return null;
+                    }
+                }
+                if (pending.data != null) {
+                    return pending.data;
                 }
             }
 
-            block = worldFile.load(x, z);
+            final byte[] block = new byte[width * width * height];
+            if (worldFile.load(x, z, block) < 0) {
+                return null;
+            }
+            return block;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         } catch (final Exception e) {
             e.printStackTrace();
             return null;
         }
-        return block;
     }
 
-    private void generateChunks(final int X, final int Z, final int chunksWidth, final int chunksHeight,
-            final boolean onlyNew) throws Exception {
-        final long t = System.currentTimeMillis();
+    /**
+     * Queues a chunk for generation unless it is already queued, or moves it up if it is and the new priority is
+     * more urgent.
+     *
+     * @param priority
+     *            lower is generated first
+     * @return the pending chunk, done once the chunk has been saved
+     */
+    private PendingChunk requestGeneration(final int x, final int z, final long priority) {
+        final Pos pos = new Pos(x, 0, z);
+        PendingChunk pending = pendingChunks.get(pos);
+        if (pending == null) {
+            final PendingChunk created = new PendingChunk(pos, priority);
+            pending = pendingChunks.putIfAbsent(pos, created);
+            if (pending == null) {
+                generatorPool.execute(new GenerateTask(created, priority));
+                return created;
+            }
+        }
+        synchronized (pending) {
+            if (priority < pending.priority && !pending.started.get()) {
+                // the queued task stays behind and finds the chunk taken when it runs
+                pending.priority = priority;
+                generatorPool.execute(new GenerateTask(pending, priority));
+            }
+        }
+        return pending;
+    }
 
-        final byte localBlock[] = new byte[width * width * height];
-        final WorldModifier worldEdit = new LocalBlockModifier(localBlock);
+    private void generateChunk(final PendingChunk pending) throws InterruptedException {
+        final Pos pos = pending.pos;
+        if (worldFile.contains(pos.x, pos.z)) {
+            pendingChunks.remove(pos);
+            pending.saved.countDown();
+            return;
+        }
 
-        int nrChunksGenerated = 0;
-        for (int x = 0; x < chunksWidth; x++) {
-            for (int z = 0; z < chunksHeight; z++) {
-                final int xx = X + x;
-                final int zz = Z + z;
+        final LocalBlockModifier worldEdit = generatorBuffers.get();
+        Arrays.fill(worldEdit.localBlock, (byte) 0);
+        generator.generateChunk(pos.x * width, pos.z * width, pos.x * width + width, pos.z * width + width, 1, height,
+                worldEdit);
+        pending.data = worldEdit.localBlock.clone();
+        unwrittenChunks.put(pending);
+    }
 
-                if (onlyNew && worldFile.contains(xx, zz)) {
-                    continue;
-                }
+    public Chunk getChunk(final int x, final int z) {
+        final byte[] dirty = getDirtyCopy(x, z);
+        if (dirty != null) {
+            return new Chunk(dirty, null);
+        }
+        return new Chunk(getCleanData(new Pos(x, 0, z)), null);
+    }
 
-                synchronized (generator) {
-                    generator.generateChunk(xx * width, zz * width, xx * width + width, zz * width + width, 1, height,
-                            worldEdit);
-                    Thread.yield();
+    /**
+     * Gets a chunk compressed as stored in the map, for sending on without compressing it again. Journaled edits are
+     * part of it, as with {@link #getChunk(int, int)}.
+     *
+     * @return the compressed chunk, generated first if it is new, or null if it could not be loaded
+     */
+    public EncodedChunk getEncodedChunk(final int x, final int z) {
+        try {
+            EncodedChunk encoded = worldFile.loadEncoded(x, z);
+            if (encoded == null && getCleanData(new Pos(x, 0, z)) != null) {
+                encoded = worldFile.loadEncoded(x, z);
+            }
+            return encoded;
+        } catch (final IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    /**
+     * @return version of the chunk in the map, generated first if it is new, or 0 if it could not be loaded
+     */
+    public long getChunkVersion(final int x, final int z) {
+        if (!worldFile.contains(x, z) && getCleanData(new Pos(x, 0, z)) == null) {
+            return 0;
+        }
+        return worldFile.getVersion(x, z);
+    }
 
-                    worldFile.save(xx, zz, localBlock);
-                    Thread.yield();
+    /**
+     * Gets the edits that take a chunk from one version to a later one, to update a copy a client kept instead of
+     * sending the whole chunk again. Only a chunk's last edits are known, for the chunks edited last.
+     * 
+     * @return last block id per changed block, packed as block index << 8 | block id, or null if the edits between
+     *         the versions are not known
+     */
+    public synchronized int[] getChunkEdits(final int x, final int z, final long fromVersion, final long toVersion) {
+        final EditHistory history = editHistory.getIfPresent(new Pos(x, 0, z));
+        return history != null ? history.getEdits(fromVersion, toVersion) : null;
+    }
+
+    /**
+     * Queues generation of the missing chunks among the given ones ahead of chunks generated for the client
+     * position, in the given order, so a following {@link #getChunk(int, int)} for each of them finds them generated
+     * in parallel.
+     *
+     * @param positions
+     *            chunk coordinates (y unused) in priority order
+     */
+    public void prepareChunks(final List<Pos> positions) {
+        for (final Pos pos : positions) {
+            if (!worldFile.contains(pos.x, pos.z)) {
+                requestGeneration(pos.x, pos.z, URGENT);
+            }
+        }
+    }
+
+    /**
+     * Generates the missing chunks among the given ones in the background, in the given order. Only a few are queued
+     * at a time, each behind all chunks queued for clients.
+     *
+     * @param positions
+     *            chunk coordinates (y unused), see {@link #getArea(int, int, int)} and
+     *            {@link #getArea(int, int, int, int)}
+     * @return progress of the generation
+     */
+    public Pregeneration pregenerate(final List<Pos> positions) {
+        final List<Pos> area = Lists.newArrayList(positions);
+        final Pregeneration progress = new Pregeneration(area.size());
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    pregenerate(area, progress);
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    progress.finish();
                 }
+            }
+        }, "mapPregeneration");
+        thread.setDaemon(true);
+        thread.start();
+        return progress;
+    }
 
-                nrChunksGenerated++;
+    private void pregenerate(final List<Pos> area, final Pregeneration progress) throws InterruptedException {
+        // enough to keep the generators busy, few enough not to hold up the writer for clients
+        final int maxQueued = generatorPool.getMaximumPoolSize() * 2;
+        final List<PendingChunk> queued = Lists.newArrayList();
+        progress.start();
+        for (final Pos pos : area) {
+            if (exit || progress.isCancelled()) {
+                break;
+            }
+            if (worldFile.contains(pos.x, pos.z)) {
+                progress.addSkipped();
+                continue;
+            }
+            queued.add(requestGeneration(pos.x, pos.z, PREGENERATION));
+            while (queued.size() >= maxQueued && !exit) {
+                queued.get(0).saved.await(100, TimeUnit.MILLISECONDS);
+                removeSaved(queued, progress);
             }
         }
-        if (nrChunksGenerated > 0) {
-            logger.info(nrChunksGenerated + " new chunk" + (nrChunksGenerated > 1 ? "s" : "") + " generated. (time="
-                    + (System.currentTimeMillis() - t) + ")");
+        while (!queued.isEmpty() && !exit) {
+            queued.get(0).saved.await(100, TimeUnit.MILLISECONDS);
+            removeSaved(queued, progress);
         }
     }
 
-    // private final ConcurrentMap<Pos, Chunk> chunkCache = new MapMaker().softValues().makeMap();
+    private void removeSaved(final List<PendingChunk> queued, final Pregeneration progress) {
+        final Iterator<PendingChunk> iterator = queued.iterator();
+        while (iterator.hasNext()) {
+            final PendingChunk pending = iterator.next();
+            if (pending.saved.getCount() == 0) {
+                if (worldFile.contains(pending.pos.x, pending.pos.z)) {
+                    progress.addGenerated();
+                } else {
+                    progress.addFailed();
+                }
+                iterator.remove();
+            }
+        }
+    }
 
-//    private boolean hasChunk(final int x, final int z) {
-//        return true;// chunkCache.containsKey(new Pos(x, 0, z));
-//    }
+    /**
+     * @return chunk coordinates within a radius of a chunk, nearest first
+     */
+    public static List<Pos> getArea(final int centerX, final int centerZ, final int radius) {
+        final List<Pos> area = Lists.newArrayList();
+        for (int x = -radius; x <= radius; x++) {
+            for (int z = -radius; z <= radius; z++) {
+                if (x * x + z * z <= radius * radius) {
+                    area.add(new Pos(centerX + x, 0, centerZ + z));
+                }
+            }
+        }
+        Collections.sort(area, new ChunkDistanceComparator(centerX, centerZ));
+        return area;
+    }
 
-    public synchronized Chunk getChunk(final int x, final int z) {
-        // final Pos chunkPos = new Pos(x, 0, z);
-        // Chunk chunk = chunkCache.get(chunkPos);
-        // if (chunk == null) {
-        final byte[] data = loadChunkData(x, z);
-        final Chunk chunk = new Chunk(data, null);
-        // chunkCache.put(chunkPos, chunk);
-        // }
-        return chunk;
+    /**
+     * @return chunk coordinates of a rectangle, bounds included, nearest to its center first
+     */
+    public static List<Pos> getArea(final int minX, final int minZ, final int maxX, final int maxZ) {
+        final List<Pos> area = Lists.newArrayList();
+        for (int x = minX; x <= maxX; x++) {
+            for (int z = minZ; z <= maxZ; z++) {
+                area.add(new Pos(x, 0, z));
+            }
+        }
+        Collections.sort(area, new ChunkDistanceComparator((minX + maxX) / 2, (minZ + maxZ) / 2));
+        return area;
     }
 
-    public void setBlock(final int x, final int y, final int z, final int blockId) {
-        final int chunkX = MathUtils.floor((float) x / width);
-        final int chunkZ = MathUtils.floor((float) z / width);
+    /**
+     * @return the chunk data from the cache, or loaded and cached; shared, not to be changed
+     */
+    private byte[] getCleanData(final Pos pos) {
+        byte[] data = chunkCache.getIfPresent(pos);
+        if (data != null) {
+            return data;
+        }
 
-        final Chunk chunk = getChunk(chunkX, chunkZ);
-        setChunkBlock(chunk, MathUtils.moduloPositive(x, width), y, MathUtils.moduloPositive(z, width), blockId);
+        final int edits;
+        synchronized (this) {
+            edits = editCount;
+        }
+        data = loadChunkData(pos.x, pos.z);
+        if (data != null) {
+            synchronized (this) {
+                // an edit during the load may have come after the data was read
+                if (edits == editCount && !dirtyChunks.containsKey(pos)) {
+                    chunkCache.put(pos, data);
+                }
+            }
+        }
+        return data;
+    }
 
-        saveChunk(chunkX, chunkZ, chunk);
+    public void setBlock(final int x, final int y, final int z, final int blockId) {
+        setBlock(x, y, z, blockId, -1);
     }
 
-    public int getBlock(final int x, final int y, final int z) {
+    /**
+     * Does nothing for a y outside the chunk height.
+     *
+     * @param orientation
+     *            ordinal of the block side the block was placed against, or -1
+     */
+    public synchronized void setBlock(final int x, final int y, final int z, final int blockId, final int orientation) {
+        if (y < 0 || y >= height) {
+            return;
+        }
         final int chunkX = MathUtils.floor((float) x / width);
         final int chunkZ = MathUtils.floor((float) z / width);
 
-        final Chunk chunk = getChunk(chunkX, chunkZ);
-        return getChunkBlock(chunk, MathUtils.moduloPositive(x, width), y, MathUtils.moduloPositive(z, width));
+        final Pos pos = new Pos(chunkX, 0, chunkZ);
+        DirtyChunk dirty = dirtyChunks.get(pos);
+        if (dirty == null) {
+            final byte[] data = getCleanData(pos);
+            if (data == null) {
+                return;
+            }
+            chunkCache.invalidate(pos);
+            dirty = new DirtyChunk(new Chunk(data.clone(), null));
+            dirtyChunks.put(pos, dirty);
+            if (dirtyChunks.size() >= MAX_DIRTY_CHUNKS) {
+                notifyAll();
+            }
+        }
+        final int localX = MathUtils.moduloPositive(x, width);
+        final int localZ = MathUtils.moduloPositive(z, width);
+        final long version = worldFile.getVersion(chunkX, chunkZ);
+        try {
+            worldFile.appendEdit(x, y, z, blockId, orientation);
+            addHistory(pos, version, worldFile.getVersion(chunkX, chunkZ), localX + (y + localZ * height) * width,
+                    blockId);
+        } catch (final IOException e) {
+            e.printStackTrace();
+            editHistory.invalidate(pos);
+        }
+        setChunkBlock(dirty.chunk, localX, y, localZ, blockId);
+        dirty.version++;
+        editCount++;
     }
 
-    private void setChunkBlock(final Chunk chunk, final int x, final int y, final int z, final int blockId) {
-        chunk.getBlocks()[x + (y + z * height) * width] = (byte) blockId;
+    /**
+     * Must be called with the lock held.
+     */
+    private void addHistory(final Pos pos, final long version, final long newVersion, final int index,
+            final int blockId) {
+        if (newVersion == version) {
+            return;
+        }
+        EditHistory history = editHistory.getIfPresent(pos);
+        if (history == null || history.getVersion() != version) {
+            history = new EditHistory(version);
+            editHistory.put(pos, history);
+        }
+        history.add(newVersion, index << 8 | blockId & 0xff);
     }
 
-    private int getChunkBlock(final Chunk chunk, final int x, final int y, final int z) {
-        return chunk.getBlocks()[x + (y + z * height) * width] & 0xff;
+    private synchronized byte[] getDirtyCopy(final int x, final int z) {
+        final DirtyChunk dirty = dirtyChunks.get(new Pos(x, 0, z));
+        return dirty != null ? dirty.chunk.getBlocks().clone() : null;
     }
 
-    private void saveChunk(final int x, final int z, final Chunk chunk) {
-        try {
-            final byte localBlock[] = chunk.getBlocks();
-            worldFile.save(x, z, localBlock);
-        } catch (final IOException e) {
-            e.printStackTrace();
+    /**
+     * Saves a snapshot of every dirty chunk. A chunk is only marked clean if it was not edited again while saving.
+     */
+    private void flush() {
+        final List<PendingSave> pending = Lists.newArrayList();
+        synchronized (this) {
+            for (final Entry<Pos, DirtyChunk> entry : dirtyChunks.entrySet()) {
+                final Pos pos = entry.getKey();
+                final DirtyChunk dirty = entry.getValue();
+                try {
+                    final long journalSequence = worldFile.getJournalSequence(pos.x, pos.z);
+                    pending.add(new PendingSave(pos, dirty.chunk.getBlocks().clone(), dirty.version,
+                            journalSequence));
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        final List<PendingSave> saved = Lists.newArrayListWithCapacity(pending.size());
+        for (final PendingSave save : pending) {
+            try {
+                // edits journaled after the snapshot was taken stay pending in the map
+                worldFile.save(save.pos.x, save.pos.z, save.data, save.journalSequence);
+                saved.add(save);
+            } catch (final IOException e) {
+                e.printStackTrace();
+            }
         }
+
+        synchronized (this) {
+            for (final PendingSave save : saved) {
+                final DirtyChunk dirty = dirtyChunks.get(save.pos);
+                if (dirty != null && dirty.version == save.version) {
+                    dirtyChunks.remove(save.pos);
+                    // no longer changed once it is not dirty, so the array can be shared
+                    chunkCache.put(save.pos, dirty.chunk.getBlocks());
+                }
+            }
+        }
+    }
+
+    public int getBlock(final int x, final int y, final int z) {
+        final int chunkX = MathUtils.floor((float) x / width);
+        final int chunkZ = MathUtils.floor((float) z / width);
+        final int index = MathUtils.moduloPositive(x, width) + (y + MathUtils.moduloPositive(z, width) * height)
+                * width;
+
+        final Pos pos = new Pos(chunkX, 0, chunkZ);
+        synchronized (this) {
+            final DirtyChunk dirty = dirtyChunks.get(pos);
+            if (dirty != null) {
+                return dirty.chunk.getBlocks()[index] & 0xff;
+            }
+        }
+        final byte[] data = getCleanData(pos);
+        return data != null ? data[index] & 0xff : 0;
+    }
+
+    private void setChunkBlock(final Chunk chunk, final int x, final int y, final int z, final int blockId) {
+        chunk.getBlocks()[x + (y + z * height) * width] = (byte) blockId;
     }
 
     class LocalBlockModifier implements WorldModifier {
@@ -202,30 +659,244 @@ public class LocalServerDataHandler {
     private int oldTileZ = Integer.MAX_VALUE;
     private final Set<Pos> tileCache = new LinkedHashSet<Pos>();
 
+    /**
+     * Moves a few records at a time into free space left by edited chunks, so the map file stays close to the size of
+     * its live data without stopping chunk loads.
+     */
+    class CompactionThread implements Runnable {
+        @Override
+        public void run() {
+            while (!exit) {
+                try {
+                    if (worldFile.getFreeBytes() > worldFile.size() / 8) {
+                        worldFile.compact(8);
+                    }
+                    Thread.sleep(100);
+                } catch (final InterruptedException e) {
+                    return;
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * A chunk being generated, done when it has been saved.
+     */
+    private static class PendingChunk {
+        private final Pos pos;
+        private final AtomicBoolean started = new AtomicBoolean();
+        private final CountDownLatch saved = new CountDownLatch(1);
+        /** Most urgent priority it was queued with. Guarded by this. */
+        private long priority;
+        private volatile byte[] data;
+
+        PendingChunk(final Pos pos, final long priority) {
+            this.pos = pos;
+            this.priority = priority;
+        }
+    }
+
+    private class GenerateTask implements Runnable, Comparable<GenerateTask> {
+        private final PendingChunk pending;
+        private final long priority;
+        private final long order = taskOrder.getAndIncrement();
+
+        GenerateTask(final PendingChunk pending, final long priority) {
+            this.pending = pending;
+            this.priority = priority;
+        }
+
+        @Override
+        public void run() {
+            if (!pending.started.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                generateChunk(pending);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (final RuntimeException e) {
+                e.printStackTrace();
+                pendingChunks.remove(pending.pos);
+                pending.saved.countDown();
+            }
+        }
+
+        @Override
+        public int compareTo(final GenerateTask other) {
+            if (priority != other.priority) {
+                return priority < other.priority ? -1 : 1;
+            }
+            return order < other.order ? -1 : order > other.order ? 1 : 0;
+        }
+    }
+
+    /**
+     * Saves generated chunks one at a time, until closing and the generators have stopped and nothing is left to
+     * save.
+     */
+    class WriterThread implements Runnable {
+        @Override
+        public void run() {
+            int written = 0;
+            long batchStart = 0;
+            try {
+                while (!exit || !generatorPool.isTerminated() || !unwrittenChunks.isEmpty()) {
+                    final PendingChunk pending = unwrittenChunks.poll(100, TimeUnit.MILLISECONDS);
+                    if (pending == null) {
+                        if (written > 0) {
+                            logger.info(written + " new chunk" + (written > 1 ? "s" : "") + " generated. (time="
+                                    + (System.currentTimeMillis() - batchStart) + ")");
+                            written = 0;
+                        }
+                        continue;
+                    }
+                    if (written++ == 0) {
+                        batchStart = System.currentTimeMillis();
+                    }
+                    try {
+                        worldFile.save(pending.pos.x, pending.pos.z, pending.data);
+                    } catch (final IOException e) {
+                        e.printStackTrace();
+                        pending.data = null;
+                    }
+                    pendingChunks.remove(pending.pos);
+                    pending.saved.countDown();
+                }
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class DirtyChunk {
+        private final Chunk chunk;
+        private int version;
+
+        DirtyChunk(final Chunk chunk) {
+            this.chunk = chunk;
+        }
+    }
+
+    /**
+     * Edits of one chunk in order with the chunk version after each, packed as block index << 8 | block id.
+     */
+    private static class EditHistory {
+        /** Version before the first edit kept. */
+        private long baseVersion;
+        private long[] versions = new long[16];
+        private int[] edits = new int[16];
+        private int count;
+
+        EditHistory(final long baseVersion) {
+            this.baseVersion = baseVersion;
+        }
+
+        long getVersion() {
+            return count > 0 ? versions[count - 1] : baseVersion;
+        }
+
+        void add(final long version, final int edit) {
+            if (count == MAX_HISTORY_EDITS) {
+                final int dropped = count / 2;
+                baseVersion = versions[dropped - 1];
+                System.arraycopy(versions, dropped, versions, 0, count - dropped);
+                System.arraycopy(edits, dropped, edits, 0, count - dropped);
+                count -= dropped;
+            }
+            if (count == edits.length) {
+                versions = Arrays.copyOf(versions, count * 2);
+                edits = Arrays.copyOf(edits, count * 2);
+            }
+            versions[count] = version;
+            edits[count] = edit;
+            count++;
+        }
+
+        /**
+         * @return the last edit per block after the first version up to the second, or null if either is not a
+         *         version the history went through
+         */
+        int[] getEdits(final long fromVersion, final long toVersion) {
+            final int start = indexAfter(fromVersion);
+            final int end = indexAfter(toVersion);
+            if (start < 0 || end < start) {
+                return null;
+            }
+            final Set<Integer> changed = new HashSet<Integer>();
+            final int[] result = new int[end - start];
+            int resultCount = 0;
+            for (int i = end - 1; i >= start; i--) {
+                if (changed.add(edits[i] >>> 8)) {
+                    result[resultCount++] = edits[i];
+                }
+            }
+            return Arrays.copyOf(result, resultCount);
+        }
+
+        /**
+         * @return index of the first edit after the version, or -1 if the version is not in the history
+         */
+        private int indexAfter(final long version) {
+            if (version == baseVersion) {
+                return 0;
+            }
+            final int index = Arrays.binarySearch(versions, 0, count, version);
+            return index >= 0 ? index + 1 : -1;
+        }
+    }
+
+    private static class PendingSave {
+        private final Pos pos;
+        private final byte[] data;
+        private final int version;
+        private final long journalSequence;
+
+        PendingSave(final Pos pos, final byte[] data, final int version, final long journalSequence) {
+            this.pos = pos;
+            this.data = data;
+            this.version = version;
+            this.journalSequence = journalSequence;
+        }
+    }
+
     class SavingThread implements Runnable {
         @Override
         public void run() {
-            // while (!exit) {
-            // try {
-            // final List<Pos> list = savingMailBox.switchAndGet();
-            //
-            // if (!list.isEmpty()) {
-            // for (final Pos pos : list) {
-            // saveChunk(pos.x, pos.z);
-            // Thread.sleep(10);
-            // }
-            // }
-            //
-            // Thread.sleep(1000);
-            // } catch (final InterruptedException e) {
-            // e.printStackTrace();
-            // }
-            // }
-            // exitLatch.countDown();
+            long lastFlush = System.currentTimeMillis();
+            try {
+                while (!exit) {
+                    final boolean full;
+                    synchronized (LocalServerDataHandler.this) {
+                        if (!exit && dirtyChunks.size() < MAX_DIRTY_CHUNKS) {
+                            LocalServerDataHandler.this.wait(JOURNAL_SYNC_INTERVAL);
+                        }
+                        full = dirtyChunks.size() >= MAX_DIRTY_CHUNKS;
+                    }
+                    if (full || System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL) {
+                        flush();
+                        lastFlush = System.currentTimeMillis();
+                    }
+                    try {
+                        worldFile.flushJournal();
+                    } catch (final IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            } catch (final InterruptedException e) {
+                e.printStackTrace();
+            } finally {
+                flush();
+                exitLatch.countDown();
+            }
         }
     }
 
     public void updateClientPosition(int currentTileX, int currentTileZ) {
+        final int clientX = currentTileX;
+        final int clientZ = currentTileZ;
         currentTileX /= gridSize / 2;
         currentTileZ /= gridSize / 2;
 
@@ -254,17 +925,22 @@ public class LocalServerDataHandler {
             }
         }
         if (!newPos.isEmpty()) {
-            try {
-                final List<Pos> sortedPos = Lists.newArrayList();
-                sortedPos.addAll(newPos);
-                Collections.sort(sortedPos, new ChunkDistanceComparator(currentTileX, currentTileZ));
-
-                for (final Pos pos : sortedPos) {
-                    generateChunks(pos.x * gridSize - gridSize / 2, pos.z * gridSize - gridSize / 2, gridSize,
-                            gridSize, true);
+            final List<Pos> sortedPos = Lists.newArrayList();
+            sortedPos.addAll(newPos);
+            Collections.sort(sortedPos, new ChunkDistanceComparator(currentTileX, currentTileZ));
+
+            for (final Pos pos : sortedPos) {
+                final int tileX = pos.x * gridSize - gridSize / 2;
+                final int tileZ = pos.z * gridSize - gridSize / 2;
+                for (int x = tileX; x < tileX + gridSize; x++) {
+                    for (int z = tileZ; z < tileZ + gridSize; z++) {
+                        if (!worldFile.contains(x, z)) {
+                            final long dx = x - clientX;
+                            final long dz = z - clientZ;
+                            requestGeneration(x, z, dx * dx + dz * dz);
+                        }
+                    }
                 }
-            } catch (final Exception e) {
-                e.printStackTrace();
             }
         }
         tileCache.addAll(newPos);
@@ -0,0 +1,59 @@
+package com.ardorcraft.network;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import com.ardorcraft.generators.DefaultDataGenerator;
+
+/**
+ * Headless tool that generates the chunks within a radius of a chunk into a map, for a {@link ChunkServer} to serve
+ * without generating them on first visit. Prints progress, throughput and the estimated time left every few seconds.
+ * Chunks already in the map are skipped, so a stopped run is resumed by running it again.
+ * <p>
+ * Usage: MapPregenerator mapFile radius [centerX] [centerZ] [threads]
+ */
+public class MapPregenerator {
+    private static final long REPORT_INTERVAL = 5000;
+
+    public static void main(final String[] args) throws Exception {
+        if (args.length < 2) {
+            System.out.println("Usage: MapPregenerator mapFile radius [centerX] [centerZ] [threads]");
+            return;
+        }
+        final File mapFile = new File(args[0]);
+        final int radius = Integer.parseInt(args[1]);
+        final int centerX = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        final int centerZ = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+        final int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+
+        final LocalServerDataHandler dataHandler = new LocalServerDataHandler(16, 128, 10,
+                new DefaultDataGenerator(), mapFile, LocalServerDataHandler.DEFAULT_CACHE_BYTES, threads);
+        final Pregeneration progress = dataHandler.pregenerate(LocalServerDataHandler.getArea(centerX, centerZ,
+                radius));
+        final Thread shutdownHook = new Thread() {
+            @Override
+            public void run() {
+                // the chunks generated so far are kept, running again resumes
+                progress.cancel();
+                dataHandler.close();
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+
+        while (!progress.await(REPORT_INTERVAL, TimeUnit.MILLISECONDS)) {
+            report(progress);
+        }
+        report(progress);
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        dataHandler.close();
+    }
+
+    private static void report(final Pregeneration progress) {
+        final long remaining = progress.getRemainingMillis() / 1000;
+        System.out.println(String.format("%d/%d chunks (%.1f%%), %d skipped, %d failed, %.1f chunks/s, %s left",
+                progress.getCompleted(), progress.getTotal(), progress.getCompleted() * 100.0
+                        / Math.max(1, progress.getTotal()), progress.getSkipped(), progress.getFailed(), progress
+                        .getChunksPerSecond(), remaining < 0 ? "?" : String.format("%d:%02d:%02d", remaining / 3600,
+                        remaining / 60 % 60, remaining % 60)));
+    }
+}
@@ -0,0 +1,355 @@
+package com.ardorcraft.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Logger;
+
+import com.ardor3d.math.type.ReadOnlyVector3;
+import com.ardorcraft.data.Pos;
+import com.ardorcraft.file.ChunkCodec;
+import com.ardorcraft.file.ChunkCodecs;
+import com.ardorcraft.file.WorldFile;
+import com.ardorcraft.world.BlockEditData;
+import com.ardorcraft.world.BlockSide;
+import com.ardorcraft.world.Chunk;
+import com.ardorcraft.world.ChunkData;
+import com.ardorcraft.world.ChunkModifier;
+import com.ardorcraft.world.IBatchedServerConnection;
+import com.ardorcraft.world.ICachingServerConnection;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.Lists;
+
+/**
+ * Client side of the {@link ChunkProtocol}, talks to a {@link ChunkServer} over TCP.
+ * <p>
+ * {@link #connect(String)} has to be called before the connection is handed to a block world. Requests are queued and
+ * written by a network thread, which also decompresses the received chunks and posts each read's worth of them as one
+ * batch. Edits other clients made are posted with {@link ChunkModifier#postBlocks(List)}, so they are not sent back.
+ * <p>
+ * Received chunks are kept compressed, with their version, in a cache with a byte budget. A request for a chunk in the
+ * cache names its version, and the server answers that it is unchanged or with the blocks changed since, so coming
+ * back to an area is not a full download. Block worlds keep no cold store of their own for it, see
+ * {@link ICachingServerConnection}.
+ */
+public class NetworkServerConnection implements IBatchedServerConnection, ICachingServerConnection {
+    private static final Logger logger = Logger.getLogger(NetworkServerConnection.class.getName());
+
+    /** Default byte budget of the cache of received chunks. */
+    public static final long DEFAULT_CACHE_BYTES = 16 * 1024 * 1024;
+    /** Codec for chunks that were edited in the cache. */
+    private static final ChunkCodec cacheCodec = ChunkCodecs.get(ChunkCodecs.FAST_LZ);
+
+    private final Cache<Long, CachedChunk> chunkCache;
+
+    private volatile ChunkModifier chunkModifier;
+    private Selector selector;
+    private FrameChannel channel;
+    private Thread networkThread;
+    private volatile boolean exit;
+
+    private float lastX = Float.NaN;
+    private float lastY;
+    private float lastZ;
+
+    /** Chunks decoded during the current read. Only used by the network thread. */
+    private final List<ChunkData> received = Lists.newArrayList();
+
+    public NetworkServerConnection() {
+        this(DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * @param cacheBytes
+     *            byte budget of the cache of received chunks, 0 to not keep them
+     */
+    public NetworkServerConnection(final long cacheBytes) {
+        chunkCache = CacheBuilder.newBuilder().maximumWeight(cacheBytes).weigher(new Weigher<Long, CachedChunk>() {
+            @Override
+            public int weigh(final Long key, final CachedChunk value) {
+                return value.data.length;
+            }
+        }).build();
+    }
+
+    @Override
+    public void getModifier(final ChunkModifier chunkModifier) {
+        this.chunkModifier = chunkModifier;
+    }
+
+    /**
+     * @param address
+     *            host:port, or only the host for {@link ChunkProtocol#DEFAULT_PORT}
+     */
+    @Override
+    public void connect(final String address) {
+        final int separator = address.lastIndexOf(':');
+        final String host = separator >= 0 ? address.substring(0, separator) : address;
+        final int port = separator >= 0 ? Integer.parseInt(address.substring(separator + 1))
+                : ChunkProtocol.DEFAULT_PORT;
+        try {
+            final SocketChannel socketChannel = SocketChannel.open(new InetSocketAddress(host, port));
+            socketChannel.configureBlocking(false);
+            socketChannel.socket().setTcpNoDelay(true);
+            selector = Selector.open();
+            channel = new FrameChannel(socketChannel);
+            socketChannel.register(selector, SelectionKey.OP_READ, channel);
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not connect to " + address, e);
+        }
+
+        networkThread = new Thread(new NetworkThread(), "chunkClient");
+        networkThread.setDaemon(true);
+        networkThread.start();
+    }
+
+    @Override
+    public void update(final int x, final int z) {
+        send(ChunkProtocol.update(x, z));
+    }
+
+    @Override
+    public void requestChunk(final int x, final int z) {
+        requestChunks(Collections.singletonList(new Pos(x, 0, z)));
+    }
+
+    @Override
+    public void requestChunks(final List<Pos> positions) {
+        final long[] versions = new long[positions.size()];
+        for (int i = 0; i < versions.length; i++) {
+            final Pos pos = positions.get(i);
+            final CachedChunk cached = chunkCache.getIfPresent(WorldFile.getKey(pos.x, pos.z));
+            versions[i] = cached != null ? cached.version : 0;
+        }
+        send(ChunkProtocol.requestChunks(positions, versions));
+    }
+
+    @Override
+    public void setBlock(final int x, final int y, final int z, final int blockId, final BlockSide orientation) {
+        send(ChunkProtocol.setBlock(x, y, z, blockId, orientation != null ? orientation.ordinal() : -1));
+    }
+
+    /**
+     * Only sent when the location changed, the block world calls this every frame.
+     */
+    @Override
+    public void updatePlayerPosition(final ReadOnlyVector3 location, final ReadOnlyVector3 direction) {
+        if (location.getXf() == lastX && location.getYf() == lastY && location.getZf() == lastZ) {
+            return;
+        }
+        lastX = location.getXf();
+        lastY = location.getYf();
+        lastZ = location.getZf();
+        send(ChunkProtocol.playerPosition(lastX, lastY, lastZ, direction.getXf(), direction.getYf(), direction
+                .getZf()));
+    }
+
+    @Override
+    public void close() {
+        exit = true;
+        if (networkThread == null) {
+            return;
+        }
+        selector.wakeup();
+        try {
+            networkThread.join();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void send(final ByteBuffer frame) {
+        if (channel == null) {
+            throw new IllegalStateException("Not connected");
+        }
+        channel.send(frame);
+        selector.wakeup();
+    }
+
+    private final FrameChannel.FrameHandler frameHandler = new FrameChannel.FrameHandler() {
+        @Override
+        public void frame(final FrameChannel channel, final byte type, final ByteBuffer payload) throws IOException {
+            switch (type) {
+                case ChunkProtocol.BLOCKS:
+                    postBlocks(payload);
+                    break;
+                case ChunkProtocol.CHUNK:
+                    receiveChunk(payload);
+                    break;
+                case ChunkProtocol.CHUNK_UNCHANGED:
+                    receiveUnchanged(payload);
+                    break;
+                case ChunkProtocol.CHUNK_EDITS:
+                    receiveEdits(payload);
+                    break;
+                default:
+                    throw new IOException("Unknown frame type: " + type);
+            }
+        }
+
+        private void receiveChunk(final ByteBuffer payload) throws IOException {
+            final int x = payload.getInt();
+            final int z = payload.getInt();
+            final long version = payload.getLong();
+            final int codecId = payload.get() & 0xff;
+            final ChunkCodec codec = ChunkCodecs.get(codecId);
+            if (codec == null) {
+                throw new IOException("Unknown chunk codec id " + codecId);
+            }
+            final int offset = payload.arrayOffset() + payload.position();
+            final byte[] blocks = codec.decode(payload.array(), offset, payload.remaining());
+            if (version != 0) {
+                // the frame buffer is reused, the cache gets its own copy
+                chunkCache.put(WorldFile.getKey(x, z), new CachedChunk(version, codecId, Arrays.copyOfRange(payload
+                        .array(), offset, offset + payload.remaining())));
+            }
+            received.add(new ChunkData(x, z, new Chunk(blocks, null, version)));
+        }
+
+        private void receiveUnchanged(final ByteBuffer payload) throws IOException {
+            final int x = payload.getInt();
+            final int z = payload.getInt();
+            final long version = payload.getLong();
+            final CachedChunk cached = getCached(x, z, version);
+            if (cached != null) {
+                received.add(new ChunkData(x, z, new Chunk(cached.decode(), null, version)));
+            }
+        }
+
+        private void receiveEdits(final ByteBuffer payload) throws IOException {
+            final int x = payload.getInt();
+            final int z = payload.getInt();
+            final long fromVersion = payload.getLong();
+            final long version = payload.getLong();
+            final int count = payload.getInt();
+            if (count < 0 || count > payload.remaining() / 4) {
+                throw new IOException("Bad chunk edit count: " + count);
+            }
+            final CachedChunk cached = getCached(x, z, fromVersion);
+            if (cached == null) {
+                return;
+            }
+            final byte[] blocks = cached.decode();
+            for (int i = 0; i < count; i++) {
+                final int edit = payload.getInt();
+                final int index = edit >>> 8;
+                if (index >= blocks.length) {
+                    throw new IOException("Bad chunk edit index: " + index);
+                }
+                blocks[index] = (byte) edit;
+            }
+            chunkCache.put(WorldFile.getKey(x, z), new CachedChunk(version, cacheCodec.getId(), cacheCodec.encode(
+                    blocks, blocks.length)));
+            received.add(new ChunkData(x, z, new Chunk(blocks, null, version)));
+        }
+
+        /**
+         * @return the cached chunk if it has the version, else null after asking for the whole chunk, it was evicted
+         *         or replaced since it was requested
+         */
+        private CachedChunk getCached(final int x, final int z, final long version) {
+            final CachedChunk cached = chunkCache.getIfPresent(WorldFile.getKey(x, z));
+            if (cached != null && cached.version == version) {
+                return cached;
+            }
+            send(ChunkProtocol.requestChunks(Collections.singletonList(new Pos(x, 0, z)), new long[1]));
+            return null;
+        }
+
+        private void postBlocks(final ByteBuffer payload) throws IOException {
+            final int count = payload.getInt();
+            if (count < 0 || count > payload.remaining() / ChunkProtocol.BLOCK_EDIT_SIZE) {
+                throw new IOException("Bad block edit count: " + count);
+            }
+            final List<BlockEditData> edits = Lists.newArrayListWithCapacity(count);
+            for (int i = 0; i < count; i++) {
+                final Pos pos = new Pos(payload.getInt(), payload.getInt(), payload.getInt());
+                final int blockId = payload.getInt();
+                final int orientation = payload.get();
+                edits.add(new BlockEditData(pos, blockId, orientation >= 0 ? BlockSide.fromOrdinal(orientation)
+                        : BlockSide.Front));
+            }
+            // chunks received before in the same read go first, the edits may be for them
+            postReceived();
+            final ChunkModifier modifier = chunkModifier;
+            if (modifier != null) {
+                modifier.postBlocks(edits);
+            }
+        }
+    };
+
+    /**
+     * Posts the chunks decoded during the current read. Only called by the network thread.
+     */
+    private void postReceived() {
+        if (received.isEmpty()) {
+            return;
+        }
+        final ChunkModifier modifier = chunkModifier;
+        if (modifier != null) {
+            modifier.postChunks(Lists.newArrayList(received));
+        }
+        received.clear();
+    }
+
+    private static final class CachedChunk {
+        private final long version;
+        private final int codecId;
+        private final byte[] data;
+
+        private CachedChunk(final long version, final int codecId, final byte[] data) {
+            this.version = version;
+            this.codecId = codecId;
+            this.data = data;
+        }
+
+        private byte[] decode() throws IOException {
+            return ChunkCodecs.get(codecId).decode(data, 0, data.length);
+        }
+    }
+
+    private final class NetworkThread implements Runnable {
+        @Override
+        public void run() {
+            final SelectionKey key = channel.getChannel().keyFor(selector);
+            try {
+                while (!exit) {
+                    selector.select();
+                    if (channel.hasQueuedFrames()) {
+                        key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    }
+                    if (!selector.selectedKeys().isEmpty()) {
+                        selector.selectedKeys().clear();
+                        if (key.isReadable()) {
+                            channel.read(frameHandler);
+                            postReceived();
+                        }
+                        if (key.isWritable() && channel.write()) {
+                            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                        }
+                    }
+                }
+            } catch (final EOFException e) {
+                logger.info("Server closed the connection");
+            } catch (final IOException e) {
+                logger.warning("Connection error: " + e.getMessage());
+            } finally {
+                channel.close();
+                try {
+                    selector.close();
+                } catch (final IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+}
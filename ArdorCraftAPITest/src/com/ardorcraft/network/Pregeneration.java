@@ -0,0 +1,125 @@
+package com.ardorcraft.network;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Progress of a background generation of an area of the map, started with
+ * {@link LocalServerDataHandler#pregenerate(java.util.List)}.
+ * <p>
+ * Chunks already in the map are skipped, so starting it again for the same area after it was cancelled or the server
+ * was stopped resumes where it left off. Counts are only changed by the pre-generation thread.
+ */
+public final class Pregeneration {
+    private final int total;
+    private final CountDownLatch done = new CountDownLatch(1);
+    private volatile boolean cancelled;
+    private volatile long startTime;
+    private volatile long endTime;
+    private volatile int skipped;
+    private volatile int generated;
+    private volatile int failed;
+
+    Pregeneration(final int total) {
+        this.total = total;
+    }
+
+    /**
+     * Stops queueing chunks, the ones already queued are still generated.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    /**
+     * Waits for the last queued chunk to be saved.
+     *
+     * @return true if done, false if the timeout passed first
+     */
+    public boolean await(final long timeout, final TimeUnit unit) throws InterruptedException {
+        return done.await(timeout, unit);
+    }
+
+    /**
+     * @return number of chunks in the area
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * @return number of chunks that were in the map already
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return number of chunks generated and saved
+     */
+    public int getGenerated() {
+        return generated;
+    }
+
+    /**
+     * @return number of chunks that could not be generated or saved
+     */
+    public int getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return number of chunks skipped, generated or failed
+     */
+    public int getCompleted() {
+        return skipped + generated + failed;
+    }
+
+    /**
+     * @return chunks generated per second since the start
+     */
+    public double getChunksPerSecond() {
+        final long time = (endTime != 0 ? endTime : System.nanoTime()) - startTime;
+        return startTime != 0 && time > 0 ? generated / (time / 1e9) : 0;
+    }
+
+    /**
+     * @return estimated milliseconds until done at the current rate, or -1 before the first chunk is generated
+     */
+    public long getRemainingMillis() {
+        if (isDone()) {
+            return 0;
+        }
+        final double rate = getChunksPerSecond();
+        return rate > 0 ? (long) ((total - getCompleted()) / rate * 1000) : -1;
+    }
+
+    void start() {
+        startTime = System.nanoTime();
+    }
+
+    void addSkipped() {
+        skipped++;
+    }
+
+    void addGenerated() {
+        generated++;
+    }
+
+    void addFailed() {
+        failed++;
+    }
+
+    void finish() {
+        endTime = System.nanoTime();
+        done.countDown();
+    }
+}